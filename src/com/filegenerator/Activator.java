@@ -1,8 +1,28 @@
 package com.filegenerator;
 
+import java.io.File;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.eclipse.core.resources.IContainer;
+import org.eclipse.core.resources.IProject;
+import org.eclipse.core.resources.IResource;
+import org.eclipse.core.resources.IWorkspaceRoot;
+import org.eclipse.core.resources.ResourcesPlugin;
+import org.eclipse.core.resources.WorkspaceJob;
+import org.eclipse.core.runtime.CoreException;
+import org.eclipse.core.runtime.IPath;
+import org.eclipse.core.runtime.IProgressMonitor;
+import org.eclipse.core.runtime.IStatus;
+import org.eclipse.core.runtime.Path;
+import org.eclipse.core.runtime.Status;
+import org.eclipse.core.runtime.jobs.Job;
 import org.eclipse.ui.plugin.AbstractUIPlugin;
 import org.osgi.framework.BundleContext;
 
+import com.filegenerator.core.BackupManager;
+import com.filegenerator.core.FileGenerator;
+
 public class Activator extends AbstractUIPlugin {
 
 	public static final String PLUGIN_ID = "com.filegenerator";
@@ -15,6 +35,75 @@ public class Activator extends AbstractUIPlugin {
 	public void start(BundleContext context) throws Exception {
 		super.start(context);
 		plugin = this;
+		scheduleGenerationRecovery();
+		scheduleLegacyBackupMigration();
+	}
+
+	/**
+	 * 在后台完成上次被中断的事务生成，只刷新恢复过程中修改过的文件夹。
+	 * 作业锁定整个工作区，之后调度的生成作业要等恢复完成才会开始。
+	 */
+	private void scheduleGenerationRecovery() {
+		IWorkspaceRoot root = ResourcesPlugin.getWorkspace().getRoot();
+		WorkspaceJob job = new WorkspaceJob("Recover interrupted file generation") {
+			@Override
+			public IStatus runInWorkspace(IProgressMonitor monitor) {
+				for (File changed : FileGenerator.recoverInterruptedGenerations()) {
+					IContainer container = root.getContainerForLocation(Path.fromOSString(changed.getAbsolutePath()));
+					if (container == null) {
+						continue;
+					}
+					try {
+						container.refreshLocal(IResource.DEPTH_ONE, monitor);
+					} catch (CoreException e) {
+						getLog().log(new Status(IStatus.WARNING, PLUGIN_ID, "Error refreshing " + changed, e));
+					}
+				}
+				return Status.OK_STATUS;
+			}
+		};
+		job.setRule(root);
+		job.setSystem(true);
+		job.setPriority(Job.SHORT);
+		job.schedule();
+	}
+
+	/**
+	 * 在后台把旧版本放在各个源目录中的.filebackups迁移到备份目录，只刷新删除了这些目录的文件夹
+	 */
+	private void scheduleLegacyBackupMigration() {
+		Job job = new Job("Migrate file backups") {
+			@Override
+			protected IStatus run(IProgressMonitor monitor) {
+				IWorkspaceRoot root = ResourcesPlugin.getWorkspace().getRoot();
+				List<File> locations = new ArrayList<>();
+				// 关闭或无法访问的项目这次不能迁移，下次启动时再扫描
+				boolean allProjects = true;
+				for (IProject project : root.getProjects()) {
+					IPath location = project.getLocation();
+					if (project.isAccessible() && location != null) {
+						locations.add(location.toFile());
+					} else {
+						allProjects = false;
+					}
+				}
+				for (File changed : BackupManager.getInstance().migrateLegacyBackups(locations, allProjects, monitor)) {
+					IContainer container = root.getContainerForLocation(Path.fromOSString(changed.getAbsolutePath()));
+					if (container == null) {
+						continue;
+					}
+					try {
+						container.refreshLocal(IResource.DEPTH_ONE, monitor);
+					} catch (CoreException e) {
+						getLog().log(new Status(IStatus.WARNING, PLUGIN_ID, "Error refreshing " + changed, e));
+					}
+				}
+				return monitor.isCanceled() ? Status.CANCEL_STATUS : Status.OK_STATUS;
+			}
+		};
+		job.setSystem(true);
+		job.setPriority(Job.DECORATE);
+		job.schedule();
 	}
 
 	@Override
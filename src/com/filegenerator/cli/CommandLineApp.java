@@ -4,31 +4,67 @@ import java.awt.Toolkit;
 import java.awt.datatransfer.Clipboard;
 import java.awt.datatransfer.DataFlavor;
 import java.io.IOException;
+import java.io.Reader;
+import java.nio.charset.Charset;
+import java.nio.charset.StandardCharsets;
 import java.nio.file.Files;
+import java.nio.file.Path;
 import java.nio.file.Paths;
+import java.util.ArrayList;
 import java.util.List;
 
+import com.filegenerator.core.ContentEncoder;
 import com.filegenerator.core.FileGenerator;
 import com.filegenerator.core.FileModel;
+import com.filegenerator.core.GenerationReport;
 import com.filegenerator.core.TextParser;
 
 public class CommandLineApp {
 
 	public static void main(String[] args) {
-		if (args.length == 0) {
+		// 解析选项，其余为位置参数
+		Charset inputCharset = StandardCharsets.UTF_8;
+		Charset outputCharset = StandardCharsets.UTF_8;
+		ContentEncoder.LineEnding lineEnding = ContentEncoder.LineEnding.LF;
+		boolean writeBom = false;
+		List<String> arguments = new ArrayList<>();
+		try {
+			for (String arg : args) {
+				if (arg.startsWith("--input-charset=")) {
+					inputCharset = Charset.forName(arg.substring("--input-charset=".length()));
+				} else if (arg.startsWith("--charset=")) {
+					outputCharset = Charset.forName(arg.substring("--charset=".length()));
+				} else if (arg.startsWith("--line-ending=")) {
+					lineEnding = ContentEncoder.LineEnding.valueOf(arg.substring("--line-ending=".length()).toUpperCase());
+				} else if (arg.equals("--bom")) {
+					writeBom = true;
+				} else if (arg.startsWith("--")) {
+					throw new IllegalArgumentException("未知选项: " + arg);
+				} else {
+					arguments.add(arg);
+				}
+			}
+		} catch (IllegalArgumentException e) {
+			System.err.println("参数错误: " + e.getMessage());
+			printUsage();
+			System.exit(1);
+			return;
+		}
+
+		if (arguments.isEmpty()) {
 			printUsage();
 			System.exit(1);
 			return;
 		}
 
-		String basePath = args[0];
+		String basePath = arguments.get(0);
 		String inputText = null;
 
 		// 如果提供了输入文件，从文件读取内容
-		if (args.length > 1) {
-			String inputFile = args[1];
+		if (arguments.size() > 1) {
+			String inputFile = arguments.get(1);
 			try {
-				inputText = new String(Files.readAllBytes(Paths.get(inputFile)));
+				inputText = readInput(Paths.get(inputFile), inputCharset);
 			} catch (IOException e) {
 				System.err.println("读取输入文件错误: " + e.getMessage());
 				System.exit(1);
@@ -68,10 +104,18 @@ public class CommandLineApp {
 			}
 
 			// 生成文件
+			FileGenerator.recoverInterruptedGenerations();
 			FileGenerator generator = new FileGenerator(basePath);
-			generator.generateFiles(fileModels);
+			generator.setDurabilityPolicy(FileGenerator.DurabilityPolicy.PER_BATCH);
+			generator.setTransactional(true);
+			generator.setMoveBackups(true);
+			generator.setCharset(outputCharset);
+			generator.setLineEnding(lineEnding);
+			generator.setWriteBom(writeBom);
+			GenerationReport report = generator.generateFiles(fileModels);
 
-			System.out.println("成功生成 " + fileModels.size() + " 个文件");
+			System.out.println("成功生成 " + report.getCount(GenerationReport.FileStatus.GENERATED) + " 个文件"
+					+ unchangedSuffix(report));
 
 		} catch (IOException e) {
 			System.err.println("错误: " + e.getMessage());
@@ -80,15 +124,44 @@ public class CommandLineApp {
 		}
 	}
 
+	private static String unchangedSuffix(GenerationReport report) {
+		int unchanged = report.getCount(GenerationReport.FileStatus.UNCHANGED);
+		return unchanged > 0 ? "，" + unchanged + " 个文件内容未变化" : "";
+	}
+
+	/**
+	 * 按指定编码读取输入文件，遇到不合法的字节序列时报错而不是产生乱码
+	 */
+	private static String readInput(Path inputFile, Charset charset) throws IOException {
+		StringBuilder text = new StringBuilder();
+		char[] buffer = new char[8192];
+		try (Reader reader = Files.newBufferedReader(inputFile, charset)) {
+			int read;
+			while ((read = reader.read(buffer)) != -1) {
+				text.append(buffer, 0, read);
+			}
+		}
+		// 去掉BOM，避免影响第一行的文件标记识别
+		if (text.length() > 0 && text.charAt(0) == '\uFEFF') {
+			text.deleteCharAt(0);
+		}
+		return text.toString();
+	}
+
 	private static String getClipboardContents() throws Exception {
 		Clipboard clipboard = Toolkit.getDefaultToolkit().getSystemClipboard();
 		return (String) clipboard.getData(DataFlavor.stringFlavor);
 	}
 
 	private static void printUsage() {
-		System.out.println("使用方法: java -jar filegenerator.jar <基础路径> [输入文件]");
+		System.out.println("使用方法: java -jar filegenerator.jar [选项] <基础路径> [输入文件]");
 		System.out.println("  基础路径 - 文件将生成的目录");
 		System.out.println("  输入文件 - (可选) 包含文件定义的文本文件");
 		System.out.println("            如果未提供，将从剪贴板读取文本");
+		System.out.println("选项:");
+		System.out.println("  --input-charset=<编码>  输入文件的编码，默认UTF-8");
+		System.out.println("  --charset=<编码>        生成文件的编码，默认UTF-8");
+		System.out.println("  --line-ending=<lf|crlf|system>  生成文件的换行符，默认lf");
+		System.out.println("  --bom                   在UTF编码的文件开头写入BOM");
 	}
 }
\ No newline at end of file
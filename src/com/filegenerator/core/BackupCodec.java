@@ -0,0 +1,69 @@
+package com.filegenerator.core;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.zip.Deflater;
+import java.util.zip.DeflaterOutputStream;
+import java.util.zip.Inflater;
+import java.util.zip.InflaterInputStream;
+
+/**
+ * 备份内容在存储中的编码方式。编码和解码都是流式的，不会把整个文件读入内存。
+ */
+public enum BackupCodec {
+	NONE("", 0),                              // 原样保存，通过重命名备份的文件总是这种方式
+	DEFLATE(".z", Deflater.DEFAULT_COMPRESSION), // zlib格式，文本源码通常可压缩到几分之一
+	DEFLATE_FAST(".z", Deflater.BEST_SPEED);  // 与DEFLATE格式相同，压缩更快、压缩率稍低
+
+	private static final int BUFFER_SIZE = 64 * 1024;
+
+	private final String suffix;
+	private final int level;
+
+	BackupCodec(String suffix, int level) {
+		this.suffix = suffix;
+		this.level = level;
+	}
+
+	/**
+	 * 存储文件名的后缀，格式相同的编码方式使用相同的后缀
+	 */
+	String getSuffix() {
+		return suffix;
+	}
+
+	OutputStream encode(OutputStream out) {
+		if (this == NONE) {
+			return out;
+		}
+		Deflater deflater = new Deflater(level);
+		return new DeflaterOutputStream(out, deflater, BUFFER_SIZE) {
+			@Override
+			public void close() throws IOException {
+				try {
+					super.close();
+				} finally {
+					deflater.end();
+				}
+			}
+		};
+	}
+
+	InputStream decode(InputStream in) {
+		if (this == NONE) {
+			return in;
+		}
+		Inflater inflater = new Inflater();
+		return new InflaterInputStream(in, inflater, BUFFER_SIZE) {
+			@Override
+			public void close() throws IOException {
+				try {
+					super.close();
+				} finally {
+					inflater.end();
+				}
+			}
+		};
+	}
+}
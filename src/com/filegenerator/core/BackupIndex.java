@@ -0,0 +1,640 @@
+package com.filegenerator.core;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Date;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.function.Predicate;
+
+import com.filegenerator.core.BackupManager.BackupEntry;
+
+/**
+ * 备份记录的持久化索引，按原文件路径和备份内容的SHA-256两种键查找。
+ * 每个键一个只追加的文本文件，文件名是键的SHA-256，按前两位分目录，查找时不需要列目录。
+ * 最近使用的键缓存在内存中，缓存大小有上限。
+ * 每个键的读写按键的哈希分段加锁，不同文件的备份可以同时更新索引。
+ * 从备份会话建立索引时逐个会话写入并记录进度，中断后从下一个会话继续；完成后写入标记文件。
+ */
+class BackupIndex {
+	private static final String PATH_KEY = "path:";
+	private static final String HASH_KEY = "hash:";
+	// 该路径旁边的旧版本备份目录已扫描过
+	private static final String LEGACY_SCANNED = "L";
+	private static final String ENTRY = "E";
+	// 路径中含有制表符或换行的记录和键，路径经过转义（反斜杠也要转义）
+	private static final String ESCAPED_ENTRY = "X";
+	private static final String COMPLETE_MARKER = "complete";
+	// 建立索引时已写入的会话ID，每行一个
+	private static final String BUILD_PROGRESS = "building";
+	private static final String NULL = "-";
+	private static final int MAX_CACHED_KEYS = 1024;
+	private static final int LOCK_STRIPES = 64;
+	private static final Object[] LOCKS = new Object[LOCK_STRIPES];
+	static {
+		for (int i = 0; i < LOCK_STRIPES; i++) {
+			LOCKS[i] = new Object();
+		}
+	}
+
+	/**
+	 * 索引中的一条记录，sessionId为null表示不属于任何会话
+	 */
+	static class IndexedEntry {
+		final String sessionId;
+		final BackupEntry entry;
+
+		IndexedEntry(String sessionId, BackupEntry entry) {
+			this.sessionId = sessionId;
+			this.entry = entry;
+		}
+	}
+
+	/**
+	 * 一个键的所有记录，以及读取时索引文件的长度，用于发现其他实例追加的记录
+	 */
+	private static class KeyRecords {
+		final List<IndexedEntry> entries = new ArrayList<>();
+		boolean legacyScanned;
+		long length;
+	}
+
+	private final File directory;
+	private final Map<String, KeyRecords> cache = new LinkedHashMap<String, KeyRecords>(16, 0.75f, true) {
+		private static final long serialVersionUID = 1L;
+
+		@Override
+		protected boolean removeEldestEntry(Map.Entry<String, KeyRecords> eldest) {
+			return size() > MAX_CACHED_KEYS;
+		}
+	};
+
+	BackupIndex(File directory) {
+		this.directory = directory;
+	}
+
+	/**
+	 * 索引是否已经建立完成；没有时需要从备份会话中建立
+	 */
+	boolean exists() {
+		return new File(directory, COMPLETE_MARKER).isFile();
+	}
+
+	/**
+	 * 开始或继续从备份会话建立索引。没有进度记录的旧索引先被清除。
+	 *
+	 * @return 中断的建立已经写入的会话
+	 */
+	Set<String> startBuild() throws IOException {
+		File progress = new File(directory, BUILD_PROGRESS);
+		Set<String> indexed = new HashSet<>();
+		if (progress.isFile()) {
+			for (String line : Files.readAllLines(progress.toPath(), StandardCharsets.UTF_8)) {
+				if (!line.isEmpty()) {
+					indexed.add(line);
+				}
+			}
+			return indexed;
+		}
+		reset();
+		if (!directory.isDirectory() && !directory.mkdirs()) {
+			throw new IOException("无法创建目录: " + directory);
+		}
+		Files.write(progress.toPath(), new byte[0]);
+		return indexed;
+	}
+
+	/**
+	 * 记录会话的备份记录已全部写入索引
+	 */
+	void sessionIndexed(String sessionId) throws IOException {
+		Files.write(new File(directory, BUILD_PROGRESS).toPath(), (sessionId + "\n").getBytes(StandardCharsets.UTF_8),
+				StandardOpenOption.APPEND);
+	}
+
+	/**
+	 * 从备份会话建立索引之后调用，之后{@link #exists()}返回true
+	 */
+	void markComplete() throws IOException {
+		if (!directory.isDirectory() && !directory.mkdirs()) {
+			throw new IOException("无法创建目录: " + directory);
+		}
+		Files.write(new File(directory, COMPLETE_MARKER).toPath(), new byte[0]);
+		Files.deleteIfExists(new File(directory, BUILD_PROGRESS).toPath());
+	}
+
+	/**
+	 * 清除没有建立完成的索引，准备从备份会话重新建立。
+	 * 不属于任何会话的记录和旧版本备份目录的扫描结果无法从会话重建，清除后重新写入。
+	 */
+	void reset() throws IOException {
+		Map<String, KeyRecords> kept = new LinkedHashMap<>();
+		File[] shards = directory.listFiles(File::isDirectory);
+		if (shards == null) {
+			return;
+		}
+		for (File shard : shards) {
+			File[] files = shard.listFiles((dir, name) -> !name.endsWith(".tmp"));
+			if (files == null) {
+				continue;
+			}
+			for (File file : files) {
+				String header;
+				try (BufferedReader reader = Files.newBufferedReader(file.toPath(), StandardCharsets.UTF_8)) {
+					header = reader.readLine();
+				}
+				String key = parseHeader(header);
+				if (key == null || !key.startsWith(PATH_KEY)) {
+					continue;
+				}
+				KeyRecords records = read(key, file);
+				records.entries.removeIf(e -> e.sessionId != null);
+				if (!records.entries.isEmpty() || records.legacyScanned) {
+					kept.put(key.substring(PATH_KEY.length()), records);
+				}
+			}
+		}
+		for (File shard : shards) {
+			File[] files = shard.listFiles();
+			if (files != null) {
+				for (File file : files) {
+					Files.deleteIfExists(file.toPath());
+				}
+			}
+			Files.deleteIfExists(shard.toPath());
+		}
+		synchronized (cache) {
+			cache.clear();
+		}
+		for (Map.Entry<String, KeyRecords> e : kept.entrySet()) {
+			List<BackupEntry> entries = new ArrayList<>();
+			for (IndexedEntry indexed : e.getValue().entries) {
+				entries.add(indexed.entry);
+			}
+			if (e.getValue().legacyScanned) {
+				addLegacy(e.getKey(), entries);
+			} else {
+				for (BackupEntry entry : entries) {
+					add(entry, null);
+				}
+			}
+		}
+	}
+
+	void add(BackupEntry entry, String sessionId) throws IOException {
+		IndexedEntry indexed = new IndexedEntry(sessionId, entry);
+		append(PATH_KEY + entry.getOriginalFilePath(), indexed);
+		if (entry.getContentHash() != null) {
+			append(HASH_KEY + entry.getContentHash(), indexed);
+		}
+	}
+
+	/**
+	 * 文件的所有备份记录，按备份顺序排列
+	 */
+	List<IndexedEntry> getEntries(String filePath) throws IOException {
+		String key = PATH_KEY + filePath;
+		synchronized (lockFor(key)) {
+			return new ArrayList<>(get(key).entries);
+		}
+	}
+
+	/**
+	 * 内容为hash的所有备份记录
+	 */
+	List<IndexedEntry> getEntriesWithContent(String hash) throws IOException {
+		String key = HASH_KEY + hash;
+		synchronized (lockFor(key)) {
+			return new ArrayList<>(get(key).entries);
+		}
+	}
+
+	BackupEntry getLatest(String filePath) throws IOException {
+		String key = PATH_KEY + filePath;
+		synchronized (lockFor(key)) {
+			List<IndexedEntry> entries = get(key).entries;
+			return entries.isEmpty() ? null : entries.get(entries.size() - 1).entry;
+		}
+	}
+
+	boolean isLegacyScanned(String filePath) throws IOException {
+		String key = PATH_KEY + filePath;
+		synchronized (lockFor(key)) {
+			return get(key).legacyScanned;
+		}
+	}
+
+	/**
+	 * 记录旧版本备份目录的扫描结果，之后不再扫描该文件的目录
+	 */
+	void addLegacy(String filePath, List<BackupEntry> entries) throws IOException {
+		String key = PATH_KEY + filePath;
+		StringBuilder lines = new StringBuilder();
+		for (BackupEntry entry : entries) {
+			lines.append(format(new IndexedEntry(null, entry))).append('\n');
+		}
+		lines.append(LEGACY_SCANNED).append('\n');
+		synchronized (lockFor(key)) {
+			KeyRecords records = get(key);
+			if (records.legacyScanned) {
+				// 其他线程已经记录过
+				return;
+			}
+			appendLines(key, records, lines.toString());
+			for (BackupEntry entry : entries) {
+				records.entries.add(new IndexedEntry(null, entry));
+			}
+			records.legacyScanned = true;
+		}
+	}
+
+	/**
+	 * 删除文件的指定记录，同时从内容的索引中删除
+	 */
+	void removeEntries(String filePath, Collection<IndexedEntry> entries) throws IOException {
+		Set<String> lines = new HashSet<>();
+		Set<String> keys = new LinkedHashSet<>();
+		keys.add(PATH_KEY + filePath);
+		for (IndexedEntry entry : entries) {
+			lines.add(format(entry));
+			if (entry.entry.getContentHash() != null) {
+				keys.add(HASH_KEY + entry.entry.getContentHash());
+			}
+		}
+		for (String key : keys) {
+			synchronized (lockFor(key)) {
+				removeIf(key, e -> lines.contains(format(e)));
+			}
+		}
+	}
+
+	/**
+	 * 遍历整个索引得到的内容使用情况。遍历时不加锁，调用方需要对结果重新检查。
+	 */
+	static class ContentUsage {
+		// 仍有备份记录引用的内容
+		final Set<String> referenced = new HashSet<>();
+		// 只被不属于任何会话的记录引用的内容，删除会话不能释放它们
+		final Set<String> unowned = new HashSet<>();
+		// 有过期的、不属于任何会话的记录的文件
+		final Set<String> expiredUnownedPaths = new HashSet<>();
+	}
+
+	/**
+	 * 遍历内容的索引，统计被引用的内容、只被会话之外的记录引用的内容，
+	 * 以及会话之外的记录早于expiredBefore的文件；expiredBefore为0时不查找过期记录
+	 */
+	ContentUsage scanContent(long expiredBefore) throws IOException {
+		ContentUsage usage = new ContentUsage();
+		File[] shards = directory.listFiles(File::isDirectory);
+		if (shards == null) {
+			return usage;
+		}
+		for (File shard : shards) {
+			File[] files = shard.listFiles((dir, name) -> !name.endsWith(".tmp"));
+			if (files == null) {
+				continue;
+			}
+			for (File file : files) {
+				try (BufferedReader reader = Files.newBufferedReader(file.toPath(), StandardCharsets.UTF_8)) {
+					String key = parseHeader(reader.readLine());
+					if (key == null || !key.startsWith(HASH_KEY)) {
+						continue;
+					}
+					String hash = key.substring(HASH_KEY.length());
+					boolean referenced = false;
+					boolean owned = false;
+					String line;
+					while ((line = reader.readLine()) != null) {
+						IndexedEntry entry = parse(line);
+						if (entry == null) {
+							continue;
+						}
+						referenced = true;
+						if (entry.sessionId != null) {
+							owned = true;
+						} else if (entry.entry.getTimestamp().getTime() < expiredBefore) {
+							usage.expiredUnownedPaths.add(entry.entry.getOriginalFilePath());
+						}
+					}
+					if (referenced) {
+						usage.referenced.add(hash);
+						if (!owned) {
+							usage.unowned.add(hash);
+						}
+					}
+				}
+			}
+		}
+		return usage;
+	}
+
+	/**
+	 * 删除属于sessionId的记录，只重写涉及的文件和内容的索引
+	 */
+	void removeSession(String sessionId, Collection<BackupEntry> entries) throws IOException {
+		Set<String> keys = new LinkedHashSet<>();
+		for (BackupEntry entry : entries) {
+			keys.add(PATH_KEY + entry.getOriginalFilePath());
+			if (entry.getContentHash() != null) {
+				keys.add(HASH_KEY + entry.getContentHash());
+			}
+		}
+		for (String key : keys) {
+			synchronized (lockFor(key)) {
+				removeIf(key, e -> sessionId.equals(e.sessionId));
+			}
+		}
+	}
+
+	/**
+	 * 删除键下满足条件的记录，文件中没有剩余内容时删除文件。调用方持有键的锁。
+	 */
+	private void removeIf(String key, Predicate<IndexedEntry> filter) throws IOException {
+		KeyRecords records = get(key);
+		if (!records.entries.removeIf(filter)) {
+			return;
+		}
+		File file = getFile(key);
+		if (records.entries.isEmpty() && !records.legacyScanned) {
+			Files.deleteIfExists(file.toPath());
+			synchronized (cache) {
+				cache.remove(key);
+			}
+			return;
+		}
+		Path temp = Files.createTempFile(file.getParentFile().toPath(), file.getName(), ".tmp");
+		try {
+			try (BufferedWriter writer = Files.newBufferedWriter(temp, StandardCharsets.UTF_8)) {
+				writer.write(header(key));
+				writer.newLine();
+				for (IndexedEntry entry : records.entries) {
+					writer.write(format(entry));
+					writer.newLine();
+				}
+				if (records.legacyScanned) {
+					writer.write(LEGACY_SCANNED);
+					writer.newLine();
+				}
+			}
+			try {
+				Files.move(temp, file.toPath(), StandardCopyOption.ATOMIC_MOVE);
+			} catch (AtomicMoveNotSupportedException e) {
+				Files.move(temp, file.toPath(), StandardCopyOption.REPLACE_EXISTING);
+			}
+			records.length = file.length();
+		} finally {
+			Files.deleteIfExists(temp);
+		}
+	}
+
+	private void append(String key, IndexedEntry entry) throws IOException {
+		synchronized (lockFor(key)) {
+			KeyRecords records = get(key);
+			appendLines(key, records, format(entry) + "\n");
+			records.entries.add(entry);
+		}
+	}
+
+	private void appendLines(String key, KeyRecords records, String lines) throws IOException {
+		File file = getFile(key);
+		File parent = file.getParentFile();
+		if (!parent.isDirectory() && !parent.mkdirs()) {
+			throw new IOException("无法创建目录: " + parent);
+		}
+		StringBuilder content = new StringBuilder();
+		boolean fresh = records.length == 0;
+		if (fresh) {
+			content.append(header(key)).append('\n');
+		} else if (!endsWithNewline(file)) {
+			// 上次追加时中断，留下了不完整的一行
+			content.append('\n');
+		}
+		content.append(lines);
+		Files.write(file.toPath(), content.toString().getBytes(StandardCharsets.UTF_8), StandardOpenOption.CREATE,
+				StandardOpenOption.WRITE, fresh ? StandardOpenOption.TRUNCATE_EXISTING : StandardOpenOption.APPEND);
+		records.length = file.length();
+	}
+
+	private static boolean endsWithNewline(File file) throws IOException {
+		try (RandomAccessFile raf = new RandomAccessFile(file, "r")) {
+			if (raf.length() == 0) {
+				return true;
+			}
+			raf.seek(raf.length() - 1);
+			return raf.read() == '\n';
+		}
+	}
+
+	private static Object lockFor(String key) {
+		return LOCKS[(key.hashCode() & 0x7fffffff) % LOCK_STRIPES];
+	}
+
+	/**
+	 * 从缓存或索引文件读取键的记录，调用方持有键的锁。缓存的记录在索引文件被其他实例修改后重新读取。
+	 */
+	private KeyRecords get(String key) throws IOException {
+		File file = getFile(key);
+		KeyRecords records;
+		synchronized (cache) {
+			records = cache.get(key);
+		}
+		if (records != null && records.length == file.length()) {
+			return records;
+		}
+		records = read(key, file);
+		synchronized (cache) {
+			cache.put(key, records);
+		}
+		return records;
+	}
+
+	private static KeyRecords read(String key, File file) throws IOException {
+		KeyRecords records = new KeyRecords();
+		if (!file.isFile()) {
+			return records;
+		}
+		try (BufferedReader reader = Files.newBufferedReader(file.toPath(), StandardCharsets.UTF_8)) {
+			String line = reader.readLine();
+			if (!key.equals(parseHeader(line))) {
+				// 第一次写入时中断，文件中没有有效的记录，下次写入时重写
+				return records;
+			}
+			records.length = file.length();
+			while ((line = reader.readLine()) != null) {
+				if (line.equals(LEGACY_SCANNED)) {
+					records.legacyScanned = true;
+					continue;
+				}
+				IndexedEntry entry = parse(line);
+				if (entry != null) {
+					records.entries.add(entry);
+				}
+			}
+		}
+		return records;
+	}
+
+	private static String format(IndexedEntry indexed) {
+		BackupEntry entry = indexed.entry;
+		String codec = entry.getContentHash() != null ? entry.getCodec().name() : NULL;
+		String backupFilePath = entry.getBackupFilePath();
+		String originalFilePath = entry.getOriginalFilePath();
+		// 大多数路径不需要转义，保持与旧记录相同的格式
+		boolean escaped = needsEscape(backupFilePath) || needsEscape(originalFilePath);
+		if (escaped) {
+			backupFilePath = escape(backupFilePath);
+			originalFilePath = escape(originalFilePath);
+		}
+		return (escaped ? ESCAPED_ENTRY : ENTRY) + "\t" + orNull(indexed.sessionId) + "\t"
+				+ entry.getTimestamp().getTime() + "\t" + entry.getSize() + "\t" + entry.getLastModified() + "\t"
+				+ orNull(entry.getContentHash()) + "\t" + codec + "\t" + backupFilePath + "\t" + originalFilePath;
+	}
+
+	/**
+	 * 索引文件的第一行，记录文件对应的键
+	 */
+	private static String header(String key) {
+		return needsEscape(key) ? "#" + ESCAPED_ENTRY + " " + escape(key) : "# " + key;
+	}
+
+	/**
+	 * 解析索引文件的第一行，不是有效的第一行时返回null
+	 */
+	private static String parseHeader(String line) {
+		if (line == null) {
+			return null;
+		}
+		if (line.startsWith("# ")) {
+			return line.substring(2);
+		}
+		if (line.startsWith("#" + ESCAPED_ENTRY + " ")) {
+			try {
+				return unescape(line.substring(3));
+			} catch (IllegalArgumentException e) {
+				return null;
+			}
+		}
+		return null;
+	}
+
+	private static boolean needsEscape(String value) {
+		return value.indexOf('\t') >= 0 || value.indexOf('\n') >= 0 || value.indexOf('\r') >= 0;
+	}
+
+	private static String escape(String value) {
+		StringBuilder escaped = new StringBuilder(value.length() + 8);
+		for (int i = 0; i < value.length(); i++) {
+			char c = value.charAt(i);
+			switch (c) {
+			case '\\':
+				escaped.append("\\\\");
+				break;
+			case '\t':
+				escaped.append("\\t");
+				break;
+			case '\n':
+				escaped.append("\\n");
+				break;
+			case '\r':
+				escaped.append("\\r");
+				break;
+			default:
+				escaped.append(c);
+			}
+		}
+		return escaped.toString();
+	}
+
+	/**
+	 * 还原{@link #escape(String)}转义的字段，格式错误时抛出IllegalArgumentException
+	 */
+	private static String unescape(String value) {
+		StringBuilder unescaped = new StringBuilder(value.length());
+		for (int i = 0; i < value.length(); i++) {
+			char c = value.charAt(i);
+			if (c != '\\') {
+				unescaped.append(c);
+				continue;
+			}
+			if (++i >= value.length()) {
+				throw new IllegalArgumentException("不完整的转义: " + value);
+			}
+			switch (value.charAt(i)) {
+			case '\\':
+				unescaped.append('\\');
+				break;
+			case 't':
+				unescaped.append('\t');
+				break;
+			case 'n':
+				unescaped.append('\n');
+				break;
+			case 'r':
+				unescaped.append('\r');
+				break;
+			default:
+				throw new IllegalArgumentException("未知的转义: " + value);
+			}
+		}
+		return unescaped.toString();
+	}
+
+	/**
+	 * 解析一行记录，损坏的行返回null
+	 */
+	private static IndexedEntry parse(String line) {
+		String[] fields = line.split("\t", 9);
+		if (fields.length < 9 || !(fields[0].equals(ENTRY) || fields[0].equals(ESCAPED_ENTRY))) {
+			return null;
+		}
+		try {
+			if (fields[0].equals(ESCAPED_ENTRY)) {
+				fields[7] = unescape(fields[7]);
+				fields[8] = unescape(fields[8]);
+			}
+			String sessionId = nullable(fields[1]);
+			Date timestamp = new Date(Long.parseLong(fields[2]));
+			String hash = nullable(fields[5]);
+			BackupEntry entry;
+			if (hash == null) {
+				entry = new BackupEntry(fields[8], fields[7], timestamp);
+			} else {
+				entry = new BackupEntry(fields[8], fields[7], timestamp, hash, Long.parseLong(fields[3]),
+						Long.parseLong(fields[4]), BackupCodec.valueOf(fields[6]));
+			}
+			return new IndexedEntry(sessionId, entry);
+		} catch (IllegalArgumentException e) {
+			return null;
+		}
+	}
+
+	private static String orNull(String value) {
+		return value != null ? value : NULL;
+	}
+
+	private static String nullable(String field) {
+		return field.equals(NULL) ? null : field;
+	}
+
+	private File getFile(String key) {
+		String name = ContentManifest.toHex(ContentManifest.newMessageDigest()
+				.digest(key.getBytes(StandardCharsets.UTF_8)));
+		return new File(new File(directory, name.substring(0, 2)), name.substring(2));
+	}
+}
@@ -1,44 +1,195 @@
 package com.filegenerator.core;
 
+import java.io.ByteArrayInputStream;
 import java.io.File;
 import java.io.FileInputStream;
-import java.io.FileOutputStream;
 import java.io.IOException;
+import java.io.InputStream;
 import java.io.ObjectInputStream;
-import java.io.ObjectOutputStream;
 import java.io.Serializable;
+import java.nio.ByteBuffer;
+import java.nio.charset.CharacterCodingException;
+import java.nio.charset.CodingErrorAction;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.FileVisitResult;
 import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.SimpleFileVisitor;
 import java.nio.file.StandardCopyOption;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.security.DigestInputStream;
+import java.security.MessageDigest;
 import java.text.SimpleDateFormat;
+import java.util.ArrayDeque;
 import java.util.ArrayList;
+import java.util.Collection;
 import java.util.Collections;
 import java.util.Date;
+import java.util.Deque;
 import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
 import java.util.List;
 import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
 
 import org.eclipse.core.runtime.ILog;
+import org.eclipse.core.runtime.IProgressMonitor;
+import org.eclipse.core.runtime.IStatus;
 import org.eclipse.core.runtime.Platform;
 import org.eclipse.core.runtime.Status;
+import org.eclipse.core.runtime.jobs.Job;
+
+import com.filegenerator.core.ContentManifest.ContentDigest;
 
 public class BackupManager {
+    // 旧版本在每个文件旁边保存完整副本的目录，只用于查找和迁移历史备份
     private static final String BACKUP_DIR = ".filebackups";
+    // 旧版本备份文件名中文件名之后的部分：_yyyyMMdd_HHmmss.bak
+    private static final String LEGACY_TIMESTAMP_FORMAT = "yyyyMMdd_HHmmss";
+    private static final int LEGACY_SUFFIX_LENGTH = 1 + LEGACY_TIMESTAMP_FORMAT.length() + ".bak".length();
+    // 所有旧备份目录都已迁移的标记
+    private static final String LEGACY_MIGRATED = "legacy_backups.migrated";
+    // 指定备份数据目录的系统属性，未指定时使用插件状态位置；备份不会写入工作空间
+    public static final String BACKUP_ROOT_PROPERTY = "com.filegenerator.backupRoot";
+    // 记录上次使用的备份数据目录，保存在插件状态位置，用于发现备份数据目录的变更
+    private static final String BACKUP_ROOT_RECORD = "backup_root.location";
+    private static final String BACKUP_ROOT = "backups";
+    // 把git仓库中文件的备份写入仓库对象库的系统属性，默认关闭
+    public static final String GIT_BACKEND_PROPERTY = "com.filegenerator.gitBackups";
+    // 每个会话在仓库中的引用，指向会话中该仓库文件的快照
+    private static final String SESSION_REF_PREFIX = "refs/filegenerator/sessions/";
+    // 旧版本用Java序列化整体保存的会话列表，只在首次启动时迁移到会话日志
     private static final String SESSION_FILE = "backup_sessions.dat";
+    private static final String SESSION_JOURNAL = "backup_sessions.journal";
+    private static final String SESSION_INDEX = "backup_sessions.index";
+    private static final String BACKUP_INDEX = "backup_index";
+    private static final int DEFAULT_MAX_DELTA_CHAIN_LENGTH = 16;
+    // 超过该大小的文件不按差异保存，还原时需要在内存中处理整个文件
+    private static final long MAX_DELTA_FILE_SIZE = 8 * 1024 * 1024;
+    // 计算差异时允许的最大增删行数
+    private static final int MAX_DELTA_EDITS = 2000;
+    // 保留策略的默认值，0表示不限制
+    private static final int DEFAULT_MAX_AGE_DAYS = 90;
+    private static final int DEFAULT_MAX_VERSIONS_PER_FILE = 50;
+    private static final int DEFAULT_MAX_SESSIONS = 1000;
+    private static final long DEFAULT_MAX_TOTAL_BYTES = 1024L * 1024 * 1024;
+    // 每次后台清理最多删除的会话数和处理的文件数，剩余的留给下一次
+    private static final int PRUNE_BATCH_SIZE = 100;
+    private static final long PRUNE_DELAY = 30 * 1000;
+    private static final long DAY_MILLIS = 24L * 60 * 60 * 1000;
+    // 写入备份与回收不再引用的内容互斥：备份和恢复时持有读锁，回收时持有写锁
+    private static final ReentrantReadWriteLock STORE_LOCK = new ReentrantReadWriteLock();
+    // 同一文件的备份必须依次进行（比较上一个版本、改为差异保存），不同文件可以同时备份
+    private static final int PATH_LOCK_STRIPES = 64;
+    private static final Object[] PATH_LOCKS = new Object[PATH_LOCK_STRIPES];
+    static {
+        for (int i = 0; i < PATH_LOCK_STRIPES; i++) {
+            PATH_LOCKS[i] = new Object();
+        }
+    }
     private static BackupManager instance;
     private final ILog log;
     
-    // 存储文件备份历史记录
-    private Map<String, List<BackupEntry>> backupHistory = new HashMap<>();
+    // 按文件路径和备份内容查找备份记录的持久化索引
+    private final BackupIndex backupIndex = new BackupIndex(new File(getBackupRoot(), BACKUP_INDEX));
+    
+    // 所有备份内容按SHA-256保存在同一个存储中，相同内容只保存一次
+    private final BlobStore blobStore = new BlobStore(new File(getBackupRoot(), BACKUP_ROOT));
+    
+    // 复制备份时的编码方式
+    private volatile BackupCodec codec = BackupCodec.DEFLATE;
+    
+    // 是否把同一文件的旧版本保存为相对新版本的反向差异
+    private volatile boolean deltaStorage = true;
+    private volatile int maxDeltaChainLength = DEFAULT_MAX_DELTA_CHAIN_LENGTH;
+    
+    // 是否把git仓库中文件的备份写入该仓库的对象库
+    private volatile boolean gitBackend = Boolean.getBoolean(GIT_BACKEND_PROPERTY);
     
-    // 存储批量备份会话
-    private List<BackupSession> backupSessions = new ArrayList<>();
+    // 保留策略
+    private volatile int maxAgeDays = DEFAULT_MAX_AGE_DAYS;
+    private volatile int maxVersionsPerFile = DEFAULT_MAX_VERSIONS_PER_FILE;
+    private volatile int maxSessions = DEFAULT_MAX_SESSIONS;
+    private volatile long maxTotalBytes = DEFAULT_MAX_TOTAL_BYTES;
     
-    // 当前活动的会话
-    private BackupSession currentSession;
+    // 备份记录可能超出保留策略、等待后台清理的文件
+    private final Set<String> pendingPrunePaths = Collections.synchronizedSet(new LinkedHashSet<>());
+    // 等待后台改为差异保存的旧版本，按旧版本内容的哈希去重；只保存在内存中，重启后没有处理的旧版本保持完整保存
+    private final Map<String, PendingDelta> pendingDeltas = Collections.synchronizedMap(new LinkedHashMap<>());
+    // 存储占用空间的估计值，上次回收时计算，之后按新保存的内容累加；-1表示还没有计算过
+    private final AtomicLong estimatedStoreBytes = new AtomicLong(-1);
+    // 上一次回收时只被会话之外的记录引用的字节数，删除会话不能释放这部分空间
+    private volatile long unownedStoreBytes;
+    // 上一次因超出限额删除会话时存储的字节数，-1表示没有删除
+    private long quotaBytesBeforeRemoval = -1;
+    private final PruneJob pruneJob = new PruneJob();
+    
+    // 存储批量备份会话，读取远多于修改
+    private final List<BackupSession> backupSessions = new CopyOnWriteArrayList<>();
+    private final Map<String, BackupSession> sessionsById = new ConcurrentHashMap<>();
+    // 已打开还没有关闭的会话，它们的备份记录不参与清理
+    private final Set<String> openSessionIds = ConcurrentHashMap.newKeySet();
+    private volatile boolean indexReady;
+    
+    // 每个会话结束时向日志追加一条记录，不再重写整个会话列表
+    private final SessionJournal sessionJournal = new SessionJournal(new File(getBackupRoot(), SESSION_JOURNAL),
+            new File(getBackupRoot(), SESSION_INDEX));
+    
+    // 通过startBackupSession打开的会话
+    private volatile BackupSessionHandle currentHandle;
     
 	public BackupManager() {
         log = Platform.getLog(Platform.getBundle("com.filegenerator"));
-        loadSessions();
+        // 只加载会话头，会话的备份记录在使用时才读取
+        backupSessions.addAll(loadSessions());
+        for (BackupSession session : backupSessions) {
+            sessionsById.put(session.getSessionId(), session);
+        }
+        pruneJob.schedule(PRUNE_DELAY);
+        checkBackupRootChanged();
+    }
+    
+    /**
+     * 备份数据目录与上次不同时，原目录中的备份不会被迁移，也不会出现在备份列表中，记录警告以免用户以为备份丢失
+     */
+    private void checkBackupRootChanged() {
+        File record = StateLocation.getFile(BACKUP_ROOT_RECORD);
+        String current = getBackupRoot().getAbsolutePath();
+        try {
+            String previous = record.isFile()
+                    ? new String(Files.readAllBytes(record.toPath()), StandardCharsets.UTF_8).trim() : null;
+            if (current.equals(previous)) {
+                return;
+            }
+            if (previous != null && new File(previous, SESSION_JOURNAL).isFile()) {
+                log.log(new Status(Status.WARNING, "com.filegenerator", "备份数据目录已从 " + previous + " 改为 " + current
+                        + "，原目录中的备份不会被迁移，也不会显示在备份列表中。需要这些备份时，请把原目录中的内容移到新目录，"
+                        + "或者恢复" + BACKUP_ROOT_PROPERTY + "的设置"));
+            }
+            Files.createDirectories(record.getParentFile().toPath());
+            Files.write(record.toPath(), current.getBytes(StandardCharsets.UTF_8));
+        } catch (IOException e) {
+            log.log(new Status(Status.WARNING, "com.filegenerator", "记录备份数据目录失败", e));
+        }
+    }
+    
+    /**
+     * 备份数据（内容存储、索引、会话日志）所在的目录
+     */
+    public static File getBackupRoot() {
+        String configured = System.getProperty(BACKUP_ROOT_PROPERTY);
+        if (configured != null && !configured.trim().isEmpty()) {
+            return new File(configured.trim()).getAbsoluteFile();
+        }
+        return StateLocation.getDirectory();
     }
     
     public static synchronized BackupManager getInstance() {
@@ -49,104 +200,699 @@ public class BackupManager {
     }
     
     /**
-     * 开始一个新的备份会话
+     * 打开一个新的备份会话。通过返回的会话备份的文件都记录在这个会话中，用完后必须关闭。
+     * 可以同时打开多个会话。
      */
-    public void startBackupSession() {
-        currentSession = new BackupSession();
-        log.log(new Status(Status.INFO, "com.filegenerator", "开始新的备份会话: " + currentSession.getSessionId()));
+    public BackupSessionHandle openSession() {
+        BackupSession session = new BackupSession();
+        openSessionIds.add(session.getSessionId());
+        if (gitBackend) {
+            // 上一个会话之后可能新建或移动了仓库
+            GitObjectStore.clearCache();
+        }
+        log.log(new Status(Status.INFO, "com.filegenerator", "开始新的备份会话: " + session.getSessionId()));
+        return new BackupSessionHandle(this, session);
     }
     
     /**
-     * 结束当前备份会话并保存
+     * 会话关闭时调用，有备份的文件时保存会话
      */
-    public void endBackupSession() {
-        if (currentSession != null && currentSession.getFileCount() > 0) {
-            backupSessions.add(currentSession);
-            saveSessions();
+    void closeSession(BackupSession session) {
+        try {
+            if (session.getFileCount() == 0) {
+                return;
+            }
+            synchronized (this) {
+                backupSessions.add(session);
+                sessionsById.put(session.getSessionId(), session);
+            }
+            appendSession(session);
             log.log(new Status(Status.INFO, "com.filegenerator", 
-                    "结束备份会话: " + currentSession.getSessionId() + 
-                    ", 包含 " + currentSession.getFileCount() + " 个文件"));
-            currentSession = null;
+                    "结束备份会话: " + session.getSessionId() + 
+                    ", 包含 " + session.getFileCount() + " 个文件"));
+            if (maxSessions > 0 && backupSessions.size() > maxSessions) {
+                schedulePrune();
+            }
+        } finally {
+            openSessionIds.remove(session.getSessionId());
+        }
+    }
+    
+    /**
+     * 开始一个新的备份会话，之后通过{@link #backupFile(String)}备份的文件都记录在这个会话中
+     * 
+     * @deprecated 同一时间只能有一个这样的会话，请使用{@link #openSession()}
+     */
+    @Deprecated
+    public synchronized void startBackupSession() {
+        if (currentHandle != null) {
+            currentHandle.close();
         }
+        currentHandle = openSession();
+    }
+    
+    /**
+     * 结束当前备份会话并保存
+     * 
+     * @deprecated 请使用{@link #openSession()}和{@link BackupSessionHandle#close()}
+     */
+    @Deprecated
+    public synchronized void endBackupSession() {
+        if (currentHandle != null) {
+            currentHandle.close();
+            currentHandle = null;
+        }
+    }
+    
+    /**
+     * 设置新备份内容的编码方式，默认为{@link BackupCodec#DEFLATE}。通过重命名备份的文件总是原样保存。
+     */
+    public void setCodec(BackupCodec codec) {
+        this.codec = codec;
+    }
+    
+    /**
+     * 是否按差异保存：同一文件备份了新版本后，上一个版本改为保存相对新版本的反向差异，
+     * 存储空间只随修改量增长。二进制文件、含\r的文件以及差异太大的版本仍完整保存。默认开启。
+     */
+    public void setDeltaStorage(boolean deltaStorage) {
+        this.deltaStorage = deltaStorage;
+    }
+    
+    /**
+     * 是否把git仓库中文件的备份写成该仓库的blob对象，而不是复制到备份存储。
+     * 每个会话在仓库中记录为引用refs/filegenerator/sessions/&lt;会话ID&gt;，指向会话中该仓库文件的快照，
+     * 可以用git show等命令查看。不在git仓库中的文件和不属于会话的备份仍保存在备份存储中。
+     * 默认关闭，也可以用系统属性{@value #GIT_BACKEND_PROPERTY}开启。
+     */
+    public void setGitBackend(boolean gitBackend) {
+        this.gitBackend = gitBackend;
+        GitObjectStore.clearCache();
+    }
+    
+    /**
+     * 设置差异链的最大长度，即还原最旧版本时最多需要应用的差异数。达到该长度时完整保存一个版本，重新开始新的链。
+     */
+    public void setMaxDeltaChainLength(int maxDeltaChainLength) {
+        this.maxDeltaChainLength = Math.max(1, maxDeltaChainLength);
+    }
+    
+    /**
+     * 备份保留的天数，更早的会话和备份记录在后台删除。默认90天，0表示不限制。
+     */
+    public void setMaxBackupAgeDays(int maxAgeDays) {
+        this.maxAgeDays = Math.max(0, maxAgeDays);
+        schedulePrune();
+    }
+    
+    /**
+     * 每个文件保留的最多备份版本数，默认50，0表示不限制
+     */
+    public void setMaxVersionsPerFile(int maxVersionsPerFile) {
+        this.maxVersionsPerFile = Math.max(0, maxVersionsPerFile);
+        schedulePrune();
+    }
+    
+    /**
+     * 保留的最多备份会话数，默认1000，0表示不限制
+     */
+    public void setMaxSessions(int maxSessions) {
+        this.maxSessions = Math.max(0, maxSessions);
+        schedulePrune();
+    }
+    
+    /**
+     * 备份存储占用的最大字节数，超出时从最旧的会话开始删除。默认1GB，0表示不限制。
+     */
+    public void setMaxTotalBytes(long maxTotalBytes) {
+        this.maxTotalBytes = Math.max(0, maxTotalBytes);
+        schedulePrune();
     }
     
     /**
-     * 获取所有备份会话
+     * 获取所有备份会话。会话开始时只有会话头，第一次获取文件列表或备份记录时才从日志中读取。
      */
     public List<BackupSession> getBackupSessions() {
         return Collections.unmodifiableList(backupSessions);
     }
     
     /**
-     * 在覆盖文件前创建备份
+     * 删除一个备份会话的记录。会话日志中只追加一条删除记录，积累较多时在后台压缩。
+     *
+     * @return 会话存在并已删除时返回true
+     */
+    public synchronized boolean removeBackupSession(String sessionId) {
+        BackupSession session = sessionsById.remove(sessionId);
+        if (session == null) {
+            return false;
+        }
+        backupSessions.remove(session);
+        try {
+            ensureIndex();
+            backupIndex.removeSession(sessionId, session.getBackupEntries());
+            sessionJournal.appendRemoval(sessionId);
+            updateSessionRefs(session, true);
+            log.log(new Status(Status.INFO, "com.filegenerator", "已删除备份会话: " + sessionId));
+        } catch (IOException e) {
+            log.log(new Status(Status.WARNING, "com.filegenerator", "记录备份会话的删除失败: " + sessionId, e));
+        }
+        scheduleCompactionIfNeeded();
+        return true;
+    }
+    
+    /**
+     * 获取备份过该文件的所有会话，最新的在前
+     */
+    public List<BackupSession> getSessionsForFile(String filePath) {
+        List<BackupSession> sessions = new ArrayList<>();
+        try {
+            ensureIndex();
+            Set<String> seen = new HashSet<>();
+            List<BackupIndex.IndexedEntry> entries = backupIndex.getEntries(filePath);
+            for (int i = entries.size() - 1; i >= 0; i--) {
+                String sessionId = entries.get(i).sessionId;
+                // 不属于会话的备份，以及已删除或没有正常结束的会话
+                BackupSession session = sessionId != null && seen.add(sessionId) ? sessionsById.get(sessionId) : null;
+                if (session != null) {
+                    sessions.add(session);
+                }
+            }
+        } catch (IOException e) {
+            log.log(new Status(Status.WARNING, "com.filegenerator", "读取备份索引失败: " + filePath, e));
+        }
+        return sessions;
+    }
+    
+    /**
+     * 在覆盖文件前创建备份。内容已在备份存储中时只记录引用，不复制数据。
      * 
      * @param filePath 要备份的文件路径
-     * @return 备份文件的路径，如果备份失败则返回null
+     * @return 备份内容的路径，如果备份失败则返回null
      */
     public String backupFile(String filePath) {
-        File file = new File(filePath);
+        return backup(getCurrentSession(), new File(filePath), null, false, null);
+    }
+    
+    /**
+     * 把文件重命名到备份存储中，不复制数据，用于调用方随后会完整重写的文件。
+     * 返回后文件可能已不在原处；内容已在存储中时文件保留在原处。不在同一文件系统上时退回复制。
+     * 被编辑器打开的文件应使用{@link #backupFile(String)}。
+     * 
+     * @param filePath 要备份的文件路径
+     * @return 备份内容的路径，如果备份失败则返回null
+     */
+    public String backupFileByMove(String filePath) {
+        return backup(getCurrentSession(), new File(filePath), null, true, null);
+    }
+    
+    /**
+     * 用调用方已经读入内存的内容创建备份，不再从磁盘读取文件。
+     * content必须是filePath当前的完整内容；内容已在备份存储中时只记录引用，不写入数据。
+     * 
+     * @param filePath 要备份的文件路径
+     * @param content 文件的完整内容，内容的哈希按content计算
+     * @return 备份内容的路径，如果备份失败则返回null
+     */
+    public String backupContent(String filePath, byte[] content) {
+        return backupContent(getCurrentSession(), filePath, content);
+    }
+    
+    private BackupSession getCurrentSession() {
+        BackupSessionHandle handle = currentHandle;
+        return handle != null ? handle.getSession() : null;
+    }
+    
+    /**
+     * 备份文件并记录在session中（session为null时不属于任何会话）。
+     * 同一文件的备份按路径加锁依次进行，不同文件的备份互不等待。
+     *
+     * @param known 调用方已知的文件摘要及当时的修改时间，只在文件大小和修改时间仍然一致时使用，未知时为null
+     */
+    String backup(BackupSession session, File file, String originalFilePath, boolean move,
+            ContentManifest.Entry known) {
         if (!file.exists() || !file.isFile()) {
             return null; // 文件不存在，无需备份
         }
-        
+        if (originalFilePath == null) {
+            originalFilePath = file.getAbsolutePath();
+        }
+        return backupLocked(session, file, originalFilePath, null, move, known);
+    }
+    
+    /**
+     * 用已读入内存的内容备份文件并记录在session中
+     */
+    String backupContent(BackupSession session, String filePath, byte[] content) {
+        File file = new File(filePath);
+        return backupLocked(session, file, file.getAbsolutePath(), content, false, null);
+    }
+    
+    private String backupLocked(BackupSession session, File file, String originalFilePath, byte[] content,
+            boolean move, ContentManifest.Entry known) {
+        STORE_LOCK.readLock().lock();
         try {
-            // 确保备份目录存在
-            File backupDir = new File(file.getParentFile(), BACKUP_DIR);
-            if (!backupDir.exists()) {
-                backupDir.mkdirs();
+            synchronized (PATH_LOCKS[(originalFilePath.hashCode() & 0x7fffffff) % PATH_LOCK_STRIPES]) {
+                return doBackup(session, file, originalFilePath, content, move, known);
             }
+        } finally {
+            STORE_LOCK.readLock().unlock();
+        }
+    }
+    
+    private String doBackup(BackupSession session, File file, String originalFilePath, byte[] content, boolean move,
+            ContentManifest.Entry known) {
+        try {
+            long size = content != null ? content.length : file.length();
+            long lastModified = file.lastModified();
+            if (known != null && (known.lastModified != lastModified || known.digest.size != size)) {
+                known = null; // 计算摘要之后文件又被修改过
+            }
+            String contentHash = known != null ? known.digest.hash : null;
             
-            // 创建带时间戳的备份文件名
-            String timestamp = new SimpleDateFormat("yyyyMMdd_HHmmss").format(new Date());
-            String fileName = file.getName();
-            String backupFileName = fileName + "." + timestamp + ".bak";
-            
-            File backupFile = new File(backupDir, backupFileName);
-            
-            // 复制文件
-            Files.copy(file.toPath(), backupFile.toPath(), StandardCopyOption.REPLACE_EXISTING);
+            // 文件大小和修改时间与上次备份时相同，并且上次备份时修改时间已早于备份时间，说明内容没有变化，无需读取文件
+            BackupEntry previous = getLatestBackup(originalFilePath);
+            if (content != null && previous != null && previous.getContentHash() != null && previous.getSize() == size) {
+                // 与上次备份大小相同时按内容计算哈希，判断内容是否变化
+                contentHash = ContentManifest.toHex(ContentManifest.newMessageDigest().digest(content));
+            }
+            if (gitBackend && session != null) {
+                // 没有提交的备份对象在会话结束写入引用之前可能被git gc清除，所以只用于会话中的备份
+                GitObjectStore repository = GitObjectStore.find(new File(originalFilePath));
+                if (repository != null) {
+                    return backupToGit(repository, session, file, originalFilePath, content, previous);
+                }
+            }
+            String hash;
+            if (previous != null && previous.getContentHash() != null && previous.getSize() == size
+                    && (content != null ? previous.getContentHash().equals(contentHash)
+                            : previous.getLastModified() == lastModified
+                                    && !ContentManifest.isRacy(previous.getLastModified(), previous.getTimestamp().getTime())
+                                    || previous.getContentHash().equals(contentHash))
+                    && blobStore.contains(previous.getContentHash())) {
+                hash = previous.getContentHash();
+            } else {
+                ContentDigest digest = content != null ? blobStore.store(content, codec)
+                        : move ? blobStore.moveIn(file.toPath(), known, codec) : blobStore.store(file.toPath(), codec);
+                hash = digest.hash;
+                size = digest.size;
+                estimatedStoreBytes.getAndUpdate(bytes -> bytes >= 0 ? bytes + digest.size : bytes);
+            }
             
             // 记录备份历史
-            String originalFilePath = file.getAbsolutePath();
-            BackupEntry entry = new BackupEntry(originalFilePath, backupFile.getAbsolutePath(), new Date());
-            
-            if (!backupHistory.containsKey(originalFilePath)) {
-                backupHistory.put(originalFilePath, new ArrayList<>());
+            BlobStore.Blob stored = blobStore.find(hash);
+            File blob;
+            BackupCodec storedCodec;
+            if (stored != null) {
+                blob = stored.file;
+                storedCodec = getStoredCodec(stored);
+            } else if (blobStore.contains(hash)) {
+                // 文件未修改，而上一次备份的内容已改为按差异保存
+                blob = blobStore.getDeltaFile(hash);
+                storedCodec = BackupCodec.NONE;
+            } else {
+                throw new IOException("备份内容不存在: " + hash);
             }
-            backupHistory.get(originalFilePath).add(entry);
+            BackupEntry entry = new BackupEntry(originalFilePath, blob.getAbsolutePath(), new Date(), hash, size,
+                    lastModified, storedCodec);
+            
+            ensureIndex();
+            backupIndex.add(entry, session != null ? session.getSessionId() : null);
             
-            // 添加到当前会话
-            if (currentSession != null) {
-                currentSession.addFile(originalFilePath);
-                currentSession.addBackupEntry(entry);
+            // 添加到会话
+            if (session != null) {
+                session.addFile(originalFilePath);
+                session.addBackupEntry(entry);
             }
             
-            log.log(new Status(Status.INFO, "com.filegenerator", "已备份文件: " + originalFilePath + " 到 " + backupFile.getAbsolutePath()));
+            log.log(new Status(Status.INFO, "com.filegenerator", "已备份文件: " + originalFilePath + " 到 " + blob.getAbsolutePath()));
             
-            return backupFile.getAbsolutePath();
+            if (deltaStorage && previous != null && previous.getContentHash() != null
+                    && !previous.getContentHash().equals(hash)) {
+                // 计算差异需要读取和比较两个版本，交给后台清理作业，不占用备份的锁
+                pendingDeltas.put(previous.getContentHash(), new PendingDelta(originalFilePath, previous, hash, size));
+                schedulePrune();
+            }
+            checkRetention(originalFilePath);
+            if (maxTotalBytes > 0 && estimatedStoreBytes.get() > maxTotalBytes) {
+                schedulePrune();
+            }
+            
+            return blob.getAbsolutePath();
         } catch (IOException e) {
-            log.log(new Status(Status.ERROR, "com.filegenerator", "备份文件失败: " + filePath, e));
+            log.log(new Status(Status.ERROR, "com.filegenerator", "备份文件失败: " + file, e));
+            return null;
+        }
+    }
+    
+    /**
+     * 把文件内容写成仓库的blob对象。仓库中已有相同内容时只记录引用。
+     */
+    private String backupToGit(GitObjectStore repository, BackupSession session, File file, String originalFilePath,
+            byte[] content, BackupEntry previous) throws IOException {
+        long size = content != null ? content.length : file.length();
+        long lastModified = file.lastModified();
+        String objectId;
+        String hash;
+        String previousObjectId = previous != null ? GitObjectStore.getObjectId(previous.getBackupFilePath()) : null;
+        if (previousObjectId != null && previous.getSize() == size && previous.getLastModified() == lastModified
+                && repository.hasLooseObject(previousObjectId)) {
+            // 文件没有变化，仓库中已有上次备份的对象
+            objectId = previousObjectId;
+            hash = previous.getContentHash();
+        } else {
+            MessageDigest digest = ContentManifest.newMessageDigest();
+            try (InputStream in = new DigestInputStream(
+                    content != null ? new ByteArrayInputStream(content) : Files.newInputStream(file.toPath()), digest)) {
+                objectId = repository.writeBlob(in, size);
+            }
+            hash = ContentManifest.toHex(digest.digest());
+        }
+        File object = repository.getObjectFile(objectId);
+        BackupEntry entry = new BackupEntry(originalFilePath, object.getAbsolutePath(), new Date(), hash, size,
+                lastModified, BackupCodec.DEFLATE);
+        
+        ensureIndex();
+        backupIndex.add(entry, session.getSessionId());
+        session.addFile(originalFilePath);
+        session.addBackupEntry(entry);
+        
+        log.log(new Status(Status.INFO, "com.filegenerator", "已备份文件: " + originalFilePath + " 到git对象 " + objectId));
+        checkRetention(originalFilePath);
+        return object.getAbsolutePath();
+    }
+    
+    /**
+     * 让会话在各个仓库中的引用指向会话当前备份记录的提交链：第一个提交是会话中各文件第一次备份的内容，
+     * 即会话开始前的内容，之后同一文件每多备份一次增加一个提交，会话引用的所有对象都不会被git gc清除。
+     * 
+     * @param removed 会话已删除，删除它的引用
+     */
+    private void updateSessionRefs(BackupSession session, boolean removed) {
+        Map<File, GitObjectStore> repositories = new HashMap<>();
+        Map<File, List<BackupEntry>> entriesByRepository = new HashMap<>();
+        Map<BackupEntry, String> relativePaths = new HashMap<>();
+        for (BackupEntry entry : session.getBackupEntries()) {
+            if (GitObjectStore.getObjectId(entry.getBackupFilePath()) == null) {
+                continue;
+            }
+            GitObjectStore repository = GitObjectStore.find(new File(entry.getOriginalFilePath()));
+            String relative = repository != null ? repository.relativize(new File(entry.getOriginalFilePath())) : null;
+            if (relative == null) {
+                continue;
+            }
+            repositories.putIfAbsent(repository.getCommonDir(), repository);
+            entriesByRepository.computeIfAbsent(repository.getCommonDir(), k -> new ArrayList<>()).add(entry);
+            relativePaths.put(entry, relative);
+        }
+        String ref = SESSION_REF_PREFIX + session.getSessionId();
+        for (Map.Entry<File, GitObjectStore> e : repositories.entrySet()) {
+            GitObjectStore repository = e.getValue();
+            try {
+                if (removed) {
+                    repository.deleteRef(ref);
+                    continue;
+                }
+                List<BackupEntry> entries = entriesByRepository.get(e.getKey());
+                Collections.sort(entries, (a, b) -> a.getTimestamp().compareTo(b.getTimestamp()));
+                Map<String, String> tree = new TreeMap<>();
+                List<BackupEntry> later = new ArrayList<>();
+                for (BackupEntry entry : entries) {
+                    if (tree.putIfAbsent(relativePaths.get(entry), GitObjectStore.getObjectId(entry.getBackupFilePath())) != null) {
+                        later.add(entry);
+                    }
+                }
+                String description = session.getDescription();
+                String commit = repository.writeCommit(repository.writeTree(tree), null,
+                        description != null && !description.isEmpty() ? description : "Backup " + session.getSessionId(),
+                        session.getTimestamp());
+                for (BackupEntry entry : later) {
+                    String path = relativePaths.get(entry);
+                    String objectId = GitObjectStore.getObjectId(entry.getBackupFilePath());
+                    if (!objectId.equals(tree.put(path, objectId))) {
+                        commit = repository.writeCommit(repository.writeTree(tree), commit, "Backup " + path,
+                                entry.getTimestamp());
+                    }
+                }
+                repository.updateRef(ref, commit);
+            } catch (IOException ex) {
+                log.log(new Status(Status.WARNING, "com.filegenerator", "更新git仓库中的备份会话引用失败: " + e.getKey(), ex));
+            }
+        }
+    }
+    
+    private BackupCodec getStoredCodec(BlobStore.Blob stored) {
+        // 格式相同的编码方式无法从文件名区分，记录实际请求的那一种
+        return stored.codec.getSuffix().equals(codec.getSuffix()) ? codec : stored.codec;
+    }
+    
+    /**
+     * 等待改为差异保存的一个旧版本
+     */
+    private static class PendingDelta {
+        final String filePath;
+        final BackupEntry older;
+        final String newerHash;
+        final long newerSize;
+        
+        PendingDelta(String filePath, BackupEntry older, String newerHash, long newerSize) {
+            this.filePath = filePath;
+            this.older = older;
+            this.newerHash = newerHash;
+            this.newerSize = newerSize;
+        }
+    }
+    
+    /**
+     * 在后台处理一批等待改为差异保存的旧版本，与同一文件的备份和回收互斥
+     * 
+     * @return 是否有旧版本改为了差异保存
+     */
+    private boolean processPendingDeltas(IProgressMonitor monitor) {
+        List<PendingDelta> batch = new ArrayList<>();
+        synchronized (pendingDeltas) {
+            Iterator<PendingDelta> iterator = pendingDeltas.values().iterator();
+            while (iterator.hasNext() && batch.size() < PRUNE_BATCH_SIZE) {
+                batch.add(iterator.next());
+                iterator.remove();
+            }
+        }
+        boolean converted = false;
+        for (int i = 0; i < batch.size(); i++) {
+            PendingDelta delta = batch.get(i);
+            if (monitor.isCanceled()) {
+                // 没有处理的留到下一次
+                for (PendingDelta rest : batch.subList(i, batch.size())) {
+                    pendingDeltas.putIfAbsent(rest.older.getContentHash(), rest);
+                }
+                break;
+            }
+            STORE_LOCK.readLock().lock();
+            try {
+                synchronized (PATH_LOCKS[(delta.filePath.hashCode() & 0x7fffffff) % PATH_LOCK_STRIPES]) {
+                    converted |= storeAsDelta(delta.filePath, delta.older, delta.newerHash, delta.newerSize);
+                }
+            } finally {
+                STORE_LOCK.readLock().unlock();
+            }
+        }
+        return converted;
+    }
+    
+    /**
+     * 把文件的一个备份版本改为保存相对新版本的反向差异。失败或不值得时保留完整内容。
+     * 
+     * @return 是否改为了差异保存
+     */
+    private boolean storeAsDelta(String filePath, BackupEntry older, String newerHash, long newerSize) {
+        String olderHash = older.getContentHash();
+        if (older.getSize() > MAX_DELTA_FILE_SIZE || newerSize > MAX_DELTA_FILE_SIZE
+                || blobStore.find(olderHash) == null || blobStore.find(newerHash) == null) {
+            // 也可能在排队期间已被清理，或已改为差异保存
+            return false;
+        }
+        try {
+            // 其他文件也有相同内容的备份时保留完整内容，避免它们的还原依赖这个文件的版本链
+            if (isSharedWithOtherFiles(olderHash, filePath)
+                    || getDeltaChainLength(filePath, newerHash) >= maxDeltaChainLength) {
+                return false;
+            }
+            String newer = decodeText(blobStore.read(newerHash));
+            String olderText = decodeText(blobStore.read(olderHash));
+            if (newer == null || olderText == null) {
+                return false;
+            }
+            String delta = ReverseDelta.create(newer, olderText, newerHash, olderHash, MAX_DELTA_EDITS);
+            // 差异不比原内容小很多时不值得增加还原的开销
+            if (delta == null || delta.length() * 2L > older.getSize()) {
+                return false;
+            }
+            blobStore.replaceWithDelta(olderHash, newerHash, delta);
+            log.log(new Status(Status.INFO, "com.filegenerator",
+                    "已将 " + filePath + " 的旧版本改为差异保存，" + older.getSize() + " 字节 -> " + delta.length() + " 字节"));
+            return true;
+        } catch (IOException e) {
+            log.log(new Status(Status.WARNING, "com.filegenerator", "差异保存失败，保留完整备份: " + filePath, e));
+            return false;
+        }
+    }
+    
+    private boolean isSharedWithOtherFiles(String hash, String filePath) throws IOException {
+        for (BackupIndex.IndexedEntry indexed : backupIndex.getEntriesWithContent(hash)) {
+            if (!indexed.entry.getOriginalFilePath().equals(filePath)) {
+                return true;
+            }
+        }
+        return false;
+    }
+    
+    /**
+     * 从newestHash的版本往前数，连续按差异保存的版本数。差异在后台生成，之后可能已有更新的版本，不计算在内。
+     */
+    private int getDeltaChainLength(String filePath, String newestHash) throws IOException {
+        List<BackupIndex.IndexedEntry> backups = backupIndex.getEntries(filePath);
+        Set<String> seen = new HashSet<>();
+        seen.add(newestHash);
+        int length = 0;
+        boolean previousSkipped = false;
+        int start = backups.size() - 1;
+        while (start >= 0 && !newestHash.equals(backups.get(start).entry.getContentHash())) {
+            start--;
+        }
+        for (int i = start; i >= 0; i--) {
+            String hash = backups.get(i).entry.getContentHash();
+            if (hash == null || !seen.add(hash)) {
+                continue;
+            }
+            if (!previousSkipped) {
+                // 跳过即将改为差异的上一个版本
+                previousSkipped = true;
+                continue;
+            }
+            if (blobStore.find(hash) != null) {
+                // 遇到完整保存的版本，链到此为止
+                break;
+            }
+            length++;
+        }
+        return length;
+    }
+    
+    /**
+     * 按UTF-8严格解码，不是文本时返回null
+     */
+    private static String decodeText(byte[] content) {
+        try {
+            return StandardCharsets.UTF_8.newDecoder()
+                    .onMalformedInput(CodingErrorAction.REPORT)
+                    .onUnmappableCharacter(CodingErrorAction.REPORT)
+                    .decode(ByteBuffer.wrap(content)).toString();
+        } catch (CharacterCodingException e) {
             return null;
         }
     }
     
     /**
-     * 获取指定文件的所有备份记录
+     * 第一次使用索引时从已有的备份会话建立索引
+     */
+    private void ensureIndex() throws IOException {
+        if (indexReady) {
+            return;
+        }
+        synchronized (this) {
+            if (!indexReady) {
+                buildIndex();
+                indexReady = true;
+            }
+        }
+    }
+    
+    /**
+     * 从备份会话建立索引，完成后写入标记。逐个会话读取备份记录，写入索引后即丢弃，会话保持未加载；
+     * 每个会话写入后记录进度，中断后从下一个会话继续。
+     */
+    private void buildIndex() throws IOException {
+        if (backupIndex.exists()) {
+            return;
+        }
+        Set<String> indexed = backupIndex.startBuild();
+        int count = 0;
+        for (BackupSession session : backupSessions) {
+            if (indexed.contains(session.getSessionId())) {
+                continue;
+            }
+            List<BackupEntry> entries = session.readBackupEntries();
+            // 中断时这个会话可能已经写入了一部分
+            backupIndex.removeSession(session.getSessionId(), entries);
+            for (BackupEntry entry : entries) {
+                backupIndex.add(entry, session.getSessionId());
+                count++;
+            }
+            backupIndex.sessionIndexed(session.getSessionId());
+        }
+        backupIndex.markComplete();
+        log.log(new Status(Status.INFO, "com.filegenerator", "已从 " + backupSessions.size() + " 个备份会话建立备份索引，共 " + count + " 条记录"));
+    }
+    
+    private BackupEntry getLatestBackup(String filePath) throws IOException {
+        ensureIndex();
+        return backupIndex.getLatest(filePath);
+    }
+    
+    /**
+     * 获取指定文件的所有备份记录，最新的在前
      */
     public List<BackupEntry> getBackupsForFile(String filePath) {
-        List<BackupEntry> backups = backupHistory.get(filePath);
-        if (backups == null) {
-            // 尝试扫描目录查找历史备份
-            backups = scanForBackups(filePath);
-            if (!backups.isEmpty()) {
-                backupHistory.put(filePath, backups);
+        List<BackupEntry> sorted = new ArrayList<>();
+        try {
+            ensureIndex();
+            if (!backupIndex.isLegacyScanned(filePath)) {
+                // 合并旧版本保存在文件旁边的备份，每个文件只扫描一次
+                backupIndex.addLegacy(filePath, scanForBackups(filePath));
             }
+            for (BackupIndex.IndexedEntry indexed : backupIndex.getEntries(filePath)) {
+                sorted.add(indexed.entry);
+            }
+            checkRetention(filePath);
+        } catch (IOException e) {
+            log.log(new Status(Status.WARNING, "com.filegenerator", "读取备份索引失败: " + filePath, e));
         }
-        return backups != null ? backups : Collections.emptyList();
+        Collections.sort(sorted, (a, b) -> b.getTimestamp().compareTo(a.getTimestamp()));
+        return sorted;
     }
     
     /**
-     * 从备份恢复文件
+     * 把文件恢复为备份记录中的内容
+     */
+    public boolean restoreFromBackup(BackupEntry entry) {
+        if (entry.getContentHash() == null) {
+            // 旧版本的备份是完整副本
+            return restoreFromBackup(entry.getBackupFilePath(), entry.getOriginalFilePath());
+        }
+        String targetFilePath = entry.getOriginalFilePath();
+        STORE_LOCK.readLock().lock();
+        try {
+            // 先备份当前文件
+            backupFile(targetFilePath);
+            
+            GitObjectStore repository = GitObjectStore.forObjectPath(entry.getBackupFilePath());
+            if (repository != null) {
+                repository.copyTo(GitObjectStore.getObjectId(entry.getBackupFilePath()), entry.getContentHash(),
+                        new File(targetFilePath).toPath());
+            } else {
+                blobStore.copyTo(entry.getContentHash(), new File(targetFilePath).toPath());
+            }
+            log.log(new Status(Status.INFO, "com.filegenerator", "已从备份恢复文件: " + targetFilePath));
+            return true;
+        } catch (IOException e) {
+            log.log(new Status(Status.ERROR, "com.filegenerator", "从备份恢复文件失败: " + targetFilePath, e));
+            return false;
+        } finally {
+            STORE_LOCK.readLock().unlock();
+        }
+    }
+    
+    /**
+     * 从备份文件的完整副本恢复文件
      */
     public boolean restoreFromBackup(String backupFilePath, String targetFilePath) {
         try {
@@ -191,12 +937,12 @@ public class BackupManager {
         File[] backupFiles = backupDir.listFiles((dir, name) -> name.startsWith(fileName) && name.endsWith(".bak"));
         
         if (backupFiles != null) {
+            SimpleDateFormat sdf = new SimpleDateFormat(LEGACY_TIMESTAMP_FORMAT);
             for (File backupFile : backupFiles) {
                 String backupName = backupFile.getName();
                 // 从文件名中提取时间戳
                 try {
                     String timestampStr = backupName.substring(fileName.length() + 1, backupName.length() - 4);
-                    SimpleDateFormat sdf = new SimpleDateFormat("yyyyMMdd_HHmmss");
                     Date timestamp = sdf.parse(timestampStr);
                     
                     BackupEntry entry = new BackupEntry(filePath, backupFile.getAbsolutePath(), timestamp);
@@ -214,82 +960,560 @@ public class BackupManager {
     }
     
     /**
-     * 保存会话信息到文件
+     * 把旧版本保存在文件旁边的.filebackups目录中的完整副本迁移到备份存储，迁移后删除这些目录，
+     * 对应的索引和会话记录改为引用存储中的内容。所有目录都迁移完成后不再扫描。
+     * 
+     * @param roots 查找旧备份目录的根目录，例如各个项目的位置
+     * @param allRoots roots是否包含了所有可能有旧备份的位置；有项目关闭或无法访问时为false，迁移后仍在下次启动时再扫描
+     * @return 其中的旧备份目录被删除的目录，调用方只需刷新这些目录
      */
-    private void saveSessions() {
+    public List<File> migrateLegacyBackups(Collection<File> roots, boolean allRoots, IProgressMonitor monitor) {
+        List<File> changed = new ArrayList<>();
+        File marker = new File(getBackupRoot(), LEGACY_MIGRATED);
+        if (marker.exists()) {
+            return changed;
+        }
+        boolean complete = allRoots;
+        for (File root : roots) {
+            for (File directory : findLegacyBackupDirectories(root)) {
+                if (monitor.isCanceled()) {
+                    return changed;
+                }
+                int migrated = migrateLegacyDirectory(directory);
+                boolean removed = !directory.exists();
+                if (migrated > 0 || removed) {
+                    changed.add(directory.getParentFile());
+                }
+                if (!removed) {
+                    complete = false;
+                }
+            }
+        }
+        if (complete) {
+            try {
+                Files.createDirectories(marker.getParentFile().toPath());
+                Files.write(marker.toPath(), new byte[0]);
+            } catch (IOException e) {
+                log.log(new Status(Status.WARNING, "com.filegenerator", "记录旧备份的迁移状态失败", e));
+            }
+        }
+        return changed;
+    }
+    
+    private List<File> findLegacyBackupDirectories(File root) {
+        List<File> directories = new ArrayList<>();
+        if (!root.isDirectory()) {
+            return directories;
+        }
         try {
-            File sessionFile = getSessionFile();
-            if (sessionFile == null) {
-                log.log(new Status(Status.INFO, "com.filegenerator", "无法获取会话文件位置，跳过备份保存"));
-                return;
+            Files.walkFileTree(root.toPath(), new SimpleFileVisitor<Path>() {
+                @Override
+                public FileVisitResult preVisitDirectory(Path dir, BasicFileAttributes attrs) {
+                    String name = dir.getFileName() != null ? dir.getFileName().toString() : "";
+                    if (name.equals(BACKUP_DIR)) {
+                        directories.add(dir.toFile());
+                        return FileVisitResult.SKIP_SUBTREE;
+                    }
+                    // 跳过.git、.metadata等隐藏目录
+                    if (name.startsWith(".") && !dir.equals(root.toPath())) {
+                        return FileVisitResult.SKIP_SUBTREE;
+                    }
+                    return FileVisitResult.CONTINUE;
+                }
+                
+                @Override
+                public FileVisitResult visitFileFailed(Path file, IOException e) {
+                    return FileVisitResult.CONTINUE;
+                }
+            });
+        } catch (IOException e) {
+            log.log(new Status(Status.WARNING, "com.filegenerator", "查找旧备份目录失败: " + root, e));
+        }
+        return directories;
+    }
+    
+    /**
+     * 迁移一个旧备份目录，目录中的文件都迁移后删除该目录
+     * 
+     * @return 迁移的副本数
+     */
+    private int migrateLegacyDirectory(File directory) {
+        File[] backupFiles = directory.listFiles(File::isFile);
+        if (backupFiles == null) {
+            return 0;
+        }
+        Map<String, List<File>> byOriginal = new LinkedHashMap<>();
+        for (File backupFile : backupFiles) {
+            String name = backupFile.getName();
+            if (!name.endsWith(".bak") || name.length() <= LEGACY_SUFFIX_LENGTH) {
+                continue;
             }
-            
-            // 确保父目录存在
-            File parentDir = sessionFile.getParentFile();
-            if (!parentDir.exists()) {
-                parentDir.mkdirs();
+            String fileName = name.substring(0, name.length() - LEGACY_SUFFIX_LENGTH);
+            byOriginal.computeIfAbsent(new File(directory.getParentFile(), fileName).getAbsolutePath(),
+                    k -> new ArrayList<>()).add(backupFile);
+        }
+        int migrated = 0;
+        for (Map.Entry<String, List<File>> e : byOriginal.entrySet()) {
+            migrated += migrateLegacyFile(e.getKey(), e.getValue());
+        }
+        String[] left = directory.list();
+        if (left != null && left.length == 0 && !directory.delete()) {
+            log.log(new Status(Status.WARNING, "com.filegenerator", "删除旧备份目录失败: " + directory));
+        }
+        if (migrated > 0) {
+            log.log(new Status(Status.INFO, "com.filegenerator", "已将 " + directory + " 中的 " + migrated + " 个旧备份迁移到备份存储"));
+        }
+        return migrated;
+    }
+    
+    /**
+     * 把一个文件的旧备份保存到存储中，替换索引和会话中引用这些副本的记录，然后删除副本
+     * 
+     * @return 迁移的副本数
+     */
+    private int migrateLegacyFile(String filePath, List<File> backupFiles) {
+        STORE_LOCK.readLock().lock();
+        try {
+            synchronized (PATH_LOCKS[(filePath.hashCode() & 0x7fffffff) % PATH_LOCK_STRIPES]) {
+                synchronized (this) {
+                    return doMigrateLegacyFile(filePath, backupFiles);
+                }
             }
-            
-            try (ObjectOutputStream oos = new ObjectOutputStream(new FileOutputStream(sessionFile))) {
-                oos.writeObject(backupSessions);
+        } finally {
+            STORE_LOCK.readLock().unlock();
+        }
+    }
+    
+    private int doMigrateLegacyFile(String filePath, List<File> backupFiles) {
+        Map<String, List<BackupIndex.IndexedEntry>> existing = new HashMap<>();
+        try {
+            ensureIndex();
+            for (BackupIndex.IndexedEntry indexed : backupIndex.getEntries(filePath)) {
+                if (indexed.entry.getContentHash() == null) {
+                    existing.computeIfAbsent(indexed.entry.getBackupFilePath(), k -> new ArrayList<>()).add(indexed);
+                }
             }
-            
-            log.log(new Status(Status.INFO, "com.filegenerator", "已保存 " + backupSessions.size() + " 个备份会话"));
+        } catch (IOException e) {
+            log.log(new Status(Status.WARNING, "com.filegenerator", "读取备份索引失败: " + filePath, e));
+            return 0;
+        }
+        SimpleDateFormat sdf = new SimpleDateFormat(LEGACY_TIMESTAMP_FORMAT);
+        Map<String, Map<String, BackupEntry>> bySession = new HashMap<>();
+        List<File> migrated = new ArrayList<>();
+        for (File backupFile : backupFiles) {
+            String name = backupFile.getName();
+            try {
+                Date timestamp = sdf.parse(name.substring(name.length() - LEGACY_SUFFIX_LENGTH + 1, name.length() - 4));
+                ContentDigest digest = blobStore.store(backupFile.toPath(), codec);
+                BlobStore.Blob stored = blobStore.find(digest.hash);
+                if (stored == null) {
+                    throw new IOException("备份内容不存在: " + digest.hash);
+                }
+                BackupEntry entry = new BackupEntry(filePath, stored.file.getAbsolutePath(), timestamp, digest.hash,
+                        digest.size, backupFile.lastModified(), getStoredCodec(stored));
+                String legacyPath = backupFile.getAbsolutePath();
+                List<BackupIndex.IndexedEntry> replaced = existing.getOrDefault(legacyPath, Collections.emptyList());
+                if (replaced.isEmpty()) {
+                    backupIndex.add(entry, null);
+                }
+                for (BackupIndex.IndexedEntry indexed : replaced) {
+                    backupIndex.add(entry, indexed.sessionId);
+                    if (indexed.sessionId != null) {
+                        bySession.computeIfAbsent(indexed.sessionId, k -> new HashMap<>()).put(legacyPath, entry);
+                    }
+                }
+                if (!replaced.isEmpty()) {
+                    backupIndex.removeEntries(filePath, replaced);
+                }
+                migrated.add(backupFile);
+            } catch (Exception e) {
+                log.log(new Status(Status.WARNING, "com.filegenerator", "迁移旧备份失败: " + backupFile, e));
+            }
+        }
+        for (Map.Entry<String, Map<String, BackupEntry>> e : bySession.entrySet()) {
+            BackupSession session = sessionsById.get(e.getKey());
+            Map<String, BackupEntry> replacements = e.getValue();
+            if (session == null || !session.removeBackupEntries(
+                    entry -> entry.getContentHash() == null && replacements.containsKey(entry.getBackupFilePath()))) {
+                continue;
+            }
+            session.addFile(filePath);
+            for (BackupEntry entry : replacements.values()) {
+                session.addBackupEntry(entry);
+            }
+            appendSession(session);
+        }
+        try {
+            if (!backupIndex.isLegacyScanned(filePath)) {
+                // 副本已迁移，不需要再扫描文件旁边的目录
+                backupIndex.addLegacy(filePath, Collections.emptyList());
+            }
+        } catch (IOException e) {
+            log.log(new Status(Status.WARNING, "com.filegenerator", "更新备份索引失败: " + filePath, e));
+        }
+        int count = 0;
+        for (File backupFile : migrated) {
+            // 索引和会话已经引用存储中的内容，删除失败只留下多余的副本
+            if (backupFile.delete()) {
+                count++;
+            }
+        }
+        return count;
+    }
+    
+    /**
+     * 向会话日志追加一个会话
+     */
+    private void appendSession(BackupSession session) {
+        try {
+            sessionJournal.append(session);
         } catch (IOException e) {
             log.log(new Status(Status.WARNING, "com.filegenerator", "保存备份会话失败，但不影响主要功能", e));
         }
+        if (gitBackend) {
+            // 关闭时不需要读取会话的备份记录，延迟加载的会话保持未加载；会话删除时仍会删除已有的引用
+            updateSessionRefs(session, false);
+        }
     }
     
     /**
-     * 从文件加载会话信息
+     * 从会话日志加载会话信息，日志不存在时迁移旧版本的会话文件
      */
-    @SuppressWarnings("unchecked")
-    private void loadSessions() {
+    private List<BackupSession> loadSessions() {
+        List<BackupSession> sessions;
         try {
-            File sessionFile = getSessionFile();
-            if (sessionFile == null || !sessionFile.exists()) {
-                backupSessions = new ArrayList<>();
-                return;
-            }
-            
-            try (ObjectInputStream ois = new ObjectInputStream(new FileInputStream(sessionFile))) {
-                Object obj = ois.readObject();
-                if (obj instanceof List<?>) {
-                    backupSessions = (List<BackupSession>) obj;
-                    log.log(new Status(Status.INFO, "com.filegenerator", "已加载 " + backupSessions.size() + " 个备份会话"));
-                }
+            if (!sessionJournal.exists()) {
+                migrateLegacySessions();
             }
+            sessions = sessionJournal.load();
+            log.log(new Status(Status.INFO, "com.filegenerator", "已加载 " + sessions.size() + " 个备份会话"));
         } catch (Exception e) {
             log.log(new Status(Status.WARNING, "com.filegenerator", "加载备份会话失败，将使用新的会话", e));
             // 如果加载失败，使用空列表
-            backupSessions = new ArrayList<>();
+            return new ArrayList<>();
         }
+        scheduleCompactionIfNeeded();
+        return sessions;
     }
     
     /**
-     * 获取会话文件位置，兼容多种环境
+     * 把旧版本用Java序列化保存的会话列表写入会话日志，完成后旧文件改名保留
      */
-    private File getSessionFile() {
-        try {
-            // 首先尝试插件状态位置
-            if (Platform.getBundle("com.filegenerator") != null) {
-                File dataDir = Platform.getStateLocation(Platform.getBundle("com.filegenerator")).toFile();
-                return new File(dataDir, SESSION_FILE);
+    @SuppressWarnings("unchecked")
+    private void migrateLegacySessions() throws IOException, ClassNotFoundException {
+        File legacyFile = getSessionFile();
+        if (legacyFile == null || !legacyFile.exists()) {
+            return;
+        }
+        List<BackupSession> sessions;
+        try (ObjectInputStream ois = new ObjectInputStream(new FileInputStream(legacyFile))) {
+            Object obj = ois.readObject();
+            if (!(obj instanceof List<?>)) {
+                return;
             }
-        } catch (Exception e) {
-            // 如果插件状态位置不可用，忽略错误
+            sessions = (List<BackupSession>) obj;
+        }
+        sessionJournal.rewrite(sessions);
+        Files.move(legacyFile.toPath(), new File(legacyFile.getPath() + ".migrated").toPath(),
+                StandardCopyOption.REPLACE_EXISTING);
+        log.log(new Status(Status.INFO, "com.filegenerator", "已将 " + sessions.size() + " 个备份会话迁移到会话日志"));
+    }
+    
+    /**
+     * 已删除或被替换的记录多于有效记录时，在后台重写会话日志
+     */
+    private void scheduleCompactionIfNeeded() {
+        if (!sessionJournal.needsCompaction()) {
+            return;
+        }
+        Job job = new Job("Compact backup sessions") {
+            @Override
+            protected IStatus run(IProgressMonitor monitor) {
+                try {
+                    sessionJournal.compact();
+                } catch (IOException e) {
+                    log.log(new Status(Status.WARNING, "com.filegenerator", "压缩备份会话日志失败", e));
+                }
+                return Status.OK_STATUS;
+            }
+        };
+        job.setSystem(true);
+        job.setPriority(Job.DECORATE);
+        job.schedule();
+    }
+    
+    /**
+     * 文件的备份记录超出保留策略时，加入后台清理的队列
+     */
+    private void checkRetention(String filePath) throws IOException {
+        List<BackupIndex.IndexedEntry> entries = backupIndex.getEntries(filePath);
+        boolean prune = maxVersionsPerFile > 0 && entries.size() > maxVersionsPerFile;
+        for (int i = 0; i < entries.size() && !prune; i++) {
+            prune = isExpired(entries.get(i).entry.getTimestamp());
+        }
+        if (prune) {
+            pendingPrunePaths.add(filePath);
+            schedulePrune();
+        }
+    }
+    
+    private boolean isExpired(Date timestamp) {
+        int days = maxAgeDays;
+        return days > 0 && timestamp.getTime() < System.currentTimeMillis() - days * DAY_MILLIS;
+    }
+    
+    private void schedulePrune() {
+        pruneJob.schedule(PRUNE_DELAY);
+    }
+    
+    /**
+     * 执行一批清理：删除过期或超出数量的会话，删除文件过多或过旧的版本，把旧版本改为差异保存，然后回收不再引用的内容。
+     * 
+     * @return 是否还有剩余的工作
+     */
+    private boolean prune(IProgressMonitor monitor) throws IOException {
+        boolean removed = false;
+        for (String sessionId : getExpiredSessions(PRUNE_BATCH_SIZE)) {
+            if (monitor.isCanceled()) {
+                return true;
+            }
+            removed |= removeBackupSession(sessionId);
+        }
+        for (String filePath : takePendingPrunePaths(PRUNE_BATCH_SIZE)) {
+            if (monitor.isCanceled()) {
+                return true;
+            }
+            removed |= pruneVersions(filePath);
         }
+        processPendingDeltas(monitor);
+        if (monitor.isCanceled()) {
+            return true;
+        }
+        boolean more = !pendingPrunePaths.isEmpty() || !pendingDeltas.isEmpty() || !getExpiredSessions(1).isEmpty();
         
+        long limit = maxTotalBytes;
+        if (removed || estimatedStoreBytes.get() < 0 || (limit > 0 && estimatedStoreBytes.get() > limit)) {
+            long total = collectGarbage();
+            more |= !pendingPrunePaths.isEmpty();
+            if (limit > 0 && total > limit) {
+                more |= enforceQuota(total, limit);
+            } else {
+                quotaBytesBeforeRemoval = -1;
+            }
+        }
+        return more;
+    }
+    
+    /**
+     * 存储超出空间限额时删除最旧的会话，下一次回收后再检查。
+     * 会话之外的记录（恢复前的备份、迁移的旧版本备份）占用的空间不能通过删除会话释放，
+     * 它们按保存期限清理；上一次删除会话没有释放空间时也不再继续删除。
+     * 
+     * @return 是否还需要再检查一次
+     */
+    private boolean enforceQuota(long total, long limit) throws IOException {
+        long unowned = unownedStoreBytes;
+        long previous = quotaBytesBeforeRemoval;
+        quotaBytesBeforeRemoval = -1;
+        if (unowned >= limit) {
+            log.log(new Status(Status.WARNING, "com.filegenerator", "备份存储占用 " + total + " 字节，超出限额，其中 "
+                    + unowned + " 字节不属于任何备份会话，删除会话不能释放，将按保存期限清理"));
+            return false;
+        }
+        if (previous >= 0 && total >= previous) {
+            log.log(new Status(Status.WARNING, "com.filegenerator",
+                    "备份存储占用 " + total + " 字节，超出限额，但删除备份会话没有释放空间，停止删除"));
+            return false;
+        }
+        List<String> oldest = getOldestSessions(PRUNE_BATCH_SIZE / 10);
+        if (oldest.isEmpty()) {
+            log.log(new Status(Status.WARNING, "com.filegenerator",
+                    "备份存储占用 " + total + " 字节，超出限额，但已没有可删除的备份会话"));
+            return false;
+        }
+        for (String sessionId : oldest) {
+            removeBackupSession(sessionId);
+        }
+        quotaBytesBeforeRemoval = total;
+        return true;
+    }
+    
+    /**
+     * 超过保存期限或超出会话数量限制的会话，最旧的在前
+     */
+    private synchronized List<String> getExpiredSessions(int limit) {
+        List<BackupSession> sorted = new ArrayList<>(backupSessions);
+        Collections.sort(sorted, (a, b) -> a.getTimestamp().compareTo(b.getTimestamp()));
+        int excess = maxSessions > 0 ? sorted.size() - maxSessions : 0;
+        List<String> expired = new ArrayList<>();
+        for (int i = 0; i < sorted.size() && expired.size() < limit; i++) {
+            BackupSession session = sorted.get(i);
+            if (i < excess || isExpired(session.getTimestamp())) {
+                expired.add(session.getSessionId());
+            } else {
+                break;
+            }
+        }
+        return expired;
+    }
+    
+    private synchronized List<String> getOldestSessions(int count) {
+        List<BackupSession> sorted = new ArrayList<>(backupSessions);
+        Collections.sort(sorted, (a, b) -> a.getTimestamp().compareTo(b.getTimestamp()));
+        List<String> oldest = new ArrayList<>();
+        for (int i = 0; i < sorted.size() && i < Math.max(1, count); i++) {
+            oldest.add(sorted.get(i).getSessionId());
+        }
+        return oldest;
+    }
+    
+    private List<String> takePendingPrunePaths(int limit) {
+        List<String> paths = new ArrayList<>();
+        synchronized (pendingPrunePaths) {
+            Iterator<String> iterator = pendingPrunePaths.iterator();
+            while (iterator.hasNext() && paths.size() < limit) {
+                paths.add(iterator.next());
+                iterator.remove();
+            }
+        }
+        return paths;
+    }
+    
+    /**
+     * 删除文件超出数量限制或过期的备份版本，同时更新所属的会话和索引
+     */
+    private synchronized boolean pruneVersions(String filePath) throws IOException {
+        List<BackupIndex.IndexedEntry> entries = backupIndex.getEntries(filePath);
+        Collections.sort(entries, (a, b) -> a.entry.getTimestamp().compareTo(b.entry.getTimestamp()));
+        int excess = maxVersionsPerFile > 0 ? entries.size() - maxVersionsPerFile : 0;
+        List<BackupIndex.IndexedEntry> expired = new ArrayList<>();
+        Map<String, Set<String>> expiredBySession = new HashMap<>();
+        for (int i = 0; i < entries.size(); i++) {
+            BackupIndex.IndexedEntry indexed = entries.get(i);
+            // 打开的会话还没有写入日志，它的记录留到下一次
+            if (indexed.sessionId != null && openSessionIds.contains(indexed.sessionId)) {
+                continue;
+            }
+            if (i < excess || isExpired(indexed.entry.getTimestamp())) {
+                expired.add(indexed);
+                if (indexed.sessionId != null) {
+                    expiredBySession.computeIfAbsent(indexed.sessionId, k -> new HashSet<>()).add(entryKey(indexed.entry));
+                }
+            }
+        }
+        if (expired.isEmpty()) {
+            return false;
+        }
+        for (Map.Entry<String, Set<String>> e : expiredBySession.entrySet()) {
+            BackupSession session = sessionsById.get(e.getKey());
+            if (session == null || !session.removeBackupEntries(entry -> e.getValue().contains(entryKey(entry)))) {
+                continue;
+            }
+            if (session.getBackupEntries().isEmpty()) {
+                removeBackupSession(session.getSessionId());
+            } else {
+                // 用删除了这些记录的会话替换日志中的记录
+                appendSession(session);
+            }
+        }
+        backupIndex.removeEntries(filePath, expired);
+        for (BackupIndex.IndexedEntry indexed : expired) {
+            if (indexed.entry.getContentHash() == null) {
+                // 旧版本保存在文件旁边的完整副本
+                Files.deleteIfExists(new File(indexed.entry.getBackupFilePath()).toPath());
+            }
+        }
+        log.log(new Status(Status.INFO, "com.filegenerator", "已删除 " + filePath + " 的 " + expired.size() + " 个旧备份版本"));
+        return true;
+    }
+    
+    private static String entryKey(BackupEntry entry) {
+        return entry.getOriginalFilePath() + "\n" + entry.getContentHash() + "\n" + entry.getTimestamp().getTime()
+                + "\n" + entry.getBackupFilePath();
+    }
+    
+    /**
+     * 删除存储中不再有备份记录引用的内容（标记-清除）。被引用的差异所依赖的基准内容也会保留。
+     * 标记时顺便统计只被会话之外的记录引用的空间，并把有过期记录的文件加入清理队列。
+     * 标记在锁外进行；清除时持有写锁，并对每个候选内容重新检查索引，标记之后新备份的内容不会被删除。
+     * 
+     * @return 回收后存储占用的字节数
+     */
+    private long collectGarbage() throws IOException {
+        ensureIndex();
+        Map<String, Long> stored = blobStore.listContent();
+        int days = maxAgeDays;
+        BackupIndex.ContentUsage usage = backupIndex.scanContent(
+                days > 0 ? System.currentTimeMillis() - days * DAY_MILLIS : 0);
+        // 会话之外的过期记录没有会话可以删除，交给按文件的清理
+        pendingPrunePaths.addAll(usage.expiredUnownedPaths);
+        Set<String> live = new HashSet<>(usage.referenced);
+        Deque<String> pending = new ArrayDeque<>(live);
+        while (!pending.isEmpty()) {
+            String base = blobStore.getDeltaBase(pending.pop());
+            if (base != null && live.add(base)) {
+                pending.push(base);
+            }
+        }
+        long total = 0;
+        long unowned = 0;
+        int deleted = 0;
+        long freed = 0;
+        STORE_LOCK.writeLock().lock();
         try {
-            // 尝试使用临时目录
-            File tempDir = new File(System.getProperty("java.io.tmpdir"), "filegenerator");
-            return new File(tempDir, SESSION_FILE);
-        } catch (Exception e) {
-            // 如果临时目录也不可用，记录警告
-            log.log(new Status(Status.WARNING, "com.filegenerator", "无法确定备份存储位置", e));
+            for (Map.Entry<String, Long> e : stored.entrySet()) {
+                String hash = e.getKey();
+                if (live.contains(hash) || !backupIndex.getEntriesWithContent(hash).isEmpty()) {
+                    total += e.getValue();
+                    if (usage.unowned.contains(hash)) {
+                        unowned += e.getValue();
+                    }
+                    continue;
+                }
+                blobStore.delete(hash);
+                deleted++;
+                freed += e.getValue();
+            }
+        } finally {
+            STORE_LOCK.writeLock().unlock();
+        }
+        estimatedStoreBytes.set(total);
+        unownedStoreBytes = unowned;
+        if (deleted > 0) {
+            log.log(new Status(Status.INFO, "com.filegenerator",
+                    "已回收 " + deleted + " 份不再引用的备份内容，释放 " + freed + " 字节"));
+        }
+        return total;
+    }
+    
+    /**
+     * 在后台按保留策略分批清理备份，每次处理一批，有剩余时重新调度
+     */
+    private class PruneJob extends Job {
+        PruneJob() {
+            super("Prune backups");
+            setSystem(true);
+            setPriority(Job.DECORATE);
         }
         
-        return null;
+        @Override
+        protected IStatus run(IProgressMonitor monitor) {
+            try {
+                if (prune(monitor) && !monitor.isCanceled()) {
+                    schedule(PRUNE_DELAY);
+                }
+            } catch (IOException e) {
+                log.log(new Status(Status.WARNING, "com.filegenerator", "清理备份失败", e));
+            }
+            return monitor.isCanceled() ? Status.CANCEL_STATUS : Status.OK_STATUS;
+        }
+    }
+    
+    /**
+     * 获取旧版本会话文件位置，兼容多种环境
+     */
+    private File getSessionFile() {
+        return StateLocation.getFile(SESSION_FILE);
     }
     
     /**
@@ -301,6 +1525,13 @@ public class BackupManager {
         private String originalFilePath;
         private String backupFilePath;
         private Date timestamp;
+        // 备份内容的SHA-256，旧版本的完整副本为null
+        private String contentHash;
+        private long size;
+        // 备份时原文件的修改时间
+        private long lastModified;
+        // 备份内容的编码方式，旧版本的备份为null
+        private BackupCodec codec;
         
         public BackupEntry(String originalFilePath, String backupFilePath, Date timestamp) {
             this.originalFilePath = originalFilePath;
@@ -308,6 +1539,15 @@ public class BackupManager {
             this.timestamp = timestamp;
         }
         
+        public BackupEntry(String originalFilePath, String backupFilePath, Date timestamp, String contentHash,
+                long size, long lastModified, BackupCodec codec) {
+            this(originalFilePath, backupFilePath, timestamp);
+            this.contentHash = contentHash;
+            this.size = size;
+            this.lastModified = lastModified;
+            this.codec = codec;
+        }
+        
         public String getOriginalFilePath() {
             return originalFilePath;
         }
@@ -320,6 +1560,22 @@ public class BackupManager {
             return timestamp;
         }
         
+        public String getContentHash() {
+            return contentHash;
+        }
+        
+        public long getSize() {
+            return size;
+        }
+        
+        public long getLastModified() {
+            return lastModified;
+        }
+        
+        public BackupCodec getCodec() {
+            return codec != null ? codec : BackupCodec.NONE;
+        }
+        
         @Override
         public String toString() {
             return new SimpleDateFormat("yyyy-MM-dd HH:mm:ss").format(timestamp);
@@ -1,10 +1,17 @@
 package com.filegenerator.core;
 
+import java.io.IOException;
 import java.io.Serializable;
 import java.util.ArrayList;
 import java.util.Date;
+import java.util.HashSet;
 import java.util.List;
+import java.util.Set;
 import java.util.UUID;
+import java.util.function.Predicate;
+
+import org.eclipse.core.runtime.Platform;
+import org.eclipse.core.runtime.Status;
 
 /**
  * 表示一次备份会话，包含同一次操作中备份的多个文件
@@ -17,6 +24,11 @@ public class BackupSession implements Serializable {
     private List<BackupManager.BackupEntry> backupEntries;
     private String description;
     
+    // 只加载了会话头时，从该日志的指定位置读取文件列表和备份记录
+    private transient SessionJournal journal;
+    private transient long journalOffset;
+    private transient int fileCount;
+    
     public BackupSession() {
         this.sessionId = UUID.randomUUID().toString();
         this.timestamp = new Date();
@@ -24,6 +36,21 @@ public class BackupSession implements Serializable {
         this.backupEntries = new ArrayList<>();
     }
     
+    /**
+     * 从会话日志中恢复的会话头，文件列表和备份记录在第一次使用时读取
+     */
+    BackupSession(String sessionId, Date timestamp, String description, int fileCount, SessionJournal journal,
+            long journalOffset) {
+        this.sessionId = sessionId;
+        this.timestamp = timestamp;
+        this.description = description;
+        this.fileCount = fileCount;
+        this.files = new ArrayList<>();
+        this.backupEntries = new ArrayList<>();
+        this.journal = journal;
+        this.journalOffset = journalOffset;
+    }
+    
     public String getSessionId() {
         return sessionId;
     }
@@ -32,34 +59,101 @@ public class BackupSession implements Serializable {
         return timestamp;
     }
     
-    public void addFile(String filePath) {
+    public synchronized void addFile(String filePath) {
         if (!files.contains(filePath)) {
             files.add(filePath);
         }
     }
     
-    public List<String> getFiles() {
-        return files;
+    /**
+     * 文件列表的快照，之后添加的文件不会出现在返回的列表中
+     */
+    public synchronized List<String> getFiles() {
+        ensureLoaded();
+        return new ArrayList<>(files);
     }
     
-    public void addBackupEntry(BackupManager.BackupEntry entry) {
+    public synchronized void addBackupEntry(BackupManager.BackupEntry entry) {
         backupEntries.add(entry);
     }
     
-    public List<BackupManager.BackupEntry> getBackupEntries() {
-        return backupEntries;
+    /**
+     * 备份记录的快照，同一会话可能有多个线程在同时备份
+     */
+    public synchronized List<BackupManager.BackupEntry> getBackupEntries() {
+        ensureLoaded();
+        return new ArrayList<>(backupEntries);
+    }
+    
+    /**
+     * 读取会话的备份记录但不保留在内存中，未加载的会话保持未加载；已加载时返回快照
+     */
+    synchronized List<BackupManager.BackupEntry> readBackupEntries() throws IOException {
+        if (journal == null) {
+            return new ArrayList<>(backupEntries);
+        }
+        BackupSession copy = new BackupSession(sessionId, timestamp, description, fileCount, journal, journalOffset);
+        journal.loadEntries(copy, journalOffset);
+        return copy.backupEntries;
+    }
+    
+    /**
+     * 删除满足条件的备份记录，文件不再有备份记录时从文件列表中删除
+     * 
+     * @return 是否删除了记录
+     */
+    synchronized boolean removeBackupEntries(Predicate<BackupManager.BackupEntry> filter) {
+        ensureLoaded();
+        if (!backupEntries.removeIf(filter)) {
+            return false;
+        }
+        Set<String> remaining = new HashSet<>();
+        for (BackupManager.BackupEntry entry : backupEntries) {
+            remaining.add(entry.getOriginalFilePath());
+        }
+        files.retainAll(remaining);
+        return true;
+    }
+    
+    public synchronized String getDescription() {
+        return description != null ? description : "修改了 " + getFileCount() + " 个文件";
     }
     
-    public String getDescription() {
-        return description != null ? description : "修改了 " + files.size() + " 个文件";
+    /**
+     * 设置的描述，没有设置时为null
+     */
+    synchronized String getStoredDescription() {
+        return description;
     }
     
-    public void setDescription(String description) {
+    public synchronized void setDescription(String description) {
         this.description = description;
     }
     
-    public int getFileCount() {
-        return files.size();
+    public synchronized int getFileCount() {
+        return journal != null ? fileCount : files.size();
+    }
+    
+    /**
+     * 会话的备份记录是否已在内存中
+     */
+    public synchronized boolean isLoaded() {
+        return journal == null;
+    }
+    
+    private synchronized void ensureLoaded() {
+        if (journal == null) {
+            return;
+        }
+        try {
+            journal.loadEntries(this, journalOffset);
+        } catch (IOException e) {
+            files.clear();
+            backupEntries.clear();
+            Platform.getLog(Platform.getBundle("com.filegenerator")).log(
+                    new Status(Status.ERROR, "com.filegenerator", "读取备份会话失败: " + sessionId, e));
+        }
+        journal = null;
     }
 }
 
@@ -0,0 +1,73 @@
+package com.filegenerator.core;
+
+import java.io.File;
+
+/**
+ * 一个打开的备份会话。通过它备份的文件都记录在这个会话中，关闭时会话写入会话日志。
+ * 多个操作可以各自打开会话、同时备份，互不影响；同一个会话也可以被多个线程同时使用。
+ */
+public class BackupSessionHandle implements AutoCloseable {
+    private final BackupManager manager;
+    private final BackupSession session;
+    private volatile boolean open = true;
+
+    BackupSessionHandle(BackupManager manager, BackupSession session) {
+        this.manager = manager;
+        this.session = session;
+    }
+
+    /**
+     * 在覆盖文件前创建备份，记录在这个会话中
+     *
+     * @see BackupManager#backupFile(String)
+     */
+    public String backupFile(String filePath) {
+        return manager.backup(session, new File(filePath), null, false, null);
+    }
+
+    /**
+     * 把文件重命名到备份存储中，记录在这个会话中
+     *
+     * @see BackupManager#backupFileByMove(String)
+     */
+    public String backupFileByMove(String filePath) {
+        return manager.backup(session, new File(filePath), null, true, null);
+    }
+
+    /**
+     * 用调用方已经读入内存的内容创建备份，记录在这个会话中
+     *
+     * @see BackupManager#backupContent(String, byte[])
+     */
+    public String backupContent(String filePath, byte[] content) {
+        return manager.backupContent(session, filePath, content);
+    }
+
+    /**
+     * 把file移入备份存储，记录为originalFilePath的备份（为null时为file本身），用于事务提交时被替换下来的原文件
+     *
+     * @param known 内容清单中file的摘要及当时的修改时间，未知时为null
+     */
+    String backupFileByMove(File file, String originalFilePath, ContentManifest.Entry known) {
+        return manager.backup(session, file, originalFilePath, true, known);
+    }
+
+    public BackupSession getSession() {
+        return session;
+    }
+
+    public boolean isOpen() {
+        return open;
+    }
+
+    /**
+     * 结束会话。会话中有备份的文件时写入会话日志，重复调用没有作用。
+     */
+    @Override
+    public synchronized void close() {
+        if (open) {
+            open = false;
+            manager.closeSession(session);
+        }
+    }
+}
@@ -0,0 +1,416 @@
+package com.filegenerator.core;
+
+import java.io.BufferedReader;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.security.MessageDigest;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ThreadLocalRandom;
+
+import com.filegenerator.core.ContentManifest.ContentDigest;
+
+/**
+ * 按内容寻址的备份存储，每份内容以其SHA-256命名，只保存一次：blobs/ab/cdef...
+ * 相同内容的文件无论备份多少次都只占用一份空间，已存在的内容不会再复制。
+ * 内容可以压缩保存，文件名后缀表示编码方式；哈希总是按原始内容计算，不同编码方式之间也能去重。
+ * 同一文件的旧版本可以保存为相对较新版本的反向差异：deltas/ab/cdef...，第一行是基准内容的哈希。
+ */
+class BlobStore {
+	private static final String BLOB_DIR = "blobs";
+	private static final String DELTA_DIR = "deltas";
+	private static final String DELTA_HEADER = "base ";
+	// 读取时允许的最大差异链长度，正常情况下链长度受BackupManager的设置限制，远小于此值
+	private static final int MAX_CHAIN_LENGTH = 1000;
+	private static final int BUFFER_SIZE = 64 * 1024;
+	// SHA-256的十六进制长度
+	private static final int HASH_LENGTH = 64;
+
+	private final File root;
+
+	BlobStore(File root) {
+		this.root = root;
+	}
+
+	File getRoot() {
+		return root;
+	}
+
+	/**
+	 * 存储中的一份内容
+	 */
+	static class Blob {
+		final File file;
+		final BackupCodec codec;
+
+		Blob(File file, BackupCodec codec) {
+			this.file = file;
+			this.codec = codec;
+		}
+	}
+
+	private File getBlobFile(String hash, BackupCodec codec) {
+		return new File(new File(new File(root, BLOB_DIR), hash.substring(0, 2)), hash.substring(2) + codec.getSuffix());
+	}
+
+	/**
+	 * 查找完整保存的内容，不存在（或只有差异）时返回null
+	 */
+	Blob find(String hash) {
+		for (BackupCodec codec : BackupCodec.values()) {
+			File file = getBlobFile(hash, codec);
+			if (file.isFile()) {
+				return new Blob(file, codec);
+			}
+		}
+		return null;
+	}
+
+	/**
+	 * 内容是否可以还原：完整保存，或者保存为相对其他内容的差异
+	 */
+	boolean contains(String hash) {
+		return find(hash) != null || getDeltaFile(hash).isFile();
+	}
+
+	File getDeltaFile(String hash) {
+		return new File(new File(new File(root, DELTA_DIR), hash.substring(0, 2)), hash.substring(2));
+	}
+
+	/**
+	 * 差异的基准内容的哈希，内容不是按差异保存时返回null
+	 */
+	String getDeltaBase(String hash) throws IOException {
+		File file = getDeltaFile(hash);
+		if (!file.isFile()) {
+			return null;
+		}
+		try (BufferedReader reader = Files.newBufferedReader(file.toPath(), StandardCharsets.UTF_8)) {
+			String header = reader.readLine();
+			if (header == null || !header.startsWith(DELTA_HEADER)) {
+				throw new IOException("差异文件已损坏: " + file);
+			}
+			return header.substring(DELTA_HEADER.length());
+		}
+	}
+
+	/**
+	 * 把hash的内容保存为相对baseHash的差异，并删除完整保存的内容
+	 */
+	void replaceWithDelta(String hash, String baseHash, String delta) throws IOException {
+		File file = getDeltaFile(hash);
+		Files.createDirectories(file.getParentFile().toPath());
+		Path temp = file.toPath().resolveSibling(file.getName() + "." + Long.toHexString(ThreadLocalRandom.current().nextLong()) + ".tmp");
+		try {
+			Files.write(temp, (DELTA_HEADER + baseHash + "\n" + delta).getBytes(StandardCharsets.UTF_8),
+					StandardOpenOption.CREATE_NEW);
+			try {
+				Files.move(temp, file.toPath(), StandardCopyOption.ATOMIC_MOVE);
+			} catch (AtomicMoveNotSupportedException e) {
+				Files.move(temp, file.toPath(), StandardCopyOption.REPLACE_EXISTING);
+			}
+		} finally {
+			Files.deleteIfExists(temp);
+		}
+		Blob blob = find(hash);
+		if (blob != null) {
+			Files.delete(blob.file.toPath());
+		}
+	}
+
+	private void deleteDelta(String hash) throws IOException {
+		// 内容重新完整保存后不再需要差异
+		Files.deleteIfExists(getDeltaFile(hash).toPath());
+	}
+
+	/**
+	 * 读取完整内容，按差异保存的内容沿差异链从完整保存的版本还原，并校验哈希
+	 */
+	byte[] read(String hash) throws IOException {
+		List<String> chain = new ArrayList<>();
+		String current = hash;
+		Blob blob;
+		while ((blob = find(current)) == null) {
+			if (chain.size() > MAX_CHAIN_LENGTH || chain.contains(current)) {
+				throw new IOException("差异链过长或存在循环: " + hash);
+			}
+			chain.add(current);
+			current = getDeltaBase(current);
+			if (current == null) {
+				throw new IOException("备份内容不存在: " + chain.get(chain.size() - 1));
+			}
+		}
+		byte[] content;
+		try (InputStream in = blob.codec.decode(Files.newInputStream(blob.file.toPath()))) {
+			content = readAll(in);
+		}
+		for (int i = chain.size() - 1; i >= 0; i--) {
+			String deltaHash = chain.get(i);
+			String delta = new String(Files.readAllBytes(getDeltaFile(deltaHash).toPath()), StandardCharsets.UTF_8);
+			String restored = ReverseDelta.apply(new String(content, StandardCharsets.UTF_8),
+					delta.substring(delta.indexOf('\n') + 1));
+			if (restored == null) {
+				throw new IOException("无法应用差异: " + deltaHash);
+			}
+			content = restored.getBytes(StandardCharsets.UTF_8);
+		}
+		String actual = ContentManifest.toHex(ContentManifest.newMessageDigest().digest(content));
+		if (!actual.equals(hash)) {
+			throw new IOException("还原的内容与哈希不一致: " + hash);
+		}
+		return content;
+	}
+
+	private static byte[] readAll(InputStream in) throws IOException {
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		byte[] buffer = new byte[BUFFER_SIZE];
+		int read;
+		while ((read = in.read(buffer)) != -1) {
+			out.write(buffer, 0, read);
+		}
+		return out.toByteArray();
+	}
+
+	/**
+	 * 保存file的内容。先计算哈希，存储中已有相同内容时不复制任何数据。
+	 *
+	 * @param codec 需要复制时使用的编码方式
+	 * @return 实际保存的内容的摘要
+	 */
+	ContentDigest store(Path file, BackupCodec codec) throws IOException {
+		ContentDigest digest = ContentManifest.digest(file);
+		if (find(digest.hash) != null) {
+			return digest;
+		}
+		return copyIn(file, codec);
+	}
+
+	/**
+	 * 把file重命名到存储中，不复制数据；调用方随后重新写入该文件。
+	 * 存储中已有相同内容时不移动，文件留在原处。不在同一文件系统上时退回复制。
+	 *
+	 * 移入的内容不压缩。
+	 *
+	 * @param known 调用方已知的文件摘要及计算摘要时文件的修改时间，未知时为null。
+	 *        文件当前的大小或修改时间与之不同时不使用，读取文件重新计算
+	 * @param fallbackCodec 退回复制时使用的编码方式
+	 * @return 文件内容的摘要
+	 */
+	ContentDigest moveIn(Path file, ContentManifest.Entry known, BackupCodec fallbackCodec) throws IOException {
+		long lastModified = Files.getLastModifiedTime(file).toMillis();
+		ContentDigest digest;
+		if (known != null && known.lastModified == lastModified && known.digest.size == Files.size(file)) {
+			digest = known.digest;
+		} else {
+			// 修改时间在读取之前获取，读取期间文件被修改时移动后会按实际内容重新计算
+			digest = ContentManifest.digest(file);
+		}
+		if (find(digest.hash) != null) {
+			return digest;
+		}
+		File blob = getBlobFile(digest.hash, BackupCodec.NONE);
+		File parent = blob.getParentFile();
+		if (!parent.isDirectory() && !parent.mkdirs() && !parent.isDirectory()) {
+			throw new IOException("无法创建目录: " + parent);
+		}
+		try {
+			Files.move(file, blob.toPath(), StandardCopyOption.ATOMIC_MOVE);
+		} catch (AtomicMoveNotSupportedException e) {
+			return copyIn(file, fallbackCodec);
+		}
+		if (blob.length() != digest.size || blob.lastModified() != lastModified) {
+			// 计算哈希之后文件又被修改过，按实际内容重新命名
+			ContentDigest actual = ContentManifest.digest(blob.toPath());
+			if (!actual.hash.equals(digest.hash)) {
+				Path moved = blob.toPath();
+				File correct = getBlobFile(actual.hash, BackupCodec.NONE);
+				if (find(actual.hash) != null) {
+					Files.delete(moved);
+				} else {
+					Files.createDirectories(correct.getParentFile().toPath());
+					Files.move(moved, correct.toPath(), StandardCopyOption.ATOMIC_MOVE);
+					correct.setReadOnly();
+					deleteDelta(actual.hash);
+				}
+				return actual;
+			}
+		}
+		blob.setReadOnly();
+		deleteDelta(digest.hash);
+		return digest;
+	}
+
+	/**
+	 * 边复制边计算哈希，文件在计算哈希之后被修改时以实际复制的内容为准
+	 */
+	private ContentDigest copyIn(Path file, BackupCodec codec) throws IOException {
+		File directory = new File(root, BLOB_DIR);
+		if (!directory.isDirectory() && !directory.mkdirs() && !directory.isDirectory()) {
+			throw new IOException("无法创建目录: " + directory);
+		}
+		Path temp = directory.toPath().resolve(Long.toHexString(ThreadLocalRandom.current().nextLong()) + ".tmp");
+		try {
+			MessageDigest messageDigest = ContentManifest.newMessageDigest();
+			long size = 0;
+			byte[] buffer = new byte[BUFFER_SIZE];
+			try (InputStream in = Files.newInputStream(file);
+					OutputStream out = codec.encode(Files.newOutputStream(temp, StandardOpenOption.CREATE_NEW))) {
+				int read;
+				while ((read = in.read(buffer)) != -1) {
+					messageDigest.update(buffer, 0, read);
+					out.write(buffer, 0, read);
+					size += read;
+				}
+			}
+			ContentDigest digest = new ContentDigest(size, ContentManifest.toHex(messageDigest.digest()));
+			install(temp, digest, codec);
+			return digest;
+		} finally {
+			Files.deleteIfExists(temp);
+		}
+	}
+
+	/**
+	 * 保存调用方已经读入内存的内容，不再读取原文件。存储中已有相同内容时不写入任何数据。
+	 * 内容按哈希命名，哈希总是按content计算，不使用调用方给出的值。
+	 *
+	 * @param codec 需要写入时使用的编码方式
+	 * @return 内容的摘要
+	 */
+	ContentDigest store(byte[] content, BackupCodec codec) throws IOException {
+		ContentDigest digest = new ContentDigest(content.length,
+				ContentManifest.toHex(ContentManifest.newMessageDigest().digest(content)));
+		if (find(digest.hash) != null) {
+			return digest;
+		}
+		File directory = new File(root, BLOB_DIR);
+		if (!directory.isDirectory() && !directory.mkdirs() && !directory.isDirectory()) {
+			throw new IOException("无法创建目录: " + directory);
+		}
+		Path temp = directory.toPath().resolve(Long.toHexString(ThreadLocalRandom.current().nextLong()) + ".tmp");
+		try {
+			try (OutputStream out = codec.encode(Files.newOutputStream(temp, StandardOpenOption.CREATE_NEW))) {
+				out.write(content);
+			}
+			install(temp, digest, codec);
+			return digest;
+		} finally {
+			Files.deleteIfExists(temp);
+		}
+	}
+
+	/**
+	 * 把写好的临时文件按哈希命名放入存储，已有相同内容时不替换
+	 */
+	private void install(Path temp, ContentDigest digest, BackupCodec codec) throws IOException {
+		if (find(digest.hash) != null) {
+			return;
+		}
+		File blob = getBlobFile(digest.hash, codec);
+		File parent = blob.getParentFile();
+		if (!parent.isDirectory() && !parent.mkdirs() && !parent.isDirectory()) {
+			throw new IOException("无法创建目录: " + parent);
+		}
+		// 多个线程可能同时保存相同内容，内容相同，谁覆盖谁都一样
+		try {
+			Files.move(temp, blob.toPath(), StandardCopyOption.ATOMIC_MOVE);
+		} catch (AtomicMoveNotSupportedException e) {
+			Files.move(temp, blob.toPath(), StandardCopyOption.REPLACE_EXISTING);
+		}
+		blob.setReadOnly();
+		deleteDelta(digest.hash);
+	}
+
+	/**
+	 * 列出存储中所有内容（完整保存的和按差异保存的）及其占用的字节数，用于回收不再引用的内容
+	 */
+	Map<String, Long> listContent() throws IOException {
+		Map<String, Long> content = new HashMap<>();
+		for (String dir : new String[] { BLOB_DIR, DELTA_DIR }) {
+			File[] shards = new File(root, dir).listFiles(File::isDirectory);
+			if (shards == null) {
+				continue;
+			}
+			for (File shard : shards) {
+				File[] files = shard.listFiles(File::isFile);
+				if (files == null) {
+					continue;
+				}
+				for (File file : files) {
+					String name = file.getName();
+					int dot = name.indexOf('.');
+					String rest = dot >= 0 ? name.substring(0, dot) : name;
+					// 跳过正在写入的临时文件
+					if (name.endsWith(".tmp") || rest.length() != HASH_LENGTH - 2) {
+						continue;
+					}
+					content.merge(shard.getName() + rest, file.length(), Long::sum);
+				}
+			}
+		}
+		return content;
+	}
+
+	/**
+	 * 删除内容的所有保存形式。调用方负责确认没有备份记录或差异引用它。
+	 */
+	void delete(String hash) throws IOException {
+		for (BackupCodec codec : BackupCodec.values()) {
+			Files.deleteIfExists(getBlobFile(hash, codec).toPath());
+		}
+		deleteDelta(hash);
+	}
+
+	/**
+	 * 把内容解码后写到target：先写入同一目录下的临时文件再替换，恢复中途失败不会破坏目标文件
+	 */
+	void copyTo(String hash, Path target) throws IOException {
+		Blob blob = find(hash);
+		if (blob == null && !contains(hash)) {
+			throw new IOException("备份内容不存在: " + hash);
+		}
+		Path temp = target.resolveSibling("." + target.getFileName() + "."
+				+ Long.toHexString(ThreadLocalRandom.current().nextLong()) + ".tmp");
+		try {
+			if (blob == null) {
+				// 按差异保存的旧版本，在内存中还原
+				Files.write(temp, read(hash), StandardOpenOption.CREATE_NEW);
+			} else if (blob.codec == BackupCodec.NONE) {
+				Files.copy(blob.file.toPath(), temp);
+				// 存储中的内容是只读的，恢复出的文件应可写
+				temp.toFile().setWritable(true);
+			} else {
+				// 解码后直接写入目标文件的通道
+				try (ReadableByteChannel in = Channels.newChannel(blob.codec.decode(Files.newInputStream(blob.file.toPath())));
+						FileChannel out = FileChannel.open(temp, StandardOpenOption.CREATE_NEW, StandardOpenOption.WRITE)) {
+					long position = 0;
+					long transferred;
+					while ((transferred = out.transferFrom(in, position, BUFFER_SIZE)) > 0) {
+						position += transferred;
+					}
+				}
+			}
+			try {
+				Files.move(temp, target, StandardCopyOption.ATOMIC_MOVE);
+			} catch (AtomicMoveNotSupportedException e) {
+				Files.move(temp, target, StandardCopyOption.REPLACE_EXISTING);
+			}
+		} finally {
+			Files.deleteIfExists(temp);
+		}
+	}
+}
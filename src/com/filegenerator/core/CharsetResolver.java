@@ -0,0 +1,15 @@
+package com.filegenerator.core;
+
+import java.nio.charset.Charset;
+
+/**
+ * 为每个要生成的文件确定字符集，例如使用Eclipse中为文件或其所在目录配置的编码
+ */
+public interface CharsetResolver {
+
+	/**
+	 * @param fullPath 要生成的文件的完整路径
+	 * @return 文件应使用的字符集，返回null表示使用生成器的默认字符集
+	 */
+	Charset getCharset(String fullPath);
+}
@@ -0,0 +1,163 @@
+package com.filegenerator.core;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.channels.WritableByteChannel;
+import java.nio.charset.Charset;
+import java.nio.charset.CharsetEncoder;
+import java.nio.charset.CoderResult;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * 把文件内容按指定字符集、换行符和BOM设置直接编码到通道中。
+ * 每个线程复用自己的CharsetEncoder和直接ByteBuffer，写大文件时不会生成中间的String或byte[]。
+ * 无法用目标字符集表示的字符会抛出异常，而不是被静默替换成乱码。
+ */
+public class ContentEncoder {
+	private static final int CHAR_CHUNK_SIZE = 8192;
+	private static final int BYTE_BUFFER_SIZE = 64 * 1024;
+
+	// 每个线程一组缓冲区；ByteBuffer是直接缓冲区，写入FileChannel时无需再复制到本地内存
+	private static final ThreadLocal<Buffers> BUFFERS = ThreadLocal.withInitial(Buffers::new);
+
+	/**
+	 * 生成文件使用的换行符。解析后的内容统一使用\n。
+	 */
+	public enum LineEnding {
+		LF("\n"),
+		CRLF("\r\n"),
+		SYSTEM(System.lineSeparator());
+
+		private final String separator;
+
+		LineEnding(String separator) {
+			this.separator = separator;
+		}
+
+		public String getSeparator() {
+			return separator;
+		}
+	}
+
+	private static class Buffers {
+		final CharBuffer chars = CharBuffer.allocate(CHAR_CHUNK_SIZE);
+		final ByteBuffer bytes = ByteBuffer.allocateDirect(BYTE_BUFFER_SIZE);
+		final Map<Charset, CharsetEncoder> encoders = new HashMap<>();
+	}
+
+	private final Charset charset;
+	private final LineEnding lineEnding;
+	private final boolean writeBom;
+
+	public ContentEncoder(Charset charset, LineEnding lineEnding, boolean writeBom) {
+		this.charset = charset;
+		this.lineEnding = lineEnding;
+		this.writeBom = writeBom;
+	}
+
+	/**
+	 * 使用\n换行、不写BOM的编码器
+	 */
+	public static ContentEncoder of(Charset charset) {
+		return new ContentEncoder(charset, LineEnding.LF, false);
+	}
+
+	public Charset getCharset() {
+		return charset;
+	}
+
+	public LineEnding getLineEnding() {
+		return lineEnding;
+	}
+
+	public boolean isWriteBom() {
+		return writeBom;
+	}
+
+	/**
+	 * 编码content并写入channel
+	 */
+	public void encode(CharSequence content, WritableByteChannel channel) throws IOException {
+		Buffers buffers = BUFFERS.get();
+		CharsetEncoder encoder = buffers.encoders.computeIfAbsent(charset, Charset::newEncoder);
+		encoder.reset();
+		ByteBuffer out = buffers.bytes;
+		out.clear();
+
+		if (writeBom && supportsBom()) {
+			encodeChunk(encoder, CharBuffer.wrap("\uFEFF"), out, channel, false);
+		}
+
+		String separator = lineEnding.getSeparator();
+		if (separator.equals("\n")) {
+			// 不需要转换换行符时直接从内容视图编码
+			encodeChunk(encoder, CharBuffer.wrap(content), out, channel, true);
+		} else {
+			encodeConvertingLineEndings(encoder, content, separator, buffers.chars, out, channel);
+		}
+
+		while (true) {
+			CoderResult result = encoder.flush(out);
+			drain(out, channel);
+			if (result.isUnderflow()) {
+				break;
+			}
+		}
+	}
+
+	private static void encodeConvertingLineEndings(CharsetEncoder encoder, CharSequence content, String separator,
+			CharBuffer in, ByteBuffer out, WritableByteChannel channel) throws IOException {
+		int length = content.length();
+		int pos = 0;
+		boolean endOfInput;
+		in.clear();
+		do {
+			while (pos < length && in.remaining() >= separator.length()) {
+				char c = content.charAt(pos++);
+				if (c == '\n') {
+					in.put(separator);
+				} else {
+					in.put(c);
+				}
+			}
+			endOfInput = pos >= length;
+			in.flip();
+			encodeChunk(encoder, in, out, channel, endOfInput);
+			// 保留未编码完的字符（例如被分在两块中的代理对）
+			in.compact();
+		} while (!endOfInput);
+	}
+
+	private static void encodeChunk(CharsetEncoder encoder, CharBuffer in, ByteBuffer out,
+			WritableByteChannel channel, boolean endOfInput) throws IOException {
+		while (true) {
+			CoderResult result = encoder.encode(in, out, endOfInput);
+			if (result.isError()) {
+				result.throwException();
+			}
+			if (result.isOverflow()) {
+				drain(out, channel);
+			} else {
+				return;
+			}
+		}
+	}
+
+	private static void drain(ByteBuffer out, WritableByteChannel channel) throws IOException {
+		out.flip();
+		while (out.hasRemaining()) {
+			channel.write(out);
+		}
+		out.clear();
+	}
+
+	/**
+	 * 只有Unicode编码有BOM；Java的UTF-16编码器本身就会写入BOM
+	 */
+	private boolean supportsBom() {
+		String name = charset.name();
+		return name.startsWith("UTF-") && !name.equals("UTF-16");
+	}
+}
@@ -0,0 +1,279 @@
+package com.filegenerator.core;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.WritableByteChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * 每个模块一份的内容清单，记录上次写入的每个文件的大小、修改时间和SHA-256。
+ * 磁盘上的文件大小和修改时间与清单一致时，直接用清单中的哈希判断内容是否变化，无需读取文件；
+ * 记录时文件刚被修改过（修改时间与记录时间相差不到文件系统的时间精度）的记录除外。
+ * 清单保存在插件状态目录中，不会在项目里留下文件。
+ */
+class ContentManifest {
+	private static final String MANIFEST_DIR = "manifests";
+	private static final String HASH_ALGORITHM = "SHA-256";
+	private static final int BUFFER_SIZE = 8192;
+	// 文件系统修改时间的最大精度（FAT为2秒），修改时间与记录时间相差在此之内时同一时刻内的修改无法区分
+	private static final long MTIME_GRANULARITY = 2000;
+
+	/**
+	 * 文件的大小和内容哈希
+	 */
+	static class ContentDigest {
+		final long size;
+		final String hash;
+
+		ContentDigest(long size, String hash) {
+			this.size = size;
+			this.hash = hash;
+		}
+
+		boolean sameAs(ContentDigest other) {
+			return other != null && size == other.size && hash.equals(other.hash);
+		}
+	}
+
+	/**
+	 * 清单中的一条记录：写入后的内容摘要以及文件当时的修改时间
+	 */
+	static class Entry {
+		final ContentDigest digest;
+		final long lastModified;
+		// 记录的时间，从磁盘加载的记录为清单文件的修改时间
+		final long recordedAt;
+
+		Entry(ContentDigest digest, long lastModified) {
+			this(digest, lastModified, System.currentTimeMillis());
+		}
+
+		Entry(ContentDigest digest, long lastModified, long recordedAt) {
+			this.digest = digest;
+			this.lastModified = lastModified;
+			this.recordedAt = recordedAt;
+		}
+
+		/**
+		 * 文件的大小和修改时间与记录一致，并且记录时修改时间已不会在同一时刻内再次出现
+		 */
+		boolean matches(long length, long modified) {
+			return lastModified == modified && digest.size == length && !isRacy(lastModified, recordedAt);
+		}
+	}
+
+	private final File manifestFile;
+	private final String basePath;
+	private final Map<String, Entry> entries = new ConcurrentHashMap<>();
+	private volatile boolean dirty;
+
+	private ContentManifest(File manifestFile, String basePath) {
+		this.manifestFile = manifestFile;
+		this.basePath = basePath;
+	}
+
+	/**
+	 * 加载模块basePath的清单，清单不存在或无法读取时返回空清单
+	 */
+	static ContentManifest load(String basePath) throws IOException {
+		String normalizedBase = new File(basePath).getAbsoluteFile().toPath().normalize().toString();
+		String name = hash(normalizedBase.getBytes(StandardCharsets.UTF_8)).substring(0, 32) + ".manifest";
+		File manifestFile = new File(StateLocation.getFile(MANIFEST_DIR), name);
+		ContentManifest manifest = new ContentManifest(manifestFile, normalizedBase);
+		if (manifestFile.isFile()) {
+			manifest.read();
+		}
+		return manifest;
+	}
+
+	Entry get(String relativePath) {
+		return entries.get(key(relativePath));
+	}
+
+	void put(String relativePath, ContentDigest digest, long lastModified) {
+		entries.put(key(relativePath), new Entry(digest, lastModified));
+		dirty = true;
+	}
+
+	void remove(String relativePath) {
+		if (entries.remove(key(relativePath)) != null) {
+			dirty = true;
+		}
+	}
+
+	/**
+	 * 文件的大小和修改时间与清单一致时返回清单中的记录，否则返回null。
+	 * 记录时文件刚被修改过的记录不可靠（同一时刻内的再次修改不会改变修改时间），同样返回null。
+	 */
+	Entry getCurrentEntry(String relativePath, File file) {
+		Entry entry = get(relativePath);
+		if (entry != null && entry.matches(file.length(), file.lastModified())) {
+			return entry;
+		}
+		return null;
+	}
+
+	/**
+	 * 判断file的内容是否与digest相同：先比较大小，再查清单，最后才流式计算文件的哈希
+	 */
+	boolean isUnchanged(String relativePath, File file, ContentDigest digest) throws IOException {
+		long length = file.length();
+		if (!file.isFile() || length != digest.size) {
+			return false;
+		}
+		long lastModified = file.lastModified();
+		Entry entry = get(relativePath);
+		if (entry != null && entry.matches(length, lastModified)) {
+			return entry.digest.sameAs(digest);
+		}
+		// 文件在清单之外被修改过、从未记录或者记录不可靠，读取文件计算哈希，并更新清单
+		ContentDigest current = digest(file.toPath());
+		put(relativePath, current, lastModified);
+		return current.sameAs(digest);
+	}
+
+	/**
+	 * 清单有变化时保存，先写临时文件再替换，避免留下不完整的清单
+	 */
+	void save() throws IOException {
+		if (!dirty) {
+			return;
+		}
+		File directory = manifestFile.getParentFile();
+		if (!directory.isDirectory() && !directory.mkdirs()) {
+			throw new IOException("无法创建目录: " + directory);
+		}
+		Path temp = Files.createTempFile(directory.toPath(), manifestFile.getName(), ".tmp");
+		try {
+			try (BufferedWriter writer = Files.newBufferedWriter(temp, StandardCharsets.UTF_8)) {
+				writer.write("# " + basePath);
+				writer.newLine();
+				for (Map.Entry<String, Entry> e : entries.entrySet()) {
+					Entry entry = e.getValue();
+					writer.write(entry.digest.size + "\t" + entry.lastModified + "\t" + entry.digest.hash + "\t" + e.getKey());
+					writer.newLine();
+				}
+			}
+			try {
+				Files.move(temp, manifestFile.toPath(), StandardCopyOption.ATOMIC_MOVE);
+			} catch (AtomicMoveNotSupportedException e) {
+				Files.move(temp, manifestFile.toPath(), StandardCopyOption.REPLACE_EXISTING);
+			}
+			dirty = false;
+		} finally {
+			Files.deleteIfExists(temp);
+		}
+	}
+
+	private void read() throws IOException {
+		// 与git的索引相同，以清单文件的修改时间作为其中记录的时间，保存前不久修改的文件下次会重新计算哈希
+		long recordedAt = Files.getLastModifiedTime(manifestFile.toPath()).toMillis();
+		try (BufferedReader reader = Files.newBufferedReader(manifestFile.toPath(), StandardCharsets.UTF_8)) {
+			String line;
+			while ((line = reader.readLine()) != null) {
+				if (line.startsWith("#")) {
+					continue;
+				}
+				String[] fields = line.split("\t", 4);
+				if (fields.length < 4) {
+					continue;
+				}
+				try {
+					ContentDigest digest = new ContentDigest(Long.parseLong(fields[0]), fields[2]);
+					entries.put(fields[3], new Entry(digest, Long.parseLong(fields[1]), recordedAt));
+				} catch (NumberFormatException e) {
+					// 忽略损坏的行，对应文件会重新计算哈希
+				}
+			}
+		}
+	}
+
+	/**
+	 * 判断在recordedAt时记录的修改时间lastModified是否不可靠：文件在记录的同一时刻内再被修改时修改时间可能不变，
+	 * 只有修改时间早于记录时间超过文件系统精度时，相同的大小和修改时间才能说明内容没有变化
+	 */
+	static boolean isRacy(long lastModified, long recordedAt) {
+		return lastModified > recordedAt - MTIME_GRANULARITY;
+	}
+
+	private static String key(String relativePath) {
+		return relativePath.replace('\\', '/');
+	}
+
+	/**
+	 * 按写入文件时相同的方式编码FileModel的内容并计算摘要，编码结果不会保存在内存中
+	 */
+	static ContentDigest digest(FileModel model, ContentEncoder encoder) throws IOException {
+		MessageDigest messageDigest = newMessageDigest();
+		long[] size = new long[1];
+		encoder.encode(model.getContentSequence(), new WritableByteChannel() {
+			@Override
+			public int write(ByteBuffer src) {
+				int count = src.remaining();
+				messageDigest.update(src);
+				size[0] += count;
+				return count;
+			}
+
+			@Override
+			public boolean isOpen() {
+				return true;
+			}
+
+			@Override
+			public void close() {
+			}
+		});
+		return new ContentDigest(size[0], toHex(messageDigest.digest()));
+	}
+
+	/**
+	 * 流式读取文件并计算摘要
+	 */
+	static ContentDigest digest(Path file) throws IOException {
+		MessageDigest messageDigest = newMessageDigest();
+		long size = 0;
+		byte[] buffer = new byte[BUFFER_SIZE];
+		try (InputStream in = Files.newInputStream(file)) {
+			int read;
+			while ((read = in.read(buffer)) != -1) {
+				messageDigest.update(buffer, 0, read);
+				size += read;
+			}
+		}
+		return new ContentDigest(size, toHex(messageDigest.digest()));
+	}
+
+	private static String hash(byte[] data) {
+		return toHex(newMessageDigest().digest(data));
+	}
+
+	static MessageDigest newMessageDigest() {
+		try {
+			return MessageDigest.getInstance(HASH_ALGORITHM);
+		} catch (NoSuchAlgorithmException e) {
+			// 所有Java平台都必须支持SHA-256
+			throw new IllegalStateException(e);
+		}
+	}
+
+	static String toHex(byte[] bytes) {
+		StringBuilder hex = new StringBuilder(bytes.length * 2);
+		for (byte b : bytes) {
+			hex.append(Character.forDigit((b >> 4) & 0xF, 16)).append(Character.forDigit(b & 0xF, 16));
+		}
+		return hex.toString();
+	}
+}
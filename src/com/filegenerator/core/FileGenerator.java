@@ -1,60 +1,754 @@
 package com.filegenerator.core;
 
 import java.io.File;
-import java.io.FileWriter;
 import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.FileSystems;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.AclFileAttributeView;
+import java.nio.file.attribute.GroupPrincipal;
+import java.nio.file.attribute.PosixFileAttributeView;
+import java.nio.file.attribute.PosixFilePermission;
+import java.nio.file.attribute.UserPrincipal;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
 import java.util.List;
+import java.util.Map;
+import java.util.Queue;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import org.eclipse.core.runtime.ILog;
+import org.eclipse.core.runtime.IProgressMonitor;
+import org.eclipse.core.runtime.OperationCanceledException;
 import org.eclipse.core.runtime.Platform;
 import org.eclipse.core.runtime.Status;
+import org.eclipse.core.runtime.SubMonitor;
+
+import com.filegenerator.core.ContentManifest.ContentDigest;
+import com.filegenerator.core.GenerationReport.FileResult;
+import com.filegenerator.core.GenerationReport.FileStatus;
 
 public class FileGenerator {
+    // 默认的写文件线程数，写文件主要受I/O延迟限制，与CPU核数关系不大
+    private static final int DEFAULT_PARALLELISM = 8;
+    // 文件数少于该值时顺序写入
+    private static final int PARALLEL_THRESHOLD = 16;
+    // 新建文件的所有者，无法确定时为null
+    private static final UserPrincipal CURRENT_USER = lookupCurrentUser();
+
+    /**
+     * 写入后何时把数据同步（fsync）到磁盘
+     */
+    public enum DurabilityPolicy {
+        NONE,      // 不主动同步，由操作系统决定
+        PER_FILE,  // 每个文件写完后立即同步文件及其目录
+        PER_BATCH  // 所有文件写完后统一同步一次文件和目录
+    }
+
     private String basePath;
     private ILog log;
     private BackupManager backupManager;
+    // 本次生成的备份会话，与同时进行的其他操作（如应用补丁）的会话互不影响
+    private BackupSessionHandle backupSession;
+    private int parallelism = DEFAULT_PARALLELISM;
+    // 已确认存在的目录，每个父目录只检查和创建一次
+    private final Set<String> createdDirectories = ConcurrentHashMap.newKeySet();
+    private boolean atomicWrites = true;
+    private DurabilityPolicy durabilityPolicy = DurabilityPolicy.NONE;
+    private Charset charset = Charset.defaultCharset();
+    private CharsetResolver charsetResolver;
+    private ContentEncoder.LineEnding lineEnding = ContentEncoder.LineEnding.LF;
+    private boolean writeBom;
+    // 每种字符集一个编码器配置
+    private final Map<Charset, ContentEncoder> encoders = new ConcurrentHashMap<>();
+    // PER_BATCH模式下等待统一同步的文件
+    private final Queue<Path> pendingSync = new ConcurrentLinkedQueue<>();
+    private boolean skipUnchanged = true;
+    // 本次生成使用的内容清单，未启用跳过或清单不可用时为null
+    private ContentManifest manifest;
+    private boolean transactional;
+    // 事务模式下本次生成的日志
+    private GenerationJournal journal;
+    private boolean moveBackups;
+    // 在编辑器中打开的文件（规范化的绝对路径），这些文件总是复制备份
+    private Set<String> openFiles = Collections.emptySet();
     
     public FileGenerator(String basePath) {
         this.basePath = basePath;
         this.log = Platform.getLog(Platform.getBundle("com.filegenerator"));
         this.backupManager = BackupManager.getInstance();
     }
+
+    /**
+     * 设置同时写文件的线程数，1表示顺序写入
+     */
+    public void setParallelism(int parallelism) {
+        this.parallelism = Math.max(1, parallelism);
+    }
+
+    /**
+     * 是否原子写入：先写到同一目录下的临时文件，再重命名覆盖目标文件。默认开启。
+     * 关闭后直接截断并覆盖目标文件。有多个硬链接或属于其他用户的文件总是直接覆盖，
+     * 否则替换后其他链接仍指向旧内容、所有者变为当前用户。
+     */
+    public void setAtomicWrites(boolean atomicWrites) {
+        this.atomicWrites = atomicWrites;
+    }
+
+    /**
+     * 设置同步策略，默认为{@link DurabilityPolicy#NONE}
+     */
+    public void setDurabilityPolicy(DurabilityPolicy durabilityPolicy) {
+        this.durabilityPolicy = durabilityPolicy;
+    }
+
+    /**
+     * 是否跳过内容没有变化的文件（不备份、不写入），默认开启
+     */
+    public void setSkipUnchanged(boolean skipUnchanged) {
+        this.skipUnchanged = skipUnchanged;
+    }
+
+    /**
+     * 是否以事务方式生成：所有文件先写入暂存文件，全部成功后才一起替换目标文件，任何文件失败时不修改任何文件。
+     * 提交过程中崩溃的生成会在下次启动时通过{@link #recoverInterruptedGenerations()}继续完成。默认关闭。
+     * 提交时总是以重命名替换目标文件，有多个硬链接的文件提交后其他链接仍指向原来的内容。
+     */
+    public void setTransactional(boolean transactional) {
+        this.transactional = transactional;
+    }
+
+    /**
+     * 是否通过重命名备份被覆盖的文件：原文件直接移入备份存储，新文件重新写入，不复制原文件的数据。
+     * 备份存储不在同一文件系统上时退回复制。默认关闭。
+     */
+    public void setMoveBackups(boolean moveBackups) {
+        this.moveBackups = moveBackups;
+    }
+
+    /**
+     * 设置当前在编辑器中打开的文件。编辑器持有的文件不能被移走，这些文件仍然复制备份。
+     */
+    public void setOpenFiles(Collection<String> filePaths) {
+        Set<String> paths = new HashSet<>();
+        for (String filePath : filePaths) {
+            paths.add(normalize(filePath));
+        }
+        this.openFiles = paths;
+    }
+
+    /**
+     * 恢复上次运行中被中断的事务生成：已开始提交的继续提交，尚未全部暂存的回滚。应在生成文件之前调用。
+     * 
+     * @return 恢复过程中有文件被修改的目录，调用方可据此刷新工作区
+     */
+    public static Set<File> recoverInterruptedGenerations() {
+        return GenerationJournal.recoverAll();
+    }
+
+    /**
+     * 设置写文件使用的字符集，默认为平台默认字符集。设置了{@link CharsetResolver}时，只用于解析结果为null的文件。
+     */
+    public void setCharset(Charset charset) {
+        this.charset = charset;
+    }
+
+    /**
+     * 设置按文件确定字符集的解析器，例如使用Eclipse中文件的编码设置
+     */
+    public void setCharsetResolver(CharsetResolver charsetResolver) {
+        this.charsetResolver = charsetResolver;
+    }
+
+    /**
+     * 设置生成文件的换行符，默认为\n
+     */
+    public void setLineEnding(ContentEncoder.LineEnding lineEnding) {
+        this.lineEnding = lineEnding;
+        encoders.clear();
+    }
+
+    /**
+     * 是否在UTF-8等Unicode编码的文件开头写入BOM，默认不写
+     */
+    public void setWriteBom(boolean writeBom) {
+        this.writeBom = writeBom;
+        encoders.clear();
+    }
     
-    public void generateFiles(List<FileModel> fileModels) throws IOException {
+    /**
+     * 生成所有文件。即使部分文件失败，其余文件仍会写入；失败时按输入顺序抛出第一个错误，
+     * 其余错误作为suppressed附加在异常上。事务模式下任何文件失败时所有文件都不会写入，
+     * 其余文件的状态为{@link FileStatus#ROLLED_BACK}。
+     * 
+     * @return 按输入顺序排列的生成结果
+     */
+    public GenerationReport generateFiles(List<FileModel> fileModels) throws IOException {
+        return generateFiles(fileModels, null);
+    }
+
+    /**
+     * 生成所有文件并报告进度。取消时已开始写入的文件会写完，其余文件不再写入，并抛出OperationCanceledException。
+     * 
+     * @param monitor 进度监视器，可以为null
+     */
+    public GenerationReport generateFiles(List<FileModel> fileModels, IProgressMonitor monitor) throws IOException {
+        // 事务模式在提交时同步暂存文件和目录，不需要再单独同步
+        boolean syncBatch = durabilityPolicy == DurabilityPolicy.PER_BATCH && !transactional;
+        SubMonitor progress = SubMonitor.convert(monitor, "生成文件",
+                fileModels.size() + (syncBatch || transactional ? 1 : 0));
+
         // 开始一个新的备份会话
-        backupManager.startBackupSession();
+        backupSession = backupManager.openSession();
+        manifest = skipUnchanged ? loadManifest() : null;
         
+        FileResult[] results = new FileResult[fileModels.size()];
+        // 回滚可能删除了上次创建的目录，每次生成重新确认
+        createdDirectories.clear();
         try {
-            for (FileModel model : fileModels) {
-                generateFile(model);
+            journal = transactional ? GenerationJournal.begin(basePath) : null;
+            if (journal != null) {
+                journal.setBackupSession(backupSession);
+            }
+            if (parallelism > 1 && fileModels.size() >= PARALLEL_THRESHOLD) {
+                generateConcurrently(fileModels, results, progress);
+            } else {
+                for (int i = 0; i < results.length; i++) {
+                    progress.subTask(fileModels.get(i).getFilePath());
+                    results[i] = generateFile(fileModels.get(i));
+                    progress.split(1);
+                }
+            }
+            if (journal != null) {
+                progress.subTask("提交生成的文件");
+                commitTransaction(results);
+                progress.split(1);
+            } else if (syncBatch) {
+                progress.subTask("同步到磁盘");
+                syncPendingFiles();
+                progress.split(1);
             }
         } finally {
+            // 取消或意外错误时放弃尚未提交的事务
+            if (journal != null && journal.isOpen()) {
+                journal.rollback();
+            }
+            journal = null;
             // 结束备份会话
-            backupManager.endBackupSession();
+            backupSession.close();
+            backupSession = null;
+            saveManifest();
         }
+
+        GenerationReport report = new GenerationReport(Arrays.asList(results));
+        throwFailures(report);
+        return report;
+    }
+
+    /**
+     * 使用有界线程池并发写入。目标路径相同的文件在同一个任务中按输入顺序写入，保证后出现的内容最终生效。
+     * 取消或出错时不中断写文件的线程（中断会关闭正在写入的FileChannel，留下写了一半的文件），
+     * 而是让各任务在开始下一个文件之前停止，并等待正在写入的文件写完。
+     */
+    private void generateConcurrently(List<FileModel> fileModels, FileResult[] results, SubMonitor progress)
+            throws IOException {
+        Map<String, List<Integer>> groups = new LinkedHashMap<>();
+        for (int i = 0; i < fileModels.size(); i++) {
+            String key = normalize(getFullPath(fileModels.get(i)));
+            groups.computeIfAbsent(key, k -> new ArrayList<>()).add(i);
+        }
+
+        AtomicBoolean stopped = new AtomicBoolean();
+        AtomicInteger threadIndex = new AtomicInteger();
+        ExecutorService executor = Executors.newFixedThreadPool(Math.min(parallelism, groups.size()), runnable -> {
+            Thread thread = new Thread(runnable, "FileGenerator-IO-" + threadIndex.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        });
+        try {
+            List<Future<?>> futures = new ArrayList<>(groups.size());
+            for (List<Integer> group : groups.values()) {
+                futures.add(executor.submit(() -> {
+                    for (int i : group) {
+                        if (stopped.get()) {
+                            return;
+                        }
+                        results[i] = generateFile(fileModels.get(i));
+                    }
+                }));
+            }
+            // 进度监视器不是线程安全的，只在当前线程中按顺序等待各任务并更新进度
+            int index = 0;
+            for (List<Integer> group : groups.values()) {
+                if (progress.isCanceled()) {
+                    throw new OperationCanceledException();
+                }
+                futures.get(index++).get();
+                progress.subTask(fileModels.get(group.get(group.size() - 1)).getFilePath());
+                progress.worked(group.size());
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("文件生成被中断");
+        } catch (ExecutionException e) {
+            throw new IOException("写入文件时出现意外错误", e.getCause());
+        } finally {
+            // 正常结束时所有任务都已完成；否则让未开始的文件不再写入，等待正在写入的文件写完
+            stopped.set(true);
+            executor.shutdown();
+            awaitTermination(executor);
+        }
+        log.log(new Status(Status.INFO, "com.filegenerator",
+                "使用 " + Math.min(parallelism, groups.size()) + " 个线程生成了 " + fileModels.size() + " 个文件"));
+    }
+
+    /**
+     * 所有文件都暂存成功时提交事务，否则回滚并把其余文件标记为未写入
+     */
+    private void commitTransaction(FileResult[] results) throws IOException {
+        for (FileResult result : results) {
+            if (result.getStatus() == FileStatus.FAILED) {
+                journal.rollback();
+                markRolledBack(results);
+                return;
+            }
+        }
+        try {
+            journal.prepare();
+            journal.commit();
+        } catch (IOException e) {
+            journal.rollback();
+            markRolledBack(results);
+            throw e;
+        }
+        if (manifest != null) {
+            // 提交后目标文件的修改时间就是暂存文件的修改时间
+            for (GenerationJournal.Entry entry : journal.getEntries()) {
+                if (entry.digest != null) {
+                    manifest.put(entry.relativePath, entry.digest, entry.target.lastModified());
+                }
+            }
+        }
+        log.log(new Status(Status.INFO, "com.filegenerator", "已提交 " + journal.getEntries().size() + " 个文件"));
+    }
+
+    private static void markRolledBack(FileResult[] results) {
+        for (int i = 0; i < results.length; i++) {
+            FileResult result = results[i];
+            if (result.getStatus() == FileStatus.GENERATED) {
+                results[i] = new FileResult(result.getFileModel(), result.getFullPath(), FileStatus.ROLLED_BACK, null);
+            }
+        }
+    }
+
+    /**
+     * 等待正在写入的任务结束，保证返回后不会再有文件或备份记录被修改
+     */
+    /**
+     * 等待写文件的线程结束。之后的提交或回滚会移动这些线程写入的文件，所以不能提前返回。
+     */
+    private void awaitTermination(ExecutorService executor) {
+        boolean interrupted = false;
+        try {
+            while (true) {
+                try {
+                    if (executor.awaitTermination(1, TimeUnit.MINUTES)) {
+                        return;
+                    }
+                    log.log(new Status(Status.WARNING, "com.filegenerator", "仍在等待正在写入的文件写完"));
+                } catch (InterruptedException e) {
+                    interrupted = true;
+                }
+            }
+        } finally {
+            if (interrupted) {
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
+
+    private FileResult generateFile(FileModel model) {
+        String fullPath = getFullPath(model);
+        try {
+            FileStatus status = writeFile(model, fullPath);
+            return new FileResult(model, fullPath, status, null);
+        } catch (IOException e) {
+            log.log(new Status(Status.ERROR, "com.filegenerator", "生成文件失败: " + fullPath, e));
+            return new FileResult(model, fullPath, FileStatus.FAILED, e);
+        }
+    }
+
+    private String getFullPath(FileModel model) {
+        return basePath + File.separator + model.getFilePath();
+    }
+
+    private static String normalize(String path) {
+        return new File(path).getAbsoluteFile().toPath().normalize().toString();
     }
     
-    private void generateFile(FileModel model) throws IOException {
-        String fullPath = basePath + File.separator + model.getFilePath();
-        File file = new File(fullPath);
+    private FileStatus writeFile(FileModel model, String fullPath) throws IOException {
+        // 目标是符号链接时写入链接指向的文件，链接本身保持不变
+        File file = resolveSymbolicLink(new File(fullPath));
         
-        // 创建目录结构
-        File parentDir = file.getParentFile();
-        if (!parentDir.exists()) {
-            parentDir.mkdirs();
+        // 内容没有变化的文件不备份也不写入，避免触发不必要的资源变更和重新构建
+        ContentEncoder encoder = getEncoder(fullPath);
+        ContentDigest digest = null;
+        if (manifest != null) {
+            digest = ContentManifest.digest(model, encoder);
+            // 事务中已暂存过的目标，磁盘上的内容不是最终内容，不能据此跳过
+            boolean staged = journal != null && journal.isStaged(file);
+            if (!staged && file.exists() && manifest.isUnchanged(model.getFilePath(), file, digest)) {
+                log.log(new Status(Status.INFO, "com.filegenerator", "文件内容未变化，跳过: " + fullPath));
+                return FileStatus.UNCHANGED;
+            }
         }
         
-        // 如果文件已存在，先备份
+        // 创建目录结构
+        ensureDirectory(file.getParentFile());
+        
+        // 如果文件已存在，先备份（在同一线程中完成备份后才覆盖文件）
+        Path target = file.toPath();
+        boolean inPlace = file.exists() && mustWriteInPlace(target);
+        boolean moveBackup = moveBackups && !inPlace && !openFiles.contains(normalize(fullPath));
+        Set<PosixFilePermission> permissions = null;
+        String movedBackup = null;
         if (file.exists()) {
-            backupManager.backupFile(fullPath);
+            if (!moveBackup) {
+                backupSession.backupFile(fullPath);
+            } else if (journal == null) {
+                // 原文件被移走后无法再读取权限，先记下来
+                permissions = readPermissions(target);
+                String backup = backupSession.backupFileByMove(file, new File(fullPath).getAbsolutePath(),
+                        getKnownEntry(model, file));
+                movedBackup = backup != null && !file.exists() ? backup : null;
+            }
+            // 事务模式下原文件在提交时才被替换，届时再移入备份存储
         }
         
         // 写入新文件
-        try (FileWriter writer = new FileWriter(file)) {
-            writer.write(model.getContent());
+        if (journal != null) {
+            stage(model, file, encoder, digest, moveBackup);
+            log.log(new Status(Status.INFO, "com.filegenerator", "已暂存文件: " + fullPath));
+            return FileStatus.GENERATED;
+        }
+        try {
+            if (atomicWrites && !inPlace) {
+                writeAtomically(model, target, encoder, permissions);
+            } else {
+                try (FileChannel channel = FileChannel.open(target, StandardOpenOption.CREATE,
+                        StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.WRITE)) {
+                    encoder.encode(model.getContentSequence(), channel);
+                    if (durabilityPolicy == DurabilityPolicy.PER_FILE) {
+                        channel.force(true);
+                    }
+                }
+                applyPermissions(target, permissions);
+            }
+        } catch (IOException | RuntimeException e) {
+            if (movedBackup != null) {
+                restoreMovedFile(Paths.get(movedBackup), target, permissions, e);
+            }
+            throw e;
+        }
+        if (durabilityPolicy == DurabilityPolicy.PER_BATCH) {
+            pendingSync.add(target);
+        }
+        if (manifest != null) {
+            manifest.put(model.getFilePath(), digest, file.lastModified());
         }
         
         log.log(new Status(Status.INFO, "com.filegenerator", "已生成文件: " + fullPath));
+        return FileStatus.GENERATED;
     }
-}
 
+    /**
+     * 清单中记录的磁盘上现有内容的摘要及当时的修改时间，文件在清单之外被修改过时为null
+     */
+    private ContentManifest.Entry getKnownEntry(FileModel model, File file) {
+        return manifest != null ? manifest.getCurrentEntry(model.getFilePath(), file) : null;
+    }
+
+    /**
+     * 写入失败时把已移入备份存储的原文件复制回原处
+     */
+    private void restoreMovedFile(Path backup, Path target, Set<PosixFilePermission> permissions, Exception error) {
+        try {
+            Files.copy(backup, target, StandardCopyOption.REPLACE_EXISTING);
+            target.toFile().setWritable(true);
+            applyPermissions(target, permissions);
+        } catch (IOException e) {
+            error.addSuppressed(e);
+        }
+    }
+
+    private ContentEncoder getEncoder(String fullPath) {
+        Charset fileCharset = charsetResolver != null ? charsetResolver.getCharset(fullPath) : null;
+        return encoders.computeIfAbsent(fileCharset != null ? fileCharset : charset,
+                c -> new ContentEncoder(c, lineEnding, writeBom));
+    }
+
+    private ContentManifest loadManifest() {
+        try {
+            return ContentManifest.load(basePath);
+        } catch (IOException e) {
+            log.log(new Status(Status.WARNING, "com.filegenerator", "加载内容清单失败，本次将写入所有文件", e));
+            return null;
+        }
+    }
+
+    private void saveManifest() {
+        if (manifest == null) {
+            return;
+        }
+        try {
+            manifest.save();
+        } catch (IOException e) {
+            log.log(new Status(Status.WARNING, "com.filegenerator", "保存内容清单失败，但不影响生成的文件", e));
+        }
+    }
+
+    /**
+     * 符号链接指向的文件，不是符号链接或者链接无效时返回file本身
+     */
+    private static File resolveSymbolicLink(File file) {
+        Path path = file.toPath();
+        if (!Files.isSymbolicLink(path)) {
+            return file;
+        }
+        try {
+            return path.toRealPath().toFile();
+        } catch (IOException e) {
+            return file;
+        }
+    }
+
+    /**
+     * 判断文件是否只能直接覆盖：重命名替换会断开其他硬链接，并使所有者变为当前用户
+     */
+    private static boolean mustWriteInPlace(Path target) {
+        try {
+            Object links = Files.getAttribute(target, "unix:nlink");
+            if (links instanceof Integer && (Integer) links > 1) {
+                return true;
+            }
+        } catch (IOException | UnsupportedOperationException | IllegalArgumentException e) {
+            // 不是Unix文件系统，没有硬链接计数
+        }
+        try {
+            return CURRENT_USER != null && !CURRENT_USER.equals(Files.getOwner(target));
+        } catch (IOException | UnsupportedOperationException e) {
+            return false;
+        }
+    }
+
+    private static UserPrincipal lookupCurrentUser() {
+        try {
+            return FileSystems.getDefault().getUserPrincipalLookupService()
+                    .lookupPrincipalByName(System.getProperty("user.name"));
+        } catch (IOException | UnsupportedOperationException e) {
+            return null;
+        }
+    }
+
+    /**
+     * 先完整写入同一目录下的临时文件，再重命名为目标文件，中途崩溃不会留下写了一半的文件。
+     * 目标文件的权限、所属组和访问控制列表复制到临时文件上。
+     */
+    private void writeAtomically(FileModel model, Path target, ContentEncoder encoder,
+            Set<PosixFilePermission> permissions) throws IOException {
+        Path directory = target.getParent();
+        Path temp = directory.resolve("." + target.getFileName() + "."
+                + Long.toHexString(ThreadLocalRandom.current().nextLong()) + ".tmp");
+        try {
+            try (FileChannel channel = FileChannel.open(temp, StandardOpenOption.CREATE_NEW,
+                    StandardOpenOption.WRITE)) {
+                encoder.encode(model.getContentSequence(), channel);
+                if (durabilityPolicy == DurabilityPolicy.PER_FILE) {
+                    channel.force(true);
+                }
+            }
+            if (permissions != null) {
+                applyPermissions(temp, permissions);
+            } else {
+                copyPermissions(target, temp);
+            }
+            copyGroupAndAcl(target, temp);
+            try {
+                Files.move(temp, target, StandardCopyOption.ATOMIC_MOVE);
+            } catch (AtomicMoveNotSupportedException e) {
+                Files.move(temp, target, StandardCopyOption.REPLACE_EXISTING);
+            }
+        } catch (IOException | RuntimeException e) {
+            try {
+                Files.deleteIfExists(temp);
+            } catch (IOException deleteError) {
+                e.addSuppressed(deleteError);
+            }
+            throw e;
+        }
+        if (durabilityPolicy == DurabilityPolicy.PER_FILE) {
+            syncDirectory(directory);
+        }
+    }
+
+    /**
+     * 事务模式下把内容写到暂存文件，提交时再重命名为目标文件
+     */
+    private void stage(FileModel model, File file, ContentEncoder encoder, ContentDigest digest, boolean moveBackup)
+            throws IOException {
+        GenerationJournal.Entry entry = journal.stage(file);
+        if (moveBackup && entry.existed && !entry.backupByMove) {
+            journal.backupByMove(entry, getKnownEntry(model, file));
+        }
+        Path staged = entry.staged.toPath();
+        try (FileChannel channel = FileChannel.open(staged, StandardOpenOption.CREATE,
+                StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.WRITE)) {
+            encoder.encode(model.getContentSequence(), channel);
+        }
+        copyPermissions(file.toPath(), staged);
+        entry.relativePath = model.getFilePath();
+        entry.digest = digest;
+    }
+
+    /**
+     * 覆盖已有文件时保留其权限（例如可执行的脚本）
+     */
+    private void copyPermissions(Path source, Path target) {
+        applyPermissions(target, readPermissions(source));
+    }
+
+    /**
+     * 覆盖已有文件时保留其所属组（POSIX）或访问控制列表（Windows）
+     */
+    private void copyGroupAndAcl(Path source, Path target) {
+        if (!Files.exists(source)) {
+            return;
+        }
+        try {
+            PosixFileAttributeView posix = Files.getFileAttributeView(source, PosixFileAttributeView.class);
+            if (posix != null) {
+                GroupPrincipal group = posix.readAttributes().group();
+                PosixFileAttributeView targetView = Files.getFileAttributeView(target, PosixFileAttributeView.class);
+                if (!group.equals(targetView.readAttributes().group())) {
+                    targetView.setGroup(group);
+                }
+            }
+            AclFileAttributeView acl = Files.getFileAttributeView(source, AclFileAttributeView.class);
+            if (acl != null) {
+                Files.getFileAttributeView(target, AclFileAttributeView.class).setAcl(acl.getAcl());
+            }
+        } catch (IOException | UnsupportedOperationException e) {
+            log.log(new Status(Status.WARNING, "com.filegenerator", "无法保留文件的所属组或访问控制列表: " + source, e));
+        }
+    }
+
+    private Set<PosixFilePermission> readPermissions(Path file) {
+        if (!Files.exists(file) || Files.getFileAttributeView(file, PosixFileAttributeView.class) == null) {
+            return null;
+        }
+        try {
+            return Files.getPosixFilePermissions(file);
+        } catch (IOException | UnsupportedOperationException e) {
+            log.log(new Status(Status.WARNING, "com.filegenerator", "无法读取文件权限: " + file, e));
+            return null;
+        }
+    }
+
+    private void applyPermissions(Path file, Set<PosixFilePermission> permissions) {
+        if (permissions == null) {
+            return;
+        }
+        try {
+            Files.setPosixFilePermissions(file, permissions);
+        } catch (IOException | UnsupportedOperationException e) {
+            log.log(new Status(Status.WARNING, "com.filegenerator", "无法保留文件权限: " + file, e));
+        }
+    }
+
+    /**
+     * 同步所有已写入的文件，然后同步它们所在的目录，使重命名也落盘
+     */
+    private void syncPendingFiles() throws IOException {
+        Set<Path> directories = new LinkedHashSet<>();
+        Path path;
+        while ((path = pendingSync.poll()) != null) {
+            try (FileChannel channel = FileChannel.open(path, StandardOpenOption.WRITE)) {
+                channel.force(true);
+            }
+            directories.add(path.getParent());
+        }
+        for (Path directory : directories) {
+            syncDirectory(directory);
+        }
+        log.log(new Status(Status.INFO, "com.filegenerator", "已同步 " + directories.size() + " 个目录中的文件到磁盘"));
+    }
+
+    static void syncDirectory(Path directory) {
+        try (FileChannel channel = FileChannel.open(directory, StandardOpenOption.READ)) {
+            channel.force(true);
+        } catch (IOException e) {
+            // 部分平台（如Windows）不能打开目录进行同步，忽略
+        }
+    }
+
+    private void ensureDirectory(File directory) throws IOException {
+        String key = directory.getPath();
+        if (createdDirectories.contains(key)) {
+            return;
+        }
+        if (!directory.isDirectory()) {
+            // 事务回滚时需要删除新建的目录，记录最上层新建的那一级
+            File topmost = directory.getAbsoluteFile();
+            while (topmost.getParentFile() != null && !topmost.getParentFile().exists()) {
+                topmost = topmost.getParentFile();
+            }
+            // 其他线程可能同时创建了同一个目录，mkdirs失败后再确认一次
+            if (!directory.mkdirs() && !directory.isDirectory()) {
+                throw new IOException("无法创建目录: " + directory);
+            }
+            if (journal != null) {
+                journal.directoryCreated(topmost);
+            }
+        }
+        createdDirectories.add(key);
+    }
+
+    private void throwFailures(GenerationReport report) throws IOException {
+        List<FileResult> failures = report.getFailures();
+        if (failures.isEmpty()) {
+            return;
+        }
+        if (failures.size() == 1) {
+            throw failures.get(0).getError();
+        }
+        IOException first = failures.get(0).getError();
+        IOException error = new IOException(
+                failures.size() + " 个文件生成失败，第一个错误: " + first.getMessage(), first);
+        for (int i = 1; i < failures.size(); i++) {
+            error.addSuppressed(failures.get(i).getError());
+        }
+        throw error;
+    }
+}
@@ -0,0 +1,160 @@
+package com.filegenerator.core;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * 文件标记识别器。
+ * 所有标记语法的前缀被预先编译成一个确定有限自动机（前缀树），每行只需从行首走一遍即可判断
+ * 是否为标记以及是哪种语法，增加语法不会增加扫描次数。
+ */
+public class FileMarkerMatcher {
+	/** 匹配失败时的返回值 */
+	public static final long NO_MATCH = -1L;
+
+	// 自动机只处理ASCII字符，标记前缀都是ASCII
+	private static final int ALPHABET_SIZE = 128;
+	private static final int DEAD_STATE = 0;
+
+	private static final FileMarkerMatcher DEFAULT = new FileMarkerMatcher(Arrays.asList(
+			new Syntax("// File:", ""),
+			new Syntax("# File:", ""),
+			new Syntax("-- File:", ""),
+			new Syntax("<!-- File:", "-->"),
+			new Syntax("/* File:", "*/")));
+
+	/**
+	 * 一种标记语法：行首前缀和可选的行尾后缀，例如 "&lt;!-- File:" 和 "--&gt;"
+	 */
+	public static class Syntax {
+		private final String prefix;
+		private final String suffix;
+
+		public Syntax(String prefix, String suffix) {
+			if (prefix == null || prefix.isEmpty()) {
+				throw new IllegalArgumentException("Marker prefix must not be empty");
+			}
+			for (int i = 0; i < prefix.length(); i++) {
+				if (prefix.charAt(i) >= ALPHABET_SIZE) {
+					throw new IllegalArgumentException("Marker prefix must be ASCII: " + prefix);
+				}
+			}
+			this.prefix = prefix;
+			this.suffix = suffix != null ? suffix : "";
+		}
+
+		public String getPrefix() {
+			return prefix;
+		}
+
+		public String getSuffix() {
+			return suffix;
+		}
+	}
+
+	private final List<Syntax> syntaxes;
+	// transitions[state][char] -> 下一个状态，0为死状态；状态1为初始状态
+	private final int[][] transitions;
+	// accepting[state] -> 以该状态结束的语法下标，-1表示非接受状态
+	private final int[] accepting;
+
+	public FileMarkerMatcher(List<Syntax> syntaxes) {
+		if (syntaxes.isEmpty()) {
+			throw new IllegalArgumentException("At least one marker syntax is required");
+		}
+		this.syntaxes = Collections.unmodifiableList(new ArrayList<>(syntaxes));
+
+		List<int[]> table = new ArrayList<>();
+		table.add(new int[ALPHABET_SIZE]); // 死状态
+		table.add(new int[ALPHABET_SIZE]); // 初始状态
+		List<Integer> accept = new ArrayList<>(Arrays.asList(-1, -1));
+		for (int s = 0; s < syntaxes.size(); s++) {
+			String prefix = syntaxes.get(s).getPrefix();
+			int state = 1;
+			for (int i = 0; i < prefix.length(); i++) {
+				char c = prefix.charAt(i);
+				int next = table.get(state)[c];
+				if (next == DEAD_STATE) {
+					table.add(new int[ALPHABET_SIZE]);
+					accept.add(-1);
+					next = table.size() - 1;
+					table.get(state)[c] = next;
+				}
+				state = next;
+			}
+			if (accept.get(state) < 0) {
+				accept.set(state, s);
+			}
+		}
+		this.transitions = table.toArray(new int[0][]);
+		this.accepting = new int[accept.size()];
+		for (int i = 0; i < accepting.length; i++) {
+			accepting[i] = accept.get(i);
+		}
+	}
+
+	/**
+	 * 默认支持 //、#、--、&lt;!-- --&gt; 和 /* *&#47; 五种标记语法
+	 */
+	public static FileMarkerMatcher defaultMatcher() {
+		return DEFAULT;
+	}
+
+	public List<Syntax> getSyntaxes() {
+		return syntaxes;
+	}
+
+	/**
+	 * 从[lineStart, lineEnd)的第一个非空白字符开始运行自动机，取最长的匹配。
+	 *
+	 * @return 匹配结果，高32位为语法下标，低32位为路径部分的起始位置；不匹配时返回{@link #NO_MATCH}
+	 */
+	public long match(CharSequence text, int lineStart, int lineEnd) {
+		int start = lineStart;
+		while (start < lineEnd && text.charAt(start) <= ' ') {
+			start++;
+		}
+		int state = 1;
+		long result = NO_MATCH;
+		for (int i = start; i < lineEnd; i++) {
+			char c = text.charAt(i);
+			if (c >= ALPHABET_SIZE) {
+				break;
+			}
+			state = transitions[state][c];
+			if (state == DEAD_STATE) {
+				break;
+			}
+			if (accepting[state] >= 0) {
+				result = ((long) accepting[state] << 32) | (i + 1);
+			}
+		}
+		return result;
+	}
+
+	public static int syntaxIndex(long match) {
+		return (int) (match >>> 32);
+	}
+
+	public static int pathStart(long match) {
+		return (int) match;
+	}
+
+	/**
+	 * 从标记行中取出文件路径：去掉首尾空白、语法后缀以及括号中的说明
+	 */
+	public String extractPath(CharSequence text, long match, int lineEnd) {
+		String filePath = text.subSequence(pathStart(match), lineEnd).toString().trim();
+		String suffix = syntaxes.get(syntaxIndex(match)).getSuffix();
+		if (!suffix.isEmpty() && filePath.endsWith(suffix)) {
+			filePath = filePath.substring(0, filePath.length() - suffix.length()).trim();
+		}
+		// 如果路径包含注释部分，只取前面的部分
+		if (filePath.contains("(")) {
+			filePath = filePath.substring(0, filePath.indexOf("(")).trim();
+		}
+		return filePath;
+	}
+}
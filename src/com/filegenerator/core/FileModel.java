@@ -1,6 +1,13 @@
 package com.filegenerator.core;
 
+import java.io.IOException;
+import java.io.Writer;
+import java.nio.channels.WritableByteChannel;
+import java.nio.charset.Charset;
+
 public class FileModel {
+	private static final int CHUNK_SIZE = 8192;
+
 	private String filePath;
 	private String content;
 
@@ -9,6 +16,13 @@ public class FileModel {
 		this.content = content;
 	}
 
+	/**
+	 * 供内容不以独立String保存的子类使用
+	 */
+	protected FileModel(String filePath) {
+		this.filePath = filePath;
+	}
+
 	public String getFilePath() {
 		return filePath;
 	}
@@ -16,4 +30,61 @@ public class FileModel {
 	public String getContent() {
 		return content;
 	}
-}
\ No newline at end of file
+
+	/**
+	 * 以CharSequence形式访问内容，不会为此复制一份文本
+	 */
+	public CharSequence getContentSequence() {
+		return content;
+	}
+
+	public int getContentLength() {
+		return getContentSequence().length();
+	}
+
+	/**
+	 * 获取用于界面预览的内容，超过maxLength的部分会被截断，避免为预览复制整个大文件
+	 */
+	public String getContentPreview(int maxLength) {
+		CharSequence sequence = getContentSequence();
+		if (sequence.length() <= maxLength) {
+			return sequence.toString();
+		}
+		return sequence.subSequence(0, maxLength).toString() + "\n... (" + sequence.length() + " characters in total)";
+	}
+
+	/**
+	 * 分块把内容写入Writer，不会先生成整个文件的字符串
+	 */
+	public void writeTo(Writer writer) throws IOException {
+		CharSequence sequence = getContentSequence();
+		int length = sequence.length();
+		if (sequence instanceof String && length <= CHUNK_SIZE) {
+			writer.write((String) sequence);
+			return;
+		}
+		char[] chunk = new char[Math.min(CHUNK_SIZE, length)];
+		for (int offset = 0; offset < length; offset += chunk.length) {
+			int count = Math.min(chunk.length, length - offset);
+			copyChars(sequence, offset, offset + count, chunk);
+			writer.write(chunk, 0, count);
+		}
+	}
+
+	/**
+	 * 使用给定字符集把内容编码后写入通道，编码直接从内容视图进行，不生成中间的byte[]
+	 */
+	public void writeTo(WritableByteChannel channel, Charset charset) throws IOException {
+		ContentEncoder.of(charset).encode(getContentSequence(), channel);
+	}
+
+	private static void copyChars(CharSequence sequence, int start, int end, char[] target) {
+		if (sequence instanceof String) {
+			((String) sequence).getChars(start, end, target, 0);
+			return;
+		}
+		for (int i = start; i < end; i++) {
+			target[i - start] = sequence.charAt(i);
+		}
+	}
+}
@@ -0,0 +1,285 @@
+package com.filegenerator.core;
+
+import java.io.IOException;
+import java.io.Reader;
+import java.io.UncheckedIOException;
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+
+/**
+ * 单遍流式解析器：一边读取输入一边识别文件标记、规范化换行符，
+ * 每遇到下一个文件标记就产出上一个文件，内存占用只与最大的单个文件相关
+ */
+class FileModelIterator implements Iterator<FileModel> {
+	private static final int BUFFER_SIZE = 8192;
+
+	private final TextParser parser;
+	private final Reader reader;
+	private final char[] buffer = new char[BUFFER_SIZE];
+	private int position;
+	private int limit;
+	private boolean eof;
+	private boolean pendingCarriageReturn;
+
+	private final StringBuilder line = new StringBuilder();
+	private int lineNumber;
+
+	// 输入以```开头时，最后一个```行及其后的内容需要丢弃。内容照常写入，只记下该行之前的长度，结束时截断
+	private String openingFence;
+	private boolean closingFenceSeen;
+	private int fenceMark = -1;
+	private int fenceMarkLines;
+
+	// 第一个文件标记之前的内容，仅在完全没有标记时用于推断路径
+	private StringBuilder preamble = new StringBuilder();
+	private boolean markerSeen;
+
+	private String currentPath;
+	private StringBuilder currentContent;
+	private int currentLines;
+	// 末尾的空行要等到确认后面还有内容时才写入（与split("\n")的行为一致）
+	private int pendingEmptyLines;
+
+	private FileModel next;
+	private boolean finished;
+
+	FileModelIterator(TextParser parser, Reader reader) {
+		this.parser = parser;
+		this.reader = reader;
+	}
+
+	@Override
+	public boolean hasNext() {
+		while (next == null && !finished) {
+			advance();
+		}
+		return next != null;
+	}
+
+	@Override
+	public FileModel next() {
+		if (!hasNext()) {
+			throw new NoSuchElementException();
+		}
+		FileModel result = next;
+		next = null;
+		return result;
+	}
+
+	private void advance() {
+		try {
+			if (!readLine()) {
+				finish();
+				return;
+			}
+		} catch (IOException e) {
+			throw new UncheckedIOException(e);
+		}
+		lineNumber++;
+
+		if (lineNumber == 1 && startsWith(line, 0, "```")) {
+			// 与原来的cleanInputText一致：后面有结尾的代码块标记时去掉开头的标记行
+			openingFence = line.toString();
+			parser.logInfo("检测到Markdown代码块标记");
+			return;
+		}
+
+		if (openingFence != null && isFenceLine(line)) {
+			// 可能是结尾的代码块标记，之后没有文件标记时从这里截断
+			closingFenceSeen = true;
+			fenceMark = markerSeen ? currentContent.length() : preamble.length();
+			fenceMarkLines = currentLines;
+			appendLine(line);
+			return;
+		}
+
+		String markerPath = parser.extractMarkerPath(line);
+		if (markerPath != null) {
+			parser.logInfo("找到文件标记(第" + lineNumber + "行): " + markerPath);
+			startFile(markerPath);
+			return;
+		}
+		appendLine(line);
+	}
+
+	private void startFile(String markerPath) {
+		FileModel completed = completeCurrent();
+		// 之前的代码块标记属于上一个文件的内容
+		fenceMark = -1;
+		markerSeen = true;
+		preamble = null;
+		currentPath = markerPath;
+		currentContent = new StringBuilder();
+		currentLines = 0;
+		pendingEmptyLines = 0;
+		next = completed;
+	}
+
+	private void appendLine(CharSequence text) {
+		if (!markerSeen) {
+			preamble.append(text).append('\n');
+			return;
+		}
+		if (text.length() == 0) {
+			pendingEmptyLines++;
+			return;
+		}
+		flushEmptyLines();
+		currentContent.append(text).append('\n');
+		currentLines++;
+	}
+
+	private void flushEmptyLines() {
+		for (; pendingEmptyLines > 0; pendingEmptyLines--) {
+			currentContent.append('\n');
+			currentLines++;
+		}
+	}
+
+	private FileModel completeCurrent() {
+		if (currentPath == null) {
+			return null;
+		}
+		// 中间的文件保留结尾空行；到达输入末尾时pendingEmptyLines已被清零
+		flushEmptyLines();
+		String content = currentContent.toString();
+		String markerPath = currentPath;
+		currentPath = null;
+		currentContent = null;
+
+		String adjustedPath;
+		if (markerPath.isEmpty()) {
+			// 标记中没有写路径时，从该段的Java代码推断
+			adjustedPath = parser.inferPathFromJavaCode(content);
+			if (adjustedPath == null) {
+				parser.logInfo("文件标记缺少路径且无法推断，已跳过");
+				return null;
+			}
+		} else {
+			adjustedPath = parser.adjustFilePath(markerPath);
+		}
+		parser.logInfo("添加文件: " + markerPath + " -> " + adjustedPath + " (内容行数: " + currentLines + ")");
+		return new FileModel(adjustedPath, content);
+	}
+
+	private void finish() {
+		finished = true;
+		// 最后一个代码块标记及其后的内容直接丢弃
+		if (fenceMark >= 0) {
+			if (markerSeen) {
+				currentContent.setLength(fenceMark);
+				currentLines = fenceMarkLines;
+			} else {
+				preamble.setLength(fenceMark);
+			}
+		} else if (openingFence != null && !closingFenceSeen && preamble != null) {
+			// 没有结尾的代码块标记，开头的标记行保留
+			preamble.insert(0, openingFence + '\n');
+		}
+		pendingEmptyLines = 0;
+		if (currentPath != null || markerSeen) {
+			next = completeCurrent();
+			return;
+		}
+		if (!markerSeen && preamble != null && preamble.toString().trim().length() > 0) {
+			String text = preamble.toString();
+			preamble = null;
+			String inferredPath = parser.inferPathFromJavaCode(text);
+			if (inferredPath != null) {
+				parser.logInfo("从整个内容推断文件路径: " + inferredPath);
+				next = new FileModel(inferredPath, text);
+			}
+		}
+	}
+
+	/**
+	 * 读取下一行到line中，同时把\r\n和\r规范化为\n
+	 */
+	private boolean readLine() throws IOException {
+		line.setLength(0);
+		boolean any = false;
+		while (true) {
+			if (position >= limit) {
+				if (eof || !fill()) {
+					return any;
+				}
+			}
+			char c = buffer[position++];
+			if (pendingCarriageReturn) {
+				pendingCarriageReturn = false;
+				if (c == '\n') {
+					continue;
+				}
+			}
+			if (c == '\n') {
+				return true;
+			}
+			if (c == '\r') {
+				pendingCarriageReturn = true;
+				return true;
+			}
+			line.append(c);
+			any = true;
+		}
+	}
+
+	private boolean fill() throws IOException {
+		int read = reader.read(buffer, 0, buffer.length);
+		if (read <= 0) {
+			eof = true;
+			reader.close();
+			return false;
+		}
+		position = 0;
+		limit = read;
+		return true;
+	}
+
+	private static boolean isFenceLine(CharSequence text) {
+		int start = 0;
+		while (start < text.length() && Character.isWhitespace(text.charAt(start))) {
+			start++;
+		}
+		return startsWith(text, start, "```");
+	}
+
+	private static boolean startsWith(CharSequence text, int offset, String prefix) {
+		if (text.length() - offset < prefix.length()) {
+			return false;
+		}
+		for (int i = 0; i < prefix.length(); i++) {
+			if (text.charAt(offset + i) != prefix.charAt(i)) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	/**
+	 * 将CharSequence适配为Reader，避免为了流式解析再复制一份输入
+	 */
+	static class CharSequenceReader extends Reader {
+		private final CharSequence text;
+		private int index;
+
+		CharSequenceReader(CharSequence text) {
+			this.text = text;
+		}
+
+		@Override
+		public int read(char[] cbuf, int off, int len) {
+			if (index >= text.length()) {
+				return -1;
+			}
+			int count = Math.min(len, text.length() - index);
+			for (int i = 0; i < count; i++) {
+				cbuf[off + i] = text.charAt(index++);
+			}
+			return count;
+		}
+
+		@Override
+		public void close() {
+		}
+	}
+}
@@ -0,0 +1,555 @@
+package com.filegenerator.core;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.OverlappingFileLockException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.FileVisitResult;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.SimpleFileVisitor;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ThreadLocalRandom;
+
+import org.eclipse.core.runtime.ILog;
+import org.eclipse.core.runtime.Platform;
+import org.eclipse.core.runtime.Status;
+
+/**
+ * 事务模式生成文件时使用的预写日志。
+ * 所有文件先写到目标目录下的暂存文件，全部成功后记录PREPARED，再逐个通过重命名提交：
+ * 原文件重命名为.orig保留，暂存文件重命名为目标文件。整个过程不复制任何文件，因此回滚只需重命名。
+ * 进程崩溃后，下次启动时{@link #recoverAll()}会把已PREPARED的事务继续提交完，其余事务回滚。
+ * 事务进行中一直持有日志文件的锁，其他进程（或同一进程中的恢复）不会处理仍在进行的事务。
+ *
+ * 日志格式为UTF-8文本，每行一条记录，字段以制表符分隔：
+ * BEGIN id basePath / MKDIR dir / STAGE existed target / BACKUP target hash size lastModified / PREPARED / COMMITTED
+ * BACKUP表示提交后把被替换的原文件移入备份存储，hash为原文件内容的SHA-256，size和lastModified为计算哈希时
+ * 原文件的大小和修改时间，未知时均为-。
+ */
+class GenerationJournal {
+	private static final String JOURNAL_DIR = "journals";
+	private static final String JOURNAL_SUFFIX = ".journal";
+	private static final String UNKNOWN_HASH = "-";
+	// 本进程中正在进行的事务的日志。关闭同一文件的其他通道会释放本进程持有的锁，所以恢复时不能打开这些日志
+	private static final Set<String> LIVE_JOURNALS = ConcurrentHashMap.newKeySet();
+
+	enum State {
+		STAGING, PREPARED, COMMITTED
+	}
+
+	/**
+	 * 一个待提交的文件
+	 */
+	static class Entry {
+		final File target;
+		final File staged;
+		final File original;
+		final boolean existed;
+		// 生成器在暂存完成后填写，用于提交后更新内容清单
+		volatile String relativePath;
+		volatile ContentManifest.ContentDigest digest;
+		// 提交后把被替换的原文件移入备份存储，而不是删除
+		volatile boolean backupByMove;
+		// 内容清单中原文件的摘要及当时的修改时间，未知时为null
+		volatile ContentManifest.Entry originalDigest;
+
+		Entry(File target, String transactionId, boolean existed) {
+			this.target = target;
+			this.staged = new File(target.getParentFile(), "." + target.getName() + "." + transactionId + ".stage");
+			this.original = new File(target.getParentFile(), "." + target.getName() + "." + transactionId + ".orig");
+			this.existed = existed;
+		}
+	}
+
+	private final File journalFile;
+	private final String transactionId;
+	private FileChannel channel;
+	private final Map<String, Entry> entries = new LinkedHashMap<>();
+	private final List<File> createdDirectories = new ArrayList<>();
+	private State state = State.STAGING;
+	// 本进程中已提交的文件数，提交中途失败时只撤销这些文件
+	private int committedCount;
+	private BackupSessionHandle backupSession;
+
+	private GenerationJournal(File journalFile, String transactionId) {
+		this.journalFile = journalFile;
+		this.transactionId = transactionId;
+	}
+
+	/**
+	 * 开始一个新事务
+	 */
+	static GenerationJournal begin(String basePath) throws IOException {
+		File directory = StateLocation.getFile(JOURNAL_DIR);
+		if (!directory.isDirectory() && !directory.mkdirs()) {
+			throw new IOException("无法创建目录: " + directory);
+		}
+		String transactionId = Long.toHexString(ThreadLocalRandom.current().nextLong() & Long.MAX_VALUE);
+		GenerationJournal journal = new GenerationJournal(new File(directory, transactionId + JOURNAL_SUFFIX),
+				transactionId);
+		journal.channel = FileChannel.open(journal.journalFile.toPath(), StandardOpenOption.CREATE_NEW,
+				StandardOpenOption.WRITE, StandardOpenOption.APPEND);
+		// 文件刚刚创建，锁总能获得；通道关闭时释放
+		journal.channel.tryLock();
+		LIVE_JOURNALS.add(journal.journalFile.getAbsolutePath());
+		journal.append("BEGIN", transactionId, checkPath(basePath));
+		// STAGE记录不逐条同步，崩溃后可能丢失；BEGIN同步到磁盘后，恢复时至少能在basePath中找回暂存文件
+		journal.channel.force(true);
+		FileGenerator.syncDirectory(directory.toPath());
+		return journal;
+	}
+
+	/**
+	 * 登记要写入target的文件，返回其暂存位置。同一目标登记多次时返回同一个条目，后写入的内容生效。
+	 */
+	synchronized Entry stage(File target) throws IOException {
+		String key = target.getAbsolutePath();
+		Entry entry = entries.get(key);
+		if (entry == null) {
+			entry = new Entry(target.getAbsoluteFile(), transactionId, target.exists());
+			// 先记录意图再写暂存文件。记录没有同步，断电后丢失时由恢复过程按事务号清理暂存文件
+			append("STAGE", entry.existed ? "1" : "0", checkPath(key));
+			entries.put(key, entry);
+		}
+		return entry;
+	}
+
+	/**
+	 * 标记提交后把entry被替换的原文件移入备份存储。先写入日志，恢复中断的事务时同样会备份。
+	 *
+	 * @param originalDigest 内容清单中原文件的摘要及当时的修改时间，未知时为null
+	 */
+	synchronized void backupByMove(Entry entry, ContentManifest.Entry originalDigest) throws IOException {
+		if (entry.backupByMove) {
+			return;
+		}
+		if (originalDigest != null) {
+			append("BACKUP", checkPath(entry.target.getAbsolutePath()), originalDigest.digest.hash,
+					Long.toString(originalDigest.digest.size), Long.toString(originalDigest.lastModified));
+		} else {
+			append("BACKUP", checkPath(entry.target.getAbsolutePath()), UNKNOWN_HASH, UNKNOWN_HASH, UNKNOWN_HASH);
+		}
+		entry.originalDigest = originalDigest;
+		entry.backupByMove = true;
+	}
+
+	/**
+	 * 记录事务中新建的目录，回滚时如果目录为空则删除
+	 */
+	synchronized void directoryCreated(File directory) throws IOException {
+		append("MKDIR", checkPath(directory.getAbsolutePath()));
+		createdDirectories.add(directory.getAbsoluteFile());
+	}
+
+	/**
+	 * 设置记录被替换原文件的备份会话，只对标记了{@link Entry#backupByMove}的文件有效
+	 */
+	void setBackupSession(BackupSessionHandle backupSession) {
+		this.backupSession = backupSession;
+	}
+
+	synchronized boolean isStaged(File target) {
+		return entries.containsKey(target.getAbsolutePath());
+	}
+
+	/**
+	 * 事务尚未提交或回滚
+	 */
+	synchronized boolean isOpen() {
+		return channel != null;
+	}
+
+	synchronized List<Entry> getEntries() {
+		return new ArrayList<>(entries.values());
+	}
+
+	/**
+	 * 把所有暂存文件同步到磁盘，然后记录PREPARED。此后即使崩溃，事务也会在恢复时提交。
+	 */
+	synchronized void prepare() throws IOException {
+		Set<File> directories = new LinkedHashSet<>();
+		for (Entry entry : entries.values()) {
+			try (FileChannel file = FileChannel.open(entry.staged.toPath(), StandardOpenOption.WRITE)) {
+				file.force(true);
+			}
+			directories.add(entry.staged.getParentFile());
+		}
+		for (File directory : directories) {
+			FileGenerator.syncDirectory(directory.toPath());
+		}
+		append("PREPARED");
+		channel.force(true);
+		state = State.PREPARED;
+	}
+
+	/**
+	 * 通过重命名提交所有文件，记录COMMITTED后删除保留的原文件（或移入备份存储）和日志
+	 */
+	synchronized void commit() throws IOException {
+		if (state != State.PREPARED) {
+			throw new IllegalStateException("事务尚未准备好提交: " + state);
+		}
+		List<Entry> list = new ArrayList<>(entries.values());
+		for (Entry entry : list) {
+			rollForward(entry);
+			committedCount++;
+		}
+		finishCommit(list);
+	}
+
+	/**
+	 * 放弃事务：删除暂存文件，撤销本进程中已提交的文件，删除事务中新建的空目录。
+	 * 提交到一半失败的文件（原文件已改名为.orig，暂存文件还没有改名为目标文件）也会还原。
+	 */
+	synchronized void rollback() {
+		List<Entry> list = new ArrayList<>(entries.values());
+		for (int i = 0; i < list.size(); i++) {
+			Entry entry = list.get(i);
+			try {
+				if (i < committedCount) {
+					undo(entry);
+				} else {
+					Files.deleteIfExists(entry.staged.toPath());
+					if (entry.existed && entry.original.exists() && !entry.target.exists()) {
+						move(entry.original, entry.target);
+					}
+				}
+			} catch (IOException e) {
+				getLog().log(new Status(Status.ERROR, "com.filegenerator", "回滚文件失败: " + entry.target, e));
+			}
+		}
+		deleteEmptyDirectories(createdDirectories);
+		close();
+		deleteJournal(journalFile);
+		getLog().log(new Status(Status.INFO, "com.filegenerator", "事务 " + transactionId + " 已回滚"));
+	}
+
+	private void finishCommit(List<Entry> list) throws IOException {
+		Set<File> directories = new LinkedHashSet<>();
+		for (Entry entry : list) {
+			directories.add(entry.target.getParentFile());
+		}
+		for (File directory : directories) {
+			FileGenerator.syncDirectory(directory.toPath());
+		}
+		if (channel != null) {
+			append("COMMITTED");
+			channel.force(true);
+		}
+		state = State.COMMITTED;
+		deleteOriginals(list);
+		close();
+		deleteJournal(journalFile);
+	}
+
+	/**
+	 * 提交一个文件。可重复执行：暂存文件不存在说明该文件已经提交过
+	 */
+	private static void rollForward(Entry entry) throws IOException {
+		if (!entry.staged.exists()) {
+			return;
+		}
+		if (entry.existed && entry.target.exists() && !entry.original.exists()) {
+			move(entry.target, entry.original);
+		}
+		move(entry.staged, entry.target);
+	}
+
+	private static void undo(Entry entry) throws IOException {
+		if (entry.existed) {
+			if (entry.original.exists()) {
+				move(entry.original, entry.target);
+			}
+		} else {
+			Files.deleteIfExists(entry.target.toPath());
+		}
+	}
+
+	private static void move(File source, File target) throws IOException {
+		try {
+			Files.move(source.toPath(), target.toPath(), StandardCopyOption.ATOMIC_MOVE);
+		} catch (AtomicMoveNotSupportedException e) {
+			Files.move(source.toPath(), target.toPath(), StandardCopyOption.REPLACE_EXISTING);
+		}
+	}
+
+	private void deleteOriginals(List<Entry> list) {
+		for (Entry entry : list) {
+			if (entry.backupByMove && backupSession != null && entry.original.isFile()) {
+				backupSession.backupFileByMove(entry.original, entry.target.getAbsolutePath(), entry.originalDigest);
+			}
+			try {
+				Files.deleteIfExists(entry.original.toPath());
+			} catch (IOException e) {
+				getLog().log(new Status(Status.WARNING, "com.filegenerator", "无法删除保留的原文件: " + entry.original, e));
+			}
+		}
+	}
+
+	/**
+	 * 从最深的目录开始删除，只删除空目录
+	 */
+	private static void deleteEmptyDirectories(List<File> directories) {
+		for (int i = directories.size() - 1; i >= 0; i--) {
+			deleteIfEmpty(directories.get(i));
+		}
+	}
+
+	private static boolean deleteIfEmpty(File directory) {
+		File[] children = directory.listFiles();
+		if (children == null) {
+			return false;
+		}
+		for (File child : children) {
+			if (!child.isDirectory() || !deleteIfEmpty(child)) {
+				return false;
+			}
+		}
+		return directory.delete();
+	}
+
+	private void append(String... fields) throws IOException {
+		String line = String.join("\t", fields) + "\n";
+		ByteBuffer buffer = ByteBuffer.wrap(line.getBytes(StandardCharsets.UTF_8));
+		while (buffer.hasRemaining()) {
+			channel.write(buffer);
+		}
+	}
+
+	private void close() {
+		if (channel != null) {
+			try {
+				channel.close();
+			} catch (IOException e) {
+				// 日志即将被删除，忽略
+			}
+			channel = null;
+		}
+	}
+
+	private static String checkPath(String path) throws IOException {
+		if (path.indexOf('\t') >= 0 || path.indexOf('\n') >= 0 || path.indexOf('\r') >= 0) {
+			throw new IOException("事务模式不支持包含制表符或换行符的路径: " + path);
+		}
+		return path;
+	}
+
+	private static void deleteJournal(File journalFile) {
+		if (journalFile.exists() && !journalFile.delete()) {
+			getLog().log(new Status(Status.WARNING, "com.filegenerator", "无法删除事务日志: " + journalFile));
+		}
+		LIVE_JOURNALS.remove(journalFile.getAbsolutePath());
+	}
+
+	private static ILog getLog() {
+		return Platform.getLog(Platform.getBundle("com.filegenerator"));
+	}
+
+	/**
+	 * 恢复上次运行中被中断的事务：已PREPARED的继续提交，已COMMITTED的完成清理，其余回滚
+	 *
+	 * 日志被其他进程或本进程中仍在进行的事务锁定时跳过。
+	 *
+	 * @return 恢复过程中有文件被修改的目录
+	 */
+	static synchronized Set<File> recoverAll() {
+		Set<File> changed = new LinkedHashSet<>();
+		File[] journals = StateLocation.getFile(JOURNAL_DIR).listFiles((dir, name) -> name.endsWith(JOURNAL_SUFFIX));
+		if (journals == null) {
+			return changed;
+		}
+		for (File journalFile : journals) {
+			if (LIVE_JOURNALS.contains(journalFile.getAbsolutePath())) {
+				continue;
+			}
+			FileChannel channel = null;
+			try {
+				channel = FileChannel.open(journalFile.toPath(), StandardOpenOption.READ, StandardOpenOption.WRITE);
+				if (lock(channel)) {
+					recover(journalFile, channel, changed);
+					channel = null;
+				}
+			} catch (NoSuchFileException e) {
+				// 事务在列出目录之后正常结束
+			} catch (IOException | RuntimeException e) {
+				getLog().log(new Status(Status.ERROR, "com.filegenerator", "恢复中断的文件生成失败: " + journalFile, e));
+			} finally {
+				if (channel != null) {
+					try {
+						channel.close();
+					} catch (IOException e) {
+						// 只是读取过，忽略
+					}
+				}
+			}
+		}
+		return changed;
+	}
+
+	/**
+	 * 获得日志文件的锁，事务仍在进行（其他进程或本进程持有锁）时返回false
+	 */
+	private static boolean lock(FileChannel channel) throws IOException {
+		try {
+			return channel.tryLock() != null;
+		} catch (OverlappingFileLockException e) {
+			return false;
+		}
+	}
+
+	/**
+	 * 删除basePath下属于这个事务、但STAGE记录在崩溃时丢失的暂存文件。只在恢复中断的事务时执行
+	 */
+	private static void deleteOrphanedStageFiles(File basePath, String transactionId, Set<File> changed) {
+		if (!basePath.isDirectory()) {
+			return;
+		}
+		String suffix = "." + transactionId + ".stage";
+		try {
+			Files.walkFileTree(basePath.toPath(), new SimpleFileVisitor<Path>() {
+				@Override
+				public FileVisitResult visitFile(Path file, BasicFileAttributes attrs) throws IOException {
+					String name = file.getFileName().toString();
+					if (name.startsWith(".") && name.endsWith(suffix)) {
+						Files.deleteIfExists(file);
+						changed.add(file.getParent().toFile());
+					}
+					return FileVisitResult.CONTINUE;
+				}
+
+				@Override
+				public FileVisitResult visitFileFailed(Path file, IOException e) {
+					return FileVisitResult.CONTINUE;
+				}
+			});
+		} catch (IOException e) {
+			getLog().log(new Status(Status.WARNING, "com.filegenerator", "清理中断事务的暂存文件失败: " + basePath, e));
+		}
+	}
+
+	/**
+	 * 解析BACKUP记录中原文件的摘要，未知或记录不完整时返回null，恢复时读取原文件重新计算
+	 */
+	private static ContentManifest.Entry parseDigest(String[] fields) {
+		if (fields.length < 5 || UNKNOWN_HASH.equals(fields[2])) {
+			return null;
+		}
+		try {
+			ContentManifest.ContentDigest digest = new ContentManifest.ContentDigest(Long.parseLong(fields[3]), fields[2]);
+			return new ContentManifest.Entry(digest, Long.parseLong(fields[4]));
+		} catch (NumberFormatException e) {
+			return null;
+		}
+	}
+
+	/**
+	 * 恢复一个事务，channel是已锁定的日志文件，由恢复过程关闭
+	 *
+	 * @param changed 收集有文件被修改的目录
+	 */
+	private static void recover(File journalFile, FileChannel channel, Set<File> changed) throws IOException {
+		GenerationJournal journal = null;
+		String basePath = null;
+		State state = State.STAGING;
+		ByteBuffer bytes = ByteBuffer.allocate((int) channel.size());
+		int read;
+		do {
+			read = channel.read(bytes);
+		} while (read >= 0 && bytes.hasRemaining());
+		String content = new String(bytes.array(), 0, bytes.position(), StandardCharsets.UTF_8);
+		// 最后一行如果没有换行符，说明写入时被中断，忽略
+		int end = content.lastIndexOf('\n') + 1;
+		for (String line : content.substring(0, end).split("\n")) {
+			String[] fields = line.split("\t");
+			switch (fields[0]) {
+			case "BEGIN":
+				journal = new GenerationJournal(journalFile, fields[1]);
+				basePath = fields[2];
+				break;
+			case "MKDIR":
+				if (journal != null) {
+					journal.createdDirectories.add(new File(fields[1]));
+				}
+				break;
+			case "STAGE":
+				if (journal != null) {
+					Entry entry = new Entry(new File(fields[2]), journal.transactionId, "1".equals(fields[1]));
+					journal.entries.put(fields[2], entry);
+				}
+				break;
+			case "BACKUP":
+				Entry backup = journal != null ? journal.entries.get(fields[1]) : null;
+				if (backup != null) {
+					backup.backupByMove = true;
+					backup.originalDigest = parseDigest(fields);
+				}
+				break;
+			case "PREPARED":
+				state = State.PREPARED;
+				break;
+			case "COMMITTED":
+				state = State.COMMITTED;
+				break;
+			default:
+				break;
+			}
+		}
+		if (journal == null) {
+			channel.close();
+			deleteJournal(journalFile);
+			return;
+		}
+		// 继续持有锁直到日志被删除
+		journal.channel = channel.position(channel.size());
+		List<Entry> list = new ArrayList<>(journal.entries.values());
+		for (Entry entry : list) {
+			changed.add(entry.target.getParentFile());
+		}
+		for (File directory : journal.createdDirectories) {
+			changed.add(directory.getParentFile());
+		}
+		if (state == State.STAGING) {
+			journal.rollback();
+			deleteOrphanedStageFiles(new File(basePath), journal.transactionId, changed);
+			return;
+		}
+		if (state == State.PREPARED) {
+			for (Entry entry : list) {
+				rollForward(entry);
+			}
+		}
+		// 被中断的生成使用的会话已经丢失，原文件记录在一个新的恢复会话中
+		BackupSessionHandle recoverySession = null;
+		for (Entry entry : list) {
+			if (entry.backupByMove && entry.original.isFile()) {
+				recoverySession = BackupManager.getInstance().openSession();
+				recoverySession.getSession().setDescription("恢复中断的生成 " + journal.transactionId);
+				break;
+			}
+		}
+		journal.backupSession = recoverySession;
+		try {
+			journal.finishCommit(list);
+		} finally {
+			if (recoverySession != null) {
+				recoverySession.close();
+			}
+		}
+		getLog().log(new Status(Status.INFO, "com.filegenerator",
+				"已完成中断的事务 " + journal.transactionId + "，共 " + list.size() + " 个文件"));
+	}
+}
@@ -0,0 +1,82 @@
+package com.filegenerator.core;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * 一次文件生成的结果，按输入顺序记录每个文件的状态
+ */
+public class GenerationReport {
+
+	public enum FileStatus {
+		GENERATED, // 已写入
+		UNCHANGED, // 磁盘上的内容与要生成的内容相同，未做任何修改
+		FAILED,    // 写入失败，见{@link FileResult#getError()}
+		ROLLED_BACK // 事务模式下因其他文件失败而未写入
+	}
+
+	public static class FileResult {
+		private final FileModel fileModel;
+		private final String fullPath;
+		private final FileStatus status;
+		private final IOException error;
+
+		FileResult(FileModel fileModel, String fullPath, FileStatus status, IOException error) {
+			this.fileModel = fileModel;
+			this.fullPath = fullPath;
+			this.status = status;
+			this.error = error;
+		}
+
+		public FileModel getFileModel() {
+			return fileModel;
+		}
+
+		public String getFullPath() {
+			return fullPath;
+		}
+
+		public FileStatus getStatus() {
+			return status;
+		}
+
+		public IOException getError() {
+			return error;
+		}
+	}
+
+	private final List<FileResult> results;
+
+	GenerationReport(List<FileResult> results) {
+		this.results = Collections.unmodifiableList(results);
+	}
+
+	/**
+	 * 与输入顺序一致的结果列表
+	 */
+	public List<FileResult> getResults() {
+		return results;
+	}
+
+	public int getCount(FileStatus status) {
+		int count = 0;
+		for (FileResult result : results) {
+			if (result.getStatus() == status) {
+				count++;
+			}
+		}
+		return count;
+	}
+
+	public List<FileResult> getFailures() {
+		List<FileResult> failures = new ArrayList<>();
+		for (FileResult result : results) {
+			if (result.getStatus() == FileStatus.FAILED) {
+				failures.add(result);
+			}
+		}
+		return failures;
+	}
+}
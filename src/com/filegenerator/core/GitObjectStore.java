@@ -0,0 +1,457 @@
+package com.filegenerator.core;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.FileAlreadyExistsException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.TimeZone;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * 直接读写git仓库对象库的最小实现，不依赖JGit。
+ * 内容写成松散的blob对象（zlib压缩，以"blob 长度\0内容"的SHA-1命名），与仓库中已有的对象自动去重；
+ * 一组文件写成tree和commit，由引用指向，这些对象不会被git gc清除，也可以直接用git命令查看。
+ * 读取时先找松散对象，已被git打包的对象交给git cat-file读取。
+ */
+class GitObjectStore {
+	private static final String OBJECTS_DIR = "objects";
+	private static final String FILE_MODE = "100644";
+	private static final String TREE_MODE = "40000";
+	private static final String AUTHOR = "FileGenerator <filegenerator@localhost>";
+	private static final int BUFFER_SIZE = 64 * 1024;
+	// 丢弃git命令的错误输出。插件要求Java 8，不能使用Java 9的Redirect.DISCARD
+	private static final File NULL_FILE = new File(
+			System.getProperty("os.name", "").startsWith("Windows") ? "NUL" : "/dev/null");
+	// 松散对象的路径：<仓库>/objects/ab/<其余38位SHA-1>
+	private static final Pattern OBJECT_PATH = Pattern.compile("(.*)[/\\\\]" + OBJECTS_DIR + "[/\\\\]([0-9a-f]{2})[/\\\\]([0-9a-f]{38})");
+	// 按目录缓存查找仓库的结果，不在仓库中的目录也缓存；每个备份会话开始时清空，仓库被删除时重新查找
+	private static final Map<File, Optional<GitObjectStore>> REPOSITORIES = new ConcurrentHashMap<>();
+
+	// 对象库和引用所在的目录；工作树(git worktree)使用主仓库的目录
+	private final File commonDir;
+	private final File workTree;
+
+	private GitObjectStore(File commonDir, File workTree) {
+		this.commonDir = commonDir;
+		this.workTree = workTree;
+	}
+
+	/**
+	 * 查找文件所在的git仓库，不在仓库中时返回null
+	 */
+	static GitObjectStore find(File file) {
+		File directory = file.getAbsoluteFile().getParentFile();
+		if (directory == null) {
+			return null;
+		}
+		Optional<GitObjectStore> cached = REPOSITORIES.get(directory);
+		if (cached == null || (cached.isPresent() && !new File(cached.get().commonDir, OBJECTS_DIR).isDirectory())) {
+			cached = Optional.ofNullable(locate(directory));
+			REPOSITORIES.put(directory, cached);
+		}
+		return cached.orElse(null);
+	}
+
+	/**
+	 * 清空查找仓库的缓存，之后新建或移动的仓库可以被找到
+	 */
+	static void clearCache() {
+		REPOSITORIES.clear();
+	}
+
+	private static GitObjectStore locate(File directory) {
+		for (File dir = directory; dir != null; dir = dir.getParentFile()) {
+			File dotGit = new File(dir, ".git");
+			File gitDir = null;
+			if (dotGit.isDirectory()) {
+				gitDir = dotGit;
+			} else if (dotGit.isFile()) {
+				// 子模块和工作树的.git是一个文件：gitdir: <路径>
+				gitDir = readPointer(dotGit, "gitdir:");
+			}
+			if (gitDir == null || !new File(gitDir, "HEAD").isFile()) {
+				continue;
+			}
+			File commonDir = gitDir;
+			if (new File(gitDir, "commondir").isFile()) {
+				File common = readPointer(new File(gitDir, "commondir"), "");
+				if (common != null) {
+					commonDir = common;
+				}
+			}
+			return new File(commonDir, OBJECTS_DIR).isDirectory() ? new GitObjectStore(commonDir, dir) : null;
+		}
+		return null;
+	}
+
+	private static File readPointer(File file, String prefix) {
+		try {
+			String content = new String(Files.readAllBytes(file.toPath()), StandardCharsets.UTF_8).trim();
+			if (!content.startsWith(prefix)) {
+				return null;
+			}
+			File target = new File(content.substring(prefix.length()).trim());
+			return target.isAbsolute() ? target : new File(file.getParentFile(), target.getPath());
+		} catch (IOException e) {
+			return null;
+		}
+	}
+
+	/**
+	 * 从松散对象的路径得到对象的SHA-1，不是git对象的路径时返回null
+	 */
+	static String getObjectId(String objectPath) {
+		Matcher matcher = OBJECT_PATH.matcher(objectPath);
+		return matcher.matches() ? matcher.group(2) + matcher.group(3) : null;
+	}
+
+	/**
+	 * 松散对象路径所在的仓库，只用于读取对象
+	 */
+	static GitObjectStore forObjectPath(String objectPath) {
+		Matcher matcher = OBJECT_PATH.matcher(objectPath);
+		return matcher.matches() ? new GitObjectStore(new File(matcher.group(1)), null) : null;
+	}
+
+	File getCommonDir() {
+		return commonDir;
+	}
+
+	/**
+	 * 文件相对工作树的路径，使用/分隔；不在工作树中时返回null
+	 */
+	String relativize(File file) {
+		if (workTree == null) {
+			return null;
+		}
+		Path relative;
+		try {
+			relative = workTree.toPath().relativize(file.getAbsoluteFile().toPath());
+		} catch (IllegalArgumentException e) {
+			return null;
+		}
+		String path = relative.toString().replace(File.separatorChar, '/');
+		return path.isEmpty() || path.startsWith("../") || path.equals("..") ? null : path;
+	}
+
+	File getObjectFile(String objectId) {
+		return new File(new File(new File(commonDir, OBJECTS_DIR), objectId.substring(0, 2)), objectId.substring(2));
+	}
+
+	boolean hasLooseObject(String objectId) {
+		return getObjectFile(objectId).isFile();
+	}
+
+	/**
+	 * 把size字节的内容写成blob对象，边读边压缩和计算SHA-1，不把内容读入内存
+	 *
+	 * @return 对象的SHA-1
+	 */
+	String writeBlob(InputStream in, long size) throws IOException {
+		return writeObject("blob", in, size);
+	}
+
+	/**
+	 * 把文件写成tree对象，按目录嵌套
+	 *
+	 * @param files 相对工作树的路径（/分隔）到blob的SHA-1
+	 * @return 根tree的SHA-1
+	 */
+	String writeTree(Map<String, String> files) throws IOException {
+		Map<String, Object> root = new TreeMap<>();
+		for (Map.Entry<String, String> e : files.entrySet()) {
+			String[] names = e.getKey().split("/");
+			Map<String, Object> dir = root;
+			for (int i = 0; i < names.length - 1; i++) {
+				Object child = dir.get(names[i]);
+				if (!(child instanceof Map)) {
+					child = new TreeMap<String, Object>();
+					dir.put(names[i], child);
+				}
+				@SuppressWarnings("unchecked")
+				Map<String, Object> next = (Map<String, Object>) child;
+				dir = next;
+			}
+			dir.putIfAbsent(names[names.length - 1], e.getValue());
+		}
+		return writeTreeLevel(root);
+	}
+
+	private String writeTreeLevel(Map<String, Object> dir) throws IOException {
+		List<String[]> entries = new ArrayList<>();
+		for (Map.Entry<String, Object> e : dir.entrySet()) {
+			if (e.getValue() instanceof Map) {
+				@SuppressWarnings("unchecked")
+				Map<String, Object> child = (Map<String, Object>) e.getValue();
+				entries.add(new String[] { TREE_MODE, e.getKey(), writeTreeLevel(child) });
+			} else {
+				entries.add(new String[] { FILE_MODE, e.getKey(), (String) e.getValue() });
+			}
+		}
+		// git按名称的字节排序，子目录按名称后加/比较
+		entries.sort((a, b) -> compareBytes(sortKey(a), sortKey(b)));
+		ByteArrayOutputStream body = new ByteArrayOutputStream();
+		for (String[] entry : entries) {
+			body.write((entry[0] + " " + entry[1] + "\0").getBytes(StandardCharsets.UTF_8));
+			body.write(fromHex(entry[2]));
+		}
+		byte[] bytes = body.toByteArray();
+		return writeObject("tree", new ByteArrayInputStream(bytes), bytes.length);
+	}
+
+	private static byte[] sortKey(String[] entry) {
+		return (TREE_MODE.equals(entry[0]) ? entry[1] + "/" : entry[1]).getBytes(StandardCharsets.UTF_8);
+	}
+
+	private static int compareBytes(byte[] a, byte[] b) {
+		for (int i = 0; i < a.length && i < b.length; i++) {
+			int c = (a[i] & 0xff) - (b[i] & 0xff);
+			if (c != 0) {
+				return c;
+			}
+		}
+		return a.length - b.length;
+	}
+
+	/**
+	 * 写一个commit对象，提交时间为time
+	 *
+	 * @param parentId 父提交，没有时为null
+	 */
+	String writeCommit(String treeId, String parentId, String message, Date time) throws IOException {
+		int offsetMinutes = TimeZone.getDefault().getOffset(time.getTime()) / 60000;
+		String zone = String.format("%s%02d%02d", offsetMinutes < 0 ? "-" : "+", Math.abs(offsetMinutes) / 60,
+				Math.abs(offsetMinutes) % 60);
+		String signature = AUTHOR + " " + time.getTime() / 1000 + " " + zone;
+		byte[] bytes = ("tree " + treeId + "\n" + (parentId != null ? "parent " + parentId + "\n" : "") + "author " + signature + "\ncommitter " + signature + "\n\n" + message + "\n")
+				.getBytes(StandardCharsets.UTF_8);
+		return writeObject("commit", new ByteArrayInputStream(bytes), bytes.length);
+	}
+
+	private String writeObject(String type, InputStream in, long size) throws IOException {
+		File objects = new File(commonDir, OBJECTS_DIR);
+		Path temp = objects.toPath().resolve("tmp_obj_" + Long.toHexString(ThreadLocalRandom.current().nextLong()));
+		try {
+			MessageDigest sha1 = newSha1();
+			byte[] header = (type + " " + size + "\0").getBytes(StandardCharsets.US_ASCII);
+			sha1.update(header);
+			long written = 0;
+			// git的对象是zlib格式，与DEFLATE编码相同
+			try (OutputStream out = BackupCodec.DEFLATE.encode(Files.newOutputStream(temp, StandardOpenOption.CREATE_NEW))) {
+				out.write(header);
+				byte[] buffer = new byte[BUFFER_SIZE];
+				int read;
+				while ((read = in.read(buffer)) != -1) {
+					sha1.update(buffer, 0, read);
+					out.write(buffer, 0, read);
+					written += read;
+				}
+			}
+			if (written != size) {
+				throw new IOException("写入git对象时内容长度发生变化: " + size + " -> " + written);
+			}
+			String objectId = ContentManifest.toHex(sha1.digest());
+			File object = getObjectFile(objectId);
+			if (object.isFile()) {
+				return objectId;
+			}
+			File parent = object.getParentFile();
+			if (!parent.isDirectory() && !parent.mkdirs() && !parent.isDirectory()) {
+				throw new IOException("无法创建目录: " + parent);
+			}
+			try {
+				Files.move(temp, object.toPath(), StandardCopyOption.ATOMIC_MOVE);
+			} catch (AtomicMoveNotSupportedException e) {
+				Files.move(temp, object.toPath(), StandardCopyOption.REPLACE_EXISTING);
+			}
+			object.setReadOnly();
+			return objectId;
+		} finally {
+			Files.deleteIfExists(temp);
+		}
+	}
+
+	/**
+	 * 读取blob对象的内容并校验SHA-1
+	 */
+	byte[] readBlob(String objectId) throws IOException {
+		File object = getObjectFile(objectId);
+		byte[] content;
+		if (object.isFile()) {
+			byte[] raw;
+			try (InputStream in = BackupCodec.DEFLATE.decode(Files.newInputStream(object.toPath()))) {
+				raw = readAll(in);
+			}
+			int nul = 0;
+			while (nul < raw.length && raw[nul] != 0) {
+				nul++;
+			}
+			String header = new String(raw, 0, nul, StandardCharsets.US_ASCII);
+			if (nul == raw.length || !header.equals("blob " + (raw.length - nul - 1))) {
+				throw new IOException("git对象已损坏或不是blob: " + object);
+			}
+			content = new byte[raw.length - nul - 1];
+			System.arraycopy(raw, nul + 1, content, 0, content.length);
+		} else {
+			content = catFile(objectId);
+		}
+		MessageDigest sha1 = newSha1();
+		sha1.update(("blob " + content.length + "\0").getBytes(StandardCharsets.US_ASCII));
+		if (!ContentManifest.toHex(sha1.digest(content)).equals(objectId)) {
+			throw new IOException("git对象的内容与SHA-1不一致: " + objectId);
+		}
+		return content;
+	}
+
+	/**
+	 * 把blob对象的内容写到target，校验内容的SHA-256。先写入同一目录下的临时文件再替换。
+	 */
+	void copyTo(String objectId, String contentHash, Path target) throws IOException {
+		byte[] content = readBlob(objectId);
+		if (contentHash != null && !ContentManifest.toHex(ContentManifest.newMessageDigest().digest(content)).equals(contentHash)) {
+			throw new IOException("git对象的内容与备份记录不一致: " + objectId);
+		}
+		Path temp = target.resolveSibling("." + target.getFileName() + "."
+				+ Long.toHexString(ThreadLocalRandom.current().nextLong()) + ".tmp");
+		try {
+			Files.write(temp, content, StandardOpenOption.CREATE_NEW);
+			try {
+				Files.move(temp, target, StandardCopyOption.ATOMIC_MOVE);
+			} catch (AtomicMoveNotSupportedException e) {
+				Files.move(temp, target, StandardCopyOption.REPLACE_EXISTING);
+			}
+		} finally {
+			Files.deleteIfExists(temp);
+		}
+	}
+
+	/**
+	 * 已被打包的对象不再是单独的文件，用git命令读取
+	 */
+	private byte[] catFile(String objectId) throws IOException {
+		Process process = new ProcessBuilder("git", "--git-dir=" + commonDir.getAbsolutePath(), "cat-file", "blob", objectId)
+				.redirectError(ProcessBuilder.Redirect.appendTo(NULL_FILE)).start();
+		byte[] content;
+		try (InputStream in = process.getInputStream()) {
+			content = readAll(in);
+		}
+		try {
+			if (process.waitFor() != 0) {
+				throw new IOException("git对象不存在: " + objectId);
+			}
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new IOException("读取git对象被中断: " + objectId, e);
+		}
+		return content;
+	}
+
+	/**
+	 * 把引用指向objectId，与git相同先写入.lock文件再替换
+	 */
+	void updateRef(String name, String objectId) throws IOException {
+		File ref = new File(commonDir, name);
+		File parent = ref.getParentFile();
+		if (!parent.isDirectory() && !parent.mkdirs() && !parent.isDirectory()) {
+			throw new IOException("无法创建目录: " + parent);
+		}
+		replaceLocked(ref, (objectId + "\n").getBytes(StandardCharsets.US_ASCII));
+	}
+
+	/**
+	 * 删除引用，包括已被git pack-refs写入packed-refs的记录
+	 */
+	void deleteRef(String name) throws IOException {
+		Files.deleteIfExists(new File(commonDir, name).toPath());
+		File packed = new File(commonDir, "packed-refs");
+		if (!packed.isFile()) {
+			return;
+		}
+		List<String> lines = Files.readAllLines(packed.toPath(), StandardCharsets.UTF_8);
+		List<String> kept = new ArrayList<>();
+		boolean removed = false;
+		boolean skipPeeled = false;
+		for (String line : lines) {
+			if (skipPeeled && line.startsWith("^")) {
+				continue;
+			}
+			skipPeeled = line.endsWith(" " + name);
+			if (skipPeeled) {
+				removed = true;
+			} else {
+				kept.add(line);
+			}
+		}
+		if (removed) {
+			StringBuilder content = new StringBuilder();
+			for (String line : kept) {
+				content.append(line).append('\n');
+			}
+			replaceLocked(packed, content.toString().getBytes(StandardCharsets.UTF_8));
+		}
+	}
+
+	private static void replaceLocked(File file, byte[] content) throws IOException {
+		Path lock = new File(file.getPath() + ".lock").toPath();
+		try {
+			Files.write(lock, content, StandardOpenOption.CREATE_NEW);
+		} catch (FileAlreadyExistsException e) {
+			throw new IOException("引用正被其他git进程修改: " + file, e);
+		}
+		try {
+			try {
+				Files.move(lock, file.toPath(), StandardCopyOption.ATOMIC_MOVE);
+			} catch (AtomicMoveNotSupportedException e) {
+				Files.move(lock, file.toPath(), StandardCopyOption.REPLACE_EXISTING);
+			}
+		} finally {
+			Files.deleteIfExists(lock);
+		}
+	}
+
+	private static MessageDigest newSha1() {
+		try {
+			return MessageDigest.getInstance("SHA-1");
+		} catch (NoSuchAlgorithmException e) {
+			throw new IllegalStateException(e);
+		}
+	}
+
+	private static byte[] fromHex(String hex) {
+		byte[] bytes = new byte[hex.length() / 2];
+		for (int i = 0; i < bytes.length; i++) {
+			bytes[i] = (byte) Integer.parseInt(hex.substring(i * 2, i * 2 + 2), 16);
+		}
+		return bytes;
+	}
+
+	private static byte[] readAll(InputStream in) throws IOException {
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		byte[] buffer = new byte[BUFFER_SIZE];
+		int read;
+		while ((read = in.read(buffer)) != -1) {
+			out.write(buffer, 0, read);
+		}
+		return out.toByteArray();
+	}
+}
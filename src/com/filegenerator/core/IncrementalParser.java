@@ -0,0 +1,177 @@
+package com.filegenerator.core;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * 增量解析器，用于编辑过程中反复解析同一段文本。
+ * 保留上一次解析的标记索引和各文件段的路径，文本被修改后只重新扫描被修改的那几行，
+ * 修改位置之前的标记原样保留，之后的标记只平移偏移量，路径也只为受影响的文件段重新计算。
+ * 输入是Markdown聊天回复等无法增量处理的情况时退回完整解析。
+ */
+public class IncrementalParser {
+	private final TextParser parser;
+
+	// 上一次解析的状态；markers为null表示上一次是完整解析，下一次也只能完整解析
+	private String buffer;
+	private int begin;
+	private int end;
+	private MarkerIndex markers;
+	private String[] paths;
+	private boolean hasCarriageReturn;
+
+	public IncrementalParser(TextParser parser) {
+		this.parser = parser;
+	}
+
+	public TextParser getParser() {
+		return parser;
+	}
+
+	/**
+	 * 完整解析text，并记录下次增量解析所需的状态
+	 */
+	public synchronized List<FileModel> parse(CharSequence text) {
+		markers = null;
+		hasCarriageReturn = containsCarriageReturn(text);
+		buffer = TextParser.normalizeLineEndings(text);
+		if (!parser.isPlainLayout(buffer)) {
+			return parser.parseSlices(buffer);
+		}
+		int[] range = parser.contentRange(buffer, false);
+		MarkerIndex index = MarkerIndex.scan(buffer, range[0], range[1], parser.getMarkerMatcher());
+		if (index.size() == 0) {
+			// 没有文件标记时需要从整个内容推断路径，交给TextParser处理
+			return parser.parseSlices(buffer);
+		}
+		begin = range[0];
+		end = range[1];
+		markers = index;
+		paths = new String[index.size()];
+		return buildModels();
+	}
+
+	/**
+	 * 文本被修改后重新解析。修改以原始文本（未规范化换行符）中的位置描述：
+	 * 从start开始的removedLength个字符被替换成了insertedLength个字符。
+	 */
+	public synchronized List<FileModel> update(CharSequence text, int start, int removedLength, int insertedLength) {
+		if (markers == null || start < 0 || removedLength < 0 || insertedLength < 0
+				|| start + insertedLength > text.length()) {
+			return parse(text);
+		}
+		String oldBuffer = buffer;
+		String newBuffer;
+		int editStart = start;
+		int removed = removedLength;
+		int inserted = insertedLength;
+		if (hasCarriageReturn || containsCarriageReturn(text)) {
+			// 换行符规范化会改变偏移量，把修改区间换算到规范化之后的文本上
+			newBuffer = TextParser.normalizeLineEndings(text);
+			int prefixEnd = start;
+			if (prefixEnd > 0 && text.charAt(prefixEnd - 1) == '\r') {
+				prefixEnd--;
+			}
+			int suffixStart = start + insertedLength;
+			if (suffixStart < text.length() && text.charAt(suffixStart) == '\n') {
+				suffixStart++;
+			}
+			editStart = prefixEnd - countLineBreakPairs(text, 0, prefixEnd);
+			int suffixLength = text.length() - suffixStart - countLineBreakPairs(text, suffixStart, text.length());
+			removed = oldBuffer.length() - suffixLength - editStart;
+			inserted = newBuffer.length() - suffixLength - editStart;
+			hasCarriageReturn = containsCarriageReturn(text);
+		} else {
+			newBuffer = text.toString();
+		}
+		if (removed < 0 || inserted < 0 || oldBuffer.length() - removed + inserted != newBuffer.length()) {
+			return parse(text);
+		}
+
+		int delta = inserted - removed;
+		int[] range = parser.isPlainLayout(newBuffer) ? parser.contentRange(newBuffer, false) : null;
+		// 修改涉及包裹输入的代码块标记或解析方式发生变化时，完整解析
+		if (range == null || range[0] != begin || range[1] != end + delta || editStart < begin
+				|| editStart + removed > end) {
+			return parse(text);
+		}
+
+		// 受影响的行：从修改位置所在行的行首到修改结束位置所在行的行尾
+		int lineStart = editStart;
+		while (lineStart > begin && newBuffer.charAt(lineStart - 1) != '\n') {
+			lineStart--;
+		}
+		int oldLineEnd = MarkerIndex.indexOfNewline(oldBuffer, editStart + removed, end);
+		int newLineEnd = MarkerIndex.indexOfNewline(newBuffer, editStart + inserted, range[1]);
+
+		FileMarkerMatcher matcher = parser.getMarkerMatcher();
+		MarkerIndex rescanned = MarkerIndex.scan(newBuffer, lineStart, newLineEnd, matcher);
+		MarkerIndex updated = new MarkerIndex();
+		List<String> updatedPaths = new ArrayList<>(markers.size() + rescanned.size());
+		int i = 0;
+		while (i < markers.size() && markers.lineStart(i) < lineStart) {
+			updated.addShifted(markers, i, 0);
+			updatedPaths.add(paths[i]);
+			i++;
+		}
+		if (!updatedPaths.isEmpty()) {
+			// 修改位置之前最近的文件段内容发生了变化，路径可能需要重新推断
+			updatedPaths.set(updatedPaths.size() - 1, null);
+		}
+		for (int j = 0; j < rescanned.size(); j++) {
+			updated.addShifted(rescanned, j, 0);
+			updatedPaths.add(null);
+		}
+		while (i < markers.size() && markers.lineStart(i) <= oldLineEnd) {
+			i++;
+		}
+		for (; i < markers.size(); i++) {
+			updated.addShifted(markers, i, delta);
+			updatedPaths.add(paths[i]);
+		}
+		if (updated.size() == 0) {
+			return parse(text);
+		}
+
+		buffer = newBuffer;
+		end = range[1];
+		markers = updated;
+		paths = updatedPaths.toArray(new String[0]);
+		return buildModels();
+	}
+
+	private List<FileModel> buildModels() {
+		parser.resolveSegmentPaths(buffer, markers, end, paths);
+		List<FileModel> fileModels = new ArrayList<>(markers.size());
+		for (int i = 0; i < markers.size(); i++) {
+			if (!paths[i].isEmpty()) {
+				fileModels.add(new SliceFileModel(paths[i], buffer, TextParser.segmentContentStart(markers, i, end),
+						TextParser.segmentContentEnd(buffer, markers, i, end)));
+			}
+		}
+		return fileModels;
+	}
+
+	private static boolean containsCarriageReturn(CharSequence text) {
+		if (text instanceof String) {
+			return ((String) text).indexOf('\r') != -1;
+		}
+		for (int i = 0; i < text.length(); i++) {
+			if (text.charAt(i) == '\r') {
+				return true;
+			}
+		}
+		return false;
+	}
+
+	private static int countLineBreakPairs(CharSequence text, int from, int to) {
+		int count = 0;
+		for (int i = from; i + 1 < to; i++) {
+			if (text.charAt(i) == '\r' && text.charAt(i + 1) == '\n') {
+				count++;
+				i++;
+			}
+		}
+		return count;
+	}
+}
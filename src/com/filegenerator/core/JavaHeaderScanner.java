@@ -0,0 +1,268 @@
+package com.filegenerator.core;
+
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.Set;
+
+/**
+ * Java文件头部的小型词法扫描器，用于推断文件路径。
+ * 只从文件开头扫描到第一个顶层类型声明为止：跳过注释、注解（包括其中的字符串字面量）和import，
+ * 识别package以及class/interface/enum/record/@interface声明。扫描长度有上限，
+ * 推断的开销与文件长度无关。
+ */
+class JavaHeaderScanner {
+	// 类型声明之前的内容（版权注释、import等）不会超过这个长度
+	static final int MAX_HEADER_LENGTH = 64 * 1024;
+
+	private static final Set<String> MODIFIERS = new HashSet<>(Arrays.asList("public", "protected", "private",
+			"abstract", "final", "static", "sealed", "strictfp"));
+	private static final Set<String> TYPE_KEYWORDS = new HashSet<>(Arrays.asList("class", "interface", "enum",
+			"record"));
+
+	private final CharSequence text;
+	private final int end;
+	private int pos;
+
+	private String packageName;
+
+	private JavaHeaderScanner(CharSequence text, int start, int end) {
+		this.text = text;
+		this.pos = start;
+		this.end = Math.min(end, start + MAX_HEADER_LENGTH);
+	}
+
+	/**
+	 * 扫描[start, end)区间的Java代码头部
+	 *
+	 * @return "包路径/类型名.java"形式的相对路径（默认包时只有文件名），无法识别时返回null
+	 */
+	static String inferRelativePath(CharSequence text, int start, int end) {
+		JavaHeaderScanner scanner = new JavaHeaderScanner(text, start, end);
+		String typeName = scanner.scanToTypeName();
+		if (typeName == null) {
+			return null;
+		}
+		String fileName = typeName + ".java";
+		return scanner.packageName != null ? scanner.packageName.replace('.', '/') + "/" + fileName : fileName;
+	}
+
+	private String scanToTypeName() {
+		while (true) {
+			skipWhitespaceAndComments();
+			if (pos >= end) {
+				return null;
+			}
+			char c = text.charAt(pos);
+			if (c == ';') {
+				pos++;
+				continue;
+			}
+			if (c == '@') {
+				pos++;
+				skipWhitespaceAndComments();
+				String name = readQualifiedName();
+				if (name == null) {
+					return null;
+				}
+				if (name.equals("interface")) {
+					return readTypeName(false);
+				}
+				skipWhitespaceAndComments();
+				if (pos < end && text.charAt(pos) == '(' && !skipParenthesized()) {
+					return null;
+				}
+				continue;
+			}
+			String word = readIdentifier();
+			if (word == null) {
+				return null;
+			}
+			if (word.equals("package")) {
+				if (packageName != null) {
+					return null;
+				}
+				skipWhitespaceAndComments();
+				packageName = readQualifiedName();
+				skipWhitespaceAndComments();
+				if (packageName == null || pos >= end || text.charAt(pos) != ';') {
+					return null;
+				}
+				pos++;
+			} else if (word.equals("import")) {
+				if (!skipTo(';')) {
+					return null;
+				}
+			} else if (word.equals("non") && startsWith("-sealed")) {
+				pos += "-sealed".length();
+			} else if (TYPE_KEYWORDS.contains(word)) {
+				return readTypeName(word.equals("record"));
+			} else if (!MODIFIERS.contains(word)) {
+				// 既不是声明也不是修饰符，说明这不是Java代码（例如说明文字或其他语言）
+				return null;
+			}
+		}
+	}
+
+	/**
+	 * 读取类型名，并检查其后的内容确实是Java类型声明，避免把Python等语言的class误认为Java
+	 */
+	private String readTypeName(boolean record) {
+		skipWhitespaceAndComments();
+		String name = readIdentifier();
+		if (name == null) {
+			return null;
+		}
+		skipWhitespaceAndComments();
+		if (pos >= end) {
+			return name;
+		}
+		char c = text.charAt(pos);
+		if (c == '{' || c == '<' || (record && c == '(')) {
+			return name;
+		}
+		String next = readIdentifier();
+		if (next != null && (next.equals("extends") || next.equals("implements") || next.equals("permits"))) {
+			return name;
+		}
+		return null;
+	}
+
+	private void skipWhitespaceAndComments() {
+		while (pos < end) {
+			char c = text.charAt(pos);
+			if (Character.isWhitespace(c) || c == '\uFEFF') {
+				pos++;
+			} else if (c == '/' && pos + 1 < end && text.charAt(pos + 1) == '/') {
+				while (pos < end && text.charAt(pos) != '\n') {
+					pos++;
+				}
+			} else if (c == '/' && pos + 1 < end && text.charAt(pos + 1) == '*') {
+				pos += 2;
+				while (pos < end && !(text.charAt(pos) == '*' && pos + 1 < end && text.charAt(pos + 1) == '/')) {
+					pos++;
+				}
+				pos = Math.min(pos + 2, end);
+			} else {
+				return;
+			}
+		}
+	}
+
+	private String readIdentifier() {
+		if (pos >= end || !Character.isJavaIdentifierStart(text.charAt(pos))) {
+			return null;
+		}
+		int start = pos;
+		while (pos < end && Character.isJavaIdentifierPart(text.charAt(pos))) {
+			pos++;
+		}
+		return text.subSequence(start, pos).toString();
+	}
+
+	private String readQualifiedName() {
+		StringBuilder name = new StringBuilder();
+		while (true) {
+			String part = readIdentifier();
+			if (part == null) {
+				return null;
+			}
+			name.append(part);
+			int mark = pos;
+			skipWhitespaceAndComments();
+			if (pos < end && text.charAt(pos) == '.') {
+				pos++;
+				skipWhitespaceAndComments();
+				name.append('.');
+			} else {
+				pos = mark;
+				return name.toString();
+			}
+		}
+	}
+
+	/**
+	 * 跳过注解参数等括号内的内容，正确处理嵌套括号、字符串、字符和文本块字面量
+	 */
+	private boolean skipParenthesized() {
+		int depth = 0;
+		while (pos < end) {
+			char c = text.charAt(pos);
+			if (c == '"' || c == '\'') {
+				if (!skipLiteral(c)) {
+					return false;
+				}
+				continue;
+			}
+			if (c == '/' && pos + 1 < end && (text.charAt(pos + 1) == '/' || text.charAt(pos + 1) == '*')) {
+				skipWhitespaceAndComments();
+				continue;
+			}
+			pos++;
+			if (c == '(') {
+				depth++;
+			} else if (c == ')' && --depth == 0) {
+				return true;
+			}
+		}
+		return false;
+	}
+
+	private boolean skipLiteral(char quote) {
+		if (quote == '"' && startsWith("\"\"\"")) {
+			pos += 3;
+			while (pos < end) {
+				if (text.charAt(pos) == '\\') {
+					pos += 2;
+				} else if (startsWith("\"\"\"")) {
+					pos += 3;
+					return true;
+				} else {
+					pos++;
+				}
+			}
+			return false;
+		}
+		pos++;
+		while (pos < end) {
+			char c = text.charAt(pos);
+			if (c == '\\') {
+				pos += 2;
+			} else if (c == quote) {
+				pos++;
+				return true;
+			} else if (c == '\n') {
+				return false;
+			} else {
+				pos++;
+			}
+		}
+		return false;
+	}
+
+	private boolean skipTo(char target) {
+		while (pos < end) {
+			char c = text.charAt(pos);
+			if (c == '/' && pos + 1 < end && (text.charAt(pos + 1) == '/' || text.charAt(pos + 1) == '*')) {
+				skipWhitespaceAndComments();
+				continue;
+			}
+			pos++;
+			if (c == target) {
+				return true;
+			}
+		}
+		return false;
+	}
+
+	private boolean startsWith(String prefix) {
+		if (end - pos < prefix.length()) {
+			return false;
+		}
+		for (int i = 0; i < prefix.length(); i++) {
+			if (text.charAt(pos + i) != prefix.charAt(i)) {
+				return false;
+			}
+		}
+		return true;
+	}
+}
@@ -0,0 +1,295 @@
+package com.filegenerator.core;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.Set;
+
+/**
+ * 完整LLM聊天回复的单遍扫描器（Markdown精简版）。
+ * 代码块之外的标题、粗体、行内代码等位置出现的文件路径被记为"路径提示"，
+ * 每个代码块关闭时，优先使用块内的文件标记，其次使用最近的路径提示，最后尝试从Java代码推断路径。
+ * 每行只访问一次，不会回溯整个文本。
+ */
+class MarkdownScanner {
+	private static final int MAX_PATH_LENGTH = 260;
+	private static final String[] PATH_LABELS = { "File:", "file:", "Filename:", "filename:", "Path:", "path:", "文件：",
+			"文件:" };
+	// 不含目录的路径提示只接受这些扩展名，避免把java.util.List之类的限定名当作文件
+	private static final Set<String> KNOWN_EXTENSIONS = new HashSet<>(Arrays.asList("java", "kt", "kts", "groovy",
+			"scala", "gradle", "xml", "xsd", "xsl", "properties", "yml", "yaml", "json", "toml", "ini", "cfg", "conf",
+			"mf", "md", "txt", "csv", "sql", "html", "htm", "css", "scss", "less", "js", "jsx", "mjs", "ts", "tsx", "vue",
+			"py", "rb", "go", "rs", "c", "h", "cc", "cpp", "hpp", "cs", "php", "swift", "lua", "sh", "bat", "cmd", "ps1",
+			"proto", "svg"));
+
+	private final TextParser parser;
+	private final FileMarkerMatcher matcher;
+	private final String buffer;
+	private final int begin;
+	private final int end;
+	private final boolean auto;
+
+	private final List<FileModel> fileModels = new ArrayList<>();
+	private String pathHint;
+	// 自动模式下第一个代码块之前出现的文件标记，之后必须紧跟代码块
+	private boolean markerBeforeBlock;
+	private int blockCount;
+
+	// 当前代码块的状态
+	private char fenceChar;
+	private int fenceLength;
+	private int blockStart = -1;
+	private MarkerIndex blockMarkers;
+
+	/**
+	 * @param auto 自动模式下，如果在任何代码块之前遇到的文件标记之后不是紧跟着代码块，说明输入并非聊天回复，放弃扫描
+	 */
+	MarkdownScanner(TextParser parser, FileMarkerMatcher matcher, String buffer, int begin, int end, boolean auto) {
+		this.parser = parser;
+		this.matcher = matcher;
+		this.buffer = buffer;
+		this.begin = begin;
+		this.end = end;
+		this.auto = auto;
+	}
+
+	/**
+	 * @return 提取出的文件；如果输入中没有代码块（或自动模式下判断不是聊天回复）则返回null，由调用方按普通文本解析
+	 */
+	List<FileModel> scan() {
+		int lineStart = begin;
+		while (lineStart < end) {
+			int lineEnd = MarkerIndex.indexOfNewline(buffer, lineStart, end);
+			if (blockStart < 0) {
+				if (!scanOutsideBlock(lineStart, lineEnd)) {
+					return null;
+				}
+			} else {
+				scanInsideBlock(lineStart, lineEnd);
+			}
+			lineStart = lineEnd + 1;
+		}
+		if (blockStart >= 0) {
+			// 未关闭的代码块延续到文本末尾
+			closeBlock(end);
+		}
+		if (blockCount == 0) {
+			return null;
+		}
+		parser.logInfo("从Markdown回复的 " + blockCount + " 个代码块中提取了 " + fileModels.size() + " 个文件");
+		return fileModels;
+	}
+
+	private boolean scanOutsideBlock(int lineStart, int lineEnd) {
+		int start = skipWhitespace(lineStart, lineEnd);
+		int fence = fenceLength(start, lineEnd);
+		if (fence > 0) {
+			fenceChar = buffer.charAt(start);
+			fenceLength = fence;
+			blockStart = Math.min(lineEnd + 1, end);
+			blockMarkers = new MarkerIndex();
+			markerBeforeBlock = false;
+			return true;
+		}
+		if (markerBeforeBlock && start < lineEnd) {
+			// 文件标记之后是普通文本，按普通文本格式解析
+			return false;
+		}
+		long match = matcher.match(buffer, lineStart, lineEnd);
+		if (match != FileMarkerMatcher.NO_MATCH) {
+			// 代码块之外的文件标记作为下一个代码块的路径提示
+			pathHint = matcher.extractPath(buffer, match, lineEnd);
+			markerBeforeBlock = auto && blockCount == 0;
+			return true;
+		}
+		if (start < lineEnd) {
+			String hint = findPathHint(buffer.substring(start, lineEnd));
+			if (hint != null) {
+				pathHint = hint;
+			}
+		}
+		return true;
+	}
+
+	private void scanInsideBlock(int lineStart, int lineEnd) {
+		int start = skipWhitespace(lineStart, lineEnd);
+		if (isClosingFence(start, lineEnd)) {
+			closeBlock(lineStart);
+			return;
+		}
+		long match = matcher.match(buffer, lineStart, lineEnd);
+		if (match != FileMarkerMatcher.NO_MATCH) {
+			blockMarkers.add(lineStart, lineEnd, match);
+		}
+	}
+
+	private void closeBlock(int blockEnd) {
+		blockCount++;
+		int contentStart = blockStart;
+		blockStart = -1;
+		if (blockMarkers.size() > 0) {
+			for (int i = 0; i < blockMarkers.size(); i++) {
+				FileModel model = parser.createSegment(buffer, blockMarkers, i, blockEnd, true);
+				if (model != null) {
+					fileModels.add(model);
+				}
+			}
+		} else if (pathHint != null) {
+			String adjustedPath = parser.adjustFilePath(pathHint);
+			parser.logInfo("代码块使用路径提示: " + pathHint + " -> " + adjustedPath);
+			fileModels.add(new SliceFileModel(adjustedPath, buffer, contentStart, blockEnd));
+		} else {
+			String inferredPath = parser.inferPathFromJavaCode(new SliceFileModel.ContentSlice(buffer, contentStart, blockEnd));
+			if (inferredPath != null) {
+				parser.logInfo("从代码块推断文件路径: " + inferredPath);
+				fileModels.add(new SliceFileModel(inferredPath, buffer, contentStart, blockEnd));
+			}
+		}
+		// 路径提示只作用于紧随其后的一个代码块
+		pathHint = null;
+		blockMarkers = null;
+	}
+
+	private int skipWhitespace(int from, int lineEnd) {
+		while (from < lineEnd && buffer.charAt(from) <= ' ') {
+			from++;
+		}
+		return from;
+	}
+
+	/**
+	 * 如果从start开始是```或~~~代码块标记，返回标记字符的个数，否则返回0
+	 */
+	private int fenceLength(int start, int lineEnd) {
+		if (start >= lineEnd) {
+			return 0;
+		}
+		char c = buffer.charAt(start);
+		if (c != '`' && c != '~') {
+			return 0;
+		}
+		int i = start;
+		while (i < lineEnd && buffer.charAt(i) == c) {
+			i++;
+		}
+		return i - start >= 3 ? i - start : 0;
+	}
+
+	private boolean isClosingFence(int start, int lineEnd) {
+		if (start >= lineEnd || buffer.charAt(start) != fenceChar) {
+			return false;
+		}
+		int i = start;
+		while (i < lineEnd && buffer.charAt(i) == fenceChar) {
+			i++;
+		}
+		if (i - start < fenceLength) {
+			return false;
+		}
+		// 结束标记之后只能有空白
+		return skipWhitespace(i, lineEnd) == lineEnd;
+	}
+
+	/**
+	 * 在代码块之外的一行中寻找文件路径：行内代码、粗体、"File:"之类的标签以及标题文字
+	 */
+	static String findPathHint(String line) {
+		String hint = findDelimited(line, "`");
+		if (hint == null) {
+			hint = findDelimited(line, "**");
+		}
+		if (hint == null) {
+			hint = findDelimited(line, "__");
+		}
+		if (hint == null) {
+			for (String label : PATH_LABELS) {
+				int index = line.indexOf(label);
+				if (index >= 0) {
+					hint = firstPathToken(line.substring(index + label.length()));
+					if (hint != null) {
+						break;
+					}
+				}
+			}
+		}
+		if (hint == null && line.startsWith("#")) {
+			hint = firstPathToken(line.replaceFirst("^#+", ""));
+		}
+		return hint;
+	}
+
+	private static String findDelimited(String line, String delimiter) {
+		int from = 0;
+		while (true) {
+			int open = line.indexOf(delimiter, from);
+			if (open < 0) {
+				return null;
+			}
+			int close = line.indexOf(delimiter, open + delimiter.length());
+			if (close < 0) {
+				return null;
+			}
+			String candidate = cleanCandidate(line.substring(open + delimiter.length(), close));
+			if (looksLikePath(candidate)) {
+				return candidate;
+			}
+			from = close + delimiter.length();
+		}
+	}
+
+	private static String firstPathToken(String text) {
+		for (String token : text.trim().split("\\s+")) {
+			String candidate = cleanCandidate(token);
+			if (looksLikePath(candidate)) {
+				return candidate;
+			}
+		}
+		return null;
+	}
+
+	private static String cleanCandidate(String candidate) {
+		String result = candidate.trim();
+		int start = 0;
+		int stop = result.length();
+		while (start < stop && "`*_'\"([".indexOf(result.charAt(start)) >= 0) {
+			start++;
+		}
+		while (stop > start && "`*_'\":,;)]".indexOf(result.charAt(stop - 1)) >= 0) {
+			stop--;
+		}
+		return result.substring(start, stop);
+	}
+
+	/**
+	 * 判断字符串是否像一个文件路径：不含空白、不是URL，最后一段形如 name.ext，
+	 * 并且包含目录或者扩展名是常见的源文件扩展名
+	 */
+	static boolean looksLikePath(String candidate) {
+		if (candidate.isEmpty() || candidate.length() > MAX_PATH_LENGTH || candidate.contains("://")) {
+			return false;
+		}
+		for (int i = 0; i < candidate.length(); i++) {
+			if (Character.isWhitespace(candidate.charAt(i))) {
+				return false;
+			}
+		}
+		int slash = Math.max(candidate.lastIndexOf('/'), candidate.lastIndexOf('\\'));
+		String name = candidate.substring(slash + 1);
+		int dot = name.lastIndexOf('.');
+		if (dot <= 0 || dot == name.length() - 1) {
+			return false;
+		}
+		String extension = name.substring(dot + 1);
+		if (extension.length() > 10 || !Character.isLetter(extension.charAt(0))) {
+			return false;
+		}
+		for (int i = 0; i < extension.length(); i++) {
+			if (!Character.isLetterOrDigit(extension.charAt(i))) {
+				return false;
+			}
+		}
+		return slash >= 0 || KNOWN_EXTENSIONS.contains(extension.toLowerCase(Locale.ROOT));
+	}
+}
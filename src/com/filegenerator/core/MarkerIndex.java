@@ -0,0 +1,85 @@
+package com.filegenerator.core;
+
+import java.util.Arrays;
+
+/**
+ * 输入缓冲区中文件标记行的位置索引。
+ * 扫描阶段只记录偏移量，路径提取、路径调整和内容切片都可以按段独立进行。
+ */
+class MarkerIndex {
+	private int size;
+	private int[] lineStarts = new int[16];
+	private int[] lineEnds = new int[16];
+	private long[] matches = new long[16];
+
+	/**
+	 * 扫描text的[begin, end)区间，记录所有文件标记行
+	 */
+	static MarkerIndex scan(CharSequence text, int begin, int end, FileMarkerMatcher matcher) {
+		MarkerIndex index = new MarkerIndex();
+		int lineStart = begin;
+		while (lineStart < end) {
+			int lineEnd = indexOfNewline(text, lineStart, end);
+			long match = matcher.match(text, lineStart, lineEnd);
+			if (match != FileMarkerMatcher.NO_MATCH) {
+				index.add(lineStart, lineEnd, match);
+			}
+			lineStart = lineEnd + 1;
+		}
+		return index;
+	}
+
+	static int indexOfNewline(CharSequence text, int from, int end) {
+		if (text instanceof String) {
+			int index = ((String) text).indexOf('\n', from);
+			return index == -1 || index > end ? end : index;
+		}
+		for (int i = from; i < end; i++) {
+			if (text.charAt(i) == '\n') {
+				return i;
+			}
+		}
+		return end;
+	}
+
+	void add(int lineStart, int lineEnd, long match) {
+		if (size == lineStarts.length) {
+			int capacity = size * 2;
+			lineStarts = Arrays.copyOf(lineStarts, capacity);
+			lineEnds = Arrays.copyOf(lineEnds, capacity);
+			matches = Arrays.copyOf(matches, capacity);
+		}
+		lineStarts[size] = lineStart;
+		lineEnds[size] = lineEnd;
+		matches[size] = match;
+		size++;
+	}
+
+	/**
+	 * 追加另一个索引中的第i个标记，偏移量整体移动delta（文本在该标记之前发生了插入或删除）
+	 */
+	void addShifted(MarkerIndex from, int i, int delta) {
+		long match = from.matches[i];
+		long shiftedMatch = (match & 0xFFFFFFFF00000000L) | ((FileMarkerMatcher.pathStart(match) + delta) & 0xFFFFFFFFL);
+		add(from.lineStarts[i] + delta, from.lineEnds[i] + delta, shiftedMatch);
+	}
+
+	int size() {
+		return size;
+	}
+
+	int lineStart(int i) {
+		return lineStarts[i];
+	}
+
+	int lineEnd(int i) {
+		return lineEnds[i];
+	}
+
+	/**
+	 * 第i个标记的匹配结果，格式见{@link FileMarkerMatcher#match}
+	 */
+	long match(int i) {
+		return matches[i];
+	}
+}
@@ -0,0 +1,68 @@
+package com.filegenerator.core;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import com.filegenerator.core.patch.LineDiff;
+import com.filegenerator.core.patch.PatchApplier;
+import com.filegenerator.core.patch.PatchHunk;
+import com.filegenerator.core.patch.PatchParseResult;
+import com.filegenerator.core.patch.PatchParser;
+
+/**
+ * 旧版本相对于新版本的反向差异，用patch包中的hunk模型表示，保存为unified diff文本。
+ * 生成时立即用PatchApplier验证能否还原出完全相同的内容，不能还原的内容（含\r、特殊的行等）不使用差异保存。
+ */
+class ReverseDelta {
+	// PatchParser会去掉首尾空白，末尾加一行解析器忽略的内容，保护最后一行中的空格
+	private static final String END_MARKER = "\\ end";
+
+	private ReverseDelta() {
+	}
+
+	/**
+	 * 生成把newer还原为older的差异
+	 *
+	 * @return 差异文本，内容无法用差异准确表示或差异太大时返回null
+	 */
+	static String create(String newer, String older, String newerHash, String olderHash, int maxEdits) {
+		if (newer.indexOf('\r') >= 0 || older.indexOf('\r') >= 0) {
+			return null;
+		}
+		List<PatchHunk> hunks = LineDiff.diff(splitLines(newer), splitLines(older), maxEdits);
+		if (hunks == null) {
+			return null;
+		}
+		String delta = LineDiff.format(newerHash, olderHash, hunks) + END_MARKER + "\n";
+		if (!older.equals(apply(newer, delta))) {
+			return null;
+		}
+		return delta;
+	}
+
+	/**
+	 * 把差异应用到base上
+	 *
+	 * @return 还原出的内容，差异无法应用时返回null
+	 */
+	static String apply(String base, String delta) {
+		PatchParseResult result = new PatchParser().parse(delta);
+		if (result.hasErrors() || result.getFiles().size() != 1) {
+			return null;
+		}
+		PatchApplier.ApplyContentResult applied = new PatchApplier().applyToExistingContent(base,
+				result.getFiles().get(0));
+		return applied.isSuccess() ? applied.getNewContent() : null;
+	}
+
+	/**
+	 * 与PatchApplier相同的分行方式
+	 */
+	private static List<String> splitLines(String content) {
+		if (content.isEmpty()) {
+			return new ArrayList<>();
+		}
+		return Arrays.asList(content.split("\n", -1));
+	}
+}
@@ -0,0 +1,706 @@
+package com.filegenerator.core;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.zip.CRC32;
+
+import org.eclipse.core.runtime.Platform;
+import org.eclipse.core.runtime.Status;
+
+/**
+ * 备份会话的只追加日志。每个会话结束时追加一条记录，代价与历史记录的多少无关。
+ *
+ * 文件以魔数和版本号开头，之后是若干条记录：长度(int) + CRC32(int) + 类型(byte) + 内容。
+ * 内容中的字符串写为UTF-8字节数(int，null为-1) + UTF-8字节。版本1用writeUTF写字符串，单个字符串不能超过64KB，
+ * 这种日志在加载时按新格式重写。
+ * 崩溃时写了一半的最后一条记录在读取时被丢弃并截断；日志中间损坏的记录被跳过，之后的记录照常读取。
+ * 每条记录追加后都同步到磁盘；索引不同步，崩溃后从日志重建。
+ * 删除会话时追加一条删除记录；无效数据积累到一定程度后由{@link #compact()}重写整个文件。
+ *
+ * 另有一个索引文件，格式与日志相同，每条日志记录对应一条只含会话头（ID、时间、描述、文件数）和日志位置的记录。
+ * 加载时只读取索引，会话的备份记录在第一次使用时才从日志中读取。索引与日志不一致时从日志重建。
+ */
+class SessionJournal {
+	private static final int MAGIC = 0x46475346; // "FGSF"
+	private static final int INDEX_MAGIC = 0x46475349; // "FGSI"
+	private static final int VERSION = 2;
+	private static final int LEGACY_VERSION = 1;
+	private static final int HEADER_SIZE = 8;
+	private static final int RECORD_HEADER_SIZE = 9;
+	private static final byte TYPE_SESSION = 1;
+	private static final byte TYPE_REMOVE = 2;
+	// 单条记录的上限，超过时视为文件损坏
+	private static final int MAX_RECORD_SIZE = 64 * 1024 * 1024;
+	// 无效数据超过该大小且超过有效数据时才值得压缩
+	private static final long MIN_COMPACTION_GARBAGE = 64 * 1024;
+
+	// 同一进程中可能有多个BackupManager实例，所有实例对日志的写入都通过这个锁串行化
+	private static final Object LOCK = new Object();
+
+	private final File file;
+	private final File indexFile;
+	// 日志文件的格式版本，加载旧版本的日志后重写为当前版本
+	private int version = VERSION;
+	// 上次读取或写入后的统计，用于判断是否需要压缩
+	private final Map<String, Integer> liveRecordSizes = new HashMap<>();
+	private long liveBytes;
+	private long garbageBytes;
+
+	SessionJournal(File file, File indexFile) {
+		this.file = file;
+		this.indexFile = indexFile;
+	}
+
+	File getFile() {
+		return file;
+	}
+
+	boolean exists() {
+		return file.isFile();
+	}
+
+	/**
+	 * 一条日志记录在索引中的信息
+	 */
+	private static class IndexRecord {
+		final byte type;
+		final long offset;
+		final int size;
+		final int crc;
+		final String sessionId;
+		// 以下只用于会话记录
+		long timestamp;
+		String description;
+		int fileCount;
+
+		IndexRecord(byte type, long offset, int size, int crc, String sessionId) {
+			this.type = type;
+			this.offset = offset;
+			this.size = size;
+			this.crc = crc;
+			this.sessionId = sessionId;
+		}
+
+		long end() {
+			return offset + RECORD_HEADER_SIZE + size;
+		}
+	}
+
+	/**
+	 * 读取所有有效的会话头，按追加顺序排列。会话的备份记录在第一次使用时读取。
+	 * 日志末尾不完整或校验失败的记录被截断，中间损坏的记录被跳过。
+	 */
+	List<BackupSession> load() throws IOException {
+		synchronized (LOCK) {
+			if (!file.isFile()) {
+				liveRecordSizes.clear();
+				liveBytes = 0;
+				garbageBytes = 0;
+				Files.deleteIfExists(indexFile.toPath());
+				return new ArrayList<>();
+			}
+			List<IndexRecord> records = readIndex();
+			boolean indexChanged = false;
+			long length;
+			try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ,
+					StandardOpenOption.WRITE)) {
+				version = readHeader(channel, MAGIC, file);
+				length = channel.size();
+				if (!records.isEmpty() && !matches(channel, records.get(records.size() - 1), length)) {
+					// 日志被压缩后索引没有来得及替换，或索引已损坏
+					records.clear();
+				}
+				long position = records.isEmpty() ? HEADER_SIZE : records.get(records.size() - 1).end();
+				if (position < length) {
+					// 索引之后还有记录：索引缺失，或上次追加时在写索引之前中断
+					indexChanged = true;
+					position = scan(channel, position, length, records, version);
+					if (position < length) {
+						// 崩溃时写了一半的记录
+						channel.truncate(position);
+						length = position;
+					}
+				}
+			}
+			if (indexChanged || !indexFile.isFile()) {
+				writeIndex(records);
+			}
+			List<BackupSession> sessions = toSessions(records);
+			// 跳过的损坏记录也是无效数据，压缩时丢弃
+			garbageBytes = Math.max(garbageBytes, length - HEADER_SIZE - liveBytes);
+			if (version != VERSION) {
+				// 重写时按旧格式读取会话的备份记录，返回的会话已全部加载
+				rewrite(sessions);
+				Platform.getLog(Platform.getBundle("com.filegenerator")).log(new Status(Status.INFO,
+						"com.filegenerator", "已将备份会话日志升级到版本 " + VERSION));
+			}
+			return sessions;
+		}
+	}
+
+	/**
+	 * 从日志中读取会话的文件列表和备份记录
+	 */
+	void loadEntries(BackupSession session, long offset) throws IOException {
+		synchronized (LOCK) {
+			byte[] payload = readSessionRecord(offset, session.getSessionId());
+			if (payload == null) {
+				// 日志在会话头加载之后被压缩过，按索引重新定位
+				for (IndexRecord record : readIndex()) {
+					if (record.type == TYPE_SESSION && record.sessionId.equals(session.getSessionId())) {
+						offset = record.offset;
+					}
+				}
+				payload = readSessionRecord(offset, session.getSessionId());
+			}
+			if (payload == null) {
+				throw new IOException("备份会话日志中没有会话: " + session.getSessionId());
+			}
+			DataInputStream in = new DataInputStream(new ByteArrayInputStream(payload));
+			readSessionBody(in, readSessionHeader(in, version), session, version);
+		}
+	}
+
+	/**
+	 * 追加一个会话，已存在相同ID的会话时替换它
+	 */
+	void append(BackupSession session) throws IOException {
+		byte[] payload = writeSession(session);
+		synchronized (LOCK) {
+			IndexRecord record = appendRecord(TYPE_SESSION, payload, session.getSessionId());
+			record.timestamp = session.getTimestamp().getTime();
+			record.description = session.getStoredDescription();
+			record.fileCount = session.getFileCount();
+			appendIndex(record);
+			addLive(record);
+		}
+	}
+
+	/**
+	 * 追加一条删除记录
+	 */
+	void appendRemoval(String sessionId) throws IOException {
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+		try (DataOutputStream out = new DataOutputStream(bytes)) {
+			writeString(out, sessionId);
+		}
+		synchronized (LOCK) {
+			IndexRecord record = appendRecord(TYPE_REMOVE, bytes.toByteArray(), sessionId);
+			appendIndex(record);
+			removeLive(sessionId);
+			garbageBytes += RECORD_HEADER_SIZE + record.size;
+		}
+	}
+
+	boolean needsCompaction() {
+		synchronized (LOCK) {
+			return garbageBytes > MIN_COMPACTION_GARBAGE && garbageBytes > liveBytes;
+		}
+	}
+
+	/**
+	 * 只保留有效的会话，重写整个日志。先写临时文件再替换，中途失败不影响原日志。
+	 */
+	void compact() throws IOException {
+		synchronized (LOCK) {
+			rewrite(load());
+		}
+	}
+
+	/**
+	 * 用sessions重写整个日志和索引，用于压缩和从旧格式迁移
+	 */
+	void rewrite(List<BackupSession> sessions) throws IOException {
+		// 在日志锁外序列化会话：读取会话内容时先持有会话的锁再持有日志锁，这里不能反过来
+		List<byte[]> payloads = new ArrayList<>();
+		for (BackupSession session : sessions) {
+			payloads.add(writeSession(session));
+		}
+		synchronized (LOCK) {
+			File directory = file.getParentFile();
+			if (!directory.isDirectory() && !directory.mkdirs()) {
+				throw new IOException("无法创建目录: " + directory);
+			}
+			Path temp = Files.createTempFile(directory.toPath(), file.getName(), ".tmp");
+			try {
+				List<IndexRecord> records = new ArrayList<>();
+				try (FileChannel channel = FileChannel.open(temp, StandardOpenOption.WRITE)) {
+					writeHeader(channel, MAGIC);
+					long position = HEADER_SIZE;
+					for (int i = 0; i < sessions.size(); i++) {
+						BackupSession session = sessions.get(i);
+						byte[] payload = payloads.get(i);
+						ByteBuffer buffer = record(TYPE_SESSION, payload);
+						IndexRecord record = new IndexRecord(TYPE_SESSION, position, payload.length,
+								buffer.getInt(4), session.getSessionId());
+						record.timestamp = session.getTimestamp().getTime();
+						record.description = session.getStoredDescription();
+						record.fileCount = session.getFileCount();
+						records.add(record);
+						position += buffer.remaining();
+						writeFully(channel, buffer);
+					}
+					channel.force(true);
+				}
+				move(temp, file.toPath());
+				version = VERSION;
+				writeIndex(records);
+				toSessions(records);
+			} finally {
+				Files.deleteIfExists(temp);
+			}
+		}
+	}
+
+	/**
+	 * 从索引记录得到会话头，同时更新压缩用的统计
+	 */
+	private List<BackupSession> toSessions(List<IndexRecord> records) {
+		Map<String, IndexRecord> sessions = new LinkedHashMap<>();
+		liveRecordSizes.clear();
+		liveBytes = 0;
+		garbageBytes = 0;
+		for (IndexRecord record : records) {
+			if (record.type == TYPE_SESSION) {
+				// 替换的会话保持原来的位置
+				sessions.put(record.sessionId, record);
+				addLive(record);
+			} else {
+				sessions.remove(record.sessionId);
+				removeLive(record.sessionId);
+				garbageBytes += RECORD_HEADER_SIZE + record.size;
+			}
+		}
+		List<BackupSession> result = new ArrayList<>(sessions.size());
+		for (IndexRecord record : sessions.values()) {
+			result.add(new BackupSession(record.sessionId, new Date(record.timestamp), record.description,
+					record.fileCount, this, record.offset));
+		}
+		return result;
+	}
+
+	private void addLive(IndexRecord record) {
+		removeLive(record.sessionId);
+		liveRecordSizes.put(record.sessionId, RECORD_HEADER_SIZE + record.size);
+		liveBytes += RECORD_HEADER_SIZE + record.size;
+	}
+
+	/**
+	 * 会话的记录被替换或删除后成为无效数据
+	 */
+	private void removeLive(String sessionId) {
+		Integer size = liveRecordSizes.remove(sessionId);
+		if (size != null) {
+			liveBytes -= size;
+			garbageBytes += size;
+		}
+	}
+
+	/**
+	 * 逐条读取日志中position之后的记录，加入records。
+	 * 校验失败的记录之后还有有效记录时，说明不是崩溃时写了一半的记录，跳过它继续读取。
+	 *
+	 * @return 最后一条有效记录的结束位置
+	 */
+	private static long scan(FileChannel channel, long position, long length, List<IndexRecord> records,
+			int version) throws IOException {
+		long end = position;
+		while (position < length) {
+			byte[] payload = readRecord(channel, position, length);
+			if (payload == null) {
+				long next = findNextRecord(channel, position, length);
+				if (next < 0) {
+					return end;
+				}
+				Platform.getLog(Platform.getBundle("com.filegenerator")).log(new Status(Status.WARNING,
+						"com.filegenerator", "备份会话日志在位置 " + position + " 的 " + (next - position)
+								+ " 字节已损坏，跳过这部分记录"));
+				position = next;
+				continue;
+			}
+			ByteBuffer recordHeader = ByteBuffer.allocate(RECORD_HEADER_SIZE);
+			readFully(channel, recordHeader, position);
+			int crc = recordHeader.getInt(4);
+			byte type = recordHeader.get(8);
+			DataInputStream in = new DataInputStream(new ByteArrayInputStream(payload));
+			if (type == TYPE_SESSION) {
+				IndexRecord record = new IndexRecord(type, position, payload.length, crc, readString(in, version));
+				record.timestamp = in.readLong();
+				record.description = readNullable(in, version);
+				record.fileCount = in.readInt();
+				records.add(record);
+			} else if (type == TYPE_REMOVE) {
+				records.add(new IndexRecord(type, position, payload.length, crc, readString(in, version)));
+			}
+			// 未知类型的记录（由更新的版本写入）跳过
+			position += RECORD_HEADER_SIZE + payload.length;
+			end = position;
+		}
+		return end;
+	}
+
+	/**
+	 * 读取position处的一条记录的内容，记录不完整或校验失败时返回null
+	 */
+	private static byte[] readRecord(FileChannel channel, long position, long length) throws IOException {
+		ByteBuffer recordHeader = ByteBuffer.allocate(RECORD_HEADER_SIZE);
+		if (readFully(channel, recordHeader, position) < RECORD_HEADER_SIZE) {
+			return null;
+		}
+		int size = recordHeader.getInt(0);
+		if (size < 0 || size > MAX_RECORD_SIZE || position + RECORD_HEADER_SIZE + size > length) {
+			return null;
+		}
+		ByteBuffer payload = ByteBuffer.allocate(size);
+		readFully(channel, payload, position + RECORD_HEADER_SIZE);
+		return checksum(recordHeader.get(8), payload.array()) == recordHeader.getInt(4) ? payload.array() : null;
+	}
+
+	/**
+	 * 查找损坏记录之后的下一条有效记录：先按损坏记录的长度跳过，长度本身不可信时逐字节查找。
+	 *
+	 * @return 下一条有效记录的位置，没有时返回-1
+	 */
+	private static long findNextRecord(FileChannel channel, long position, long length) throws IOException {
+		ByteBuffer recordHeader = ByteBuffer.allocate(RECORD_HEADER_SIZE);
+		if (readFully(channel, recordHeader, position) == RECORD_HEADER_SIZE) {
+			long next = position + RECORD_HEADER_SIZE + recordHeader.getInt(0);
+			if (recordHeader.getInt(0) >= 0 && next < length && isKnownRecord(channel, next, length)) {
+				return next;
+			}
+		}
+		for (long candidate = position + 1; candidate + RECORD_HEADER_SIZE <= length; candidate++) {
+			if (isKnownRecord(channel, candidate, length)) {
+				return candidate;
+			}
+		}
+		return -1;
+	}
+
+	private static boolean isKnownRecord(FileChannel channel, long position, long length) throws IOException {
+		ByteBuffer type = ByteBuffer.allocate(1);
+		if (readFully(channel, type, position + 8) < 1
+				|| (type.get(0) != TYPE_SESSION && type.get(0) != TYPE_REMOVE)) {
+			return false;
+		}
+		return readRecord(channel, position, length) != null;
+	}
+
+	/**
+	 * 检查索引的最后一条记录与日志中对应位置的记录是否一致
+	 */
+	private static boolean matches(FileChannel channel, IndexRecord record, long length) throws IOException {
+		if (record.end() > length) {
+			return false;
+		}
+		ByteBuffer recordHeader = ByteBuffer.allocate(RECORD_HEADER_SIZE);
+		return readFully(channel, recordHeader, record.offset) == RECORD_HEADER_SIZE
+				&& recordHeader.getInt(0) == record.size && recordHeader.getInt(4) == record.crc
+				&& recordHeader.get(8) == record.type;
+	}
+
+	/**
+	 * 读取offset处的会话记录，记录无效或不属于sessionId时返回null
+	 */
+	private byte[] readSessionRecord(long offset, String sessionId) throws IOException {
+		try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+			ByteBuffer recordHeader = ByteBuffer.allocate(RECORD_HEADER_SIZE);
+			if (offset < HEADER_SIZE || readFully(channel, recordHeader, offset) < RECORD_HEADER_SIZE) {
+				return null;
+			}
+			int size = recordHeader.getInt(0);
+			if (recordHeader.get(8) != TYPE_SESSION || size < 0 || size > MAX_RECORD_SIZE
+					|| offset + RECORD_HEADER_SIZE + size > channel.size()) {
+				return null;
+			}
+			ByteBuffer payload = ByteBuffer.allocate(size);
+			readFully(channel, payload, offset + RECORD_HEADER_SIZE);
+			if (checksum(TYPE_SESSION, payload.array()) != recordHeader.getInt(4)) {
+				return null;
+			}
+			String id = readString(new DataInputStream(new ByteArrayInputStream(payload.array())), version);
+			return id.equals(sessionId) ? payload.array() : null;
+		}
+	}
+
+	/**
+	 * 读取索引中所有有效的记录，索引不存在或已损坏时返回空列表
+	 */
+	private List<IndexRecord> readIndex() throws IOException {
+		List<IndexRecord> records = new ArrayList<>();
+		if (!indexFile.isFile()) {
+			return records;
+		}
+		byte[] content = Files.readAllBytes(indexFile.toPath());
+		ByteBuffer buffer = ByteBuffer.wrap(content);
+		if (content.length < HEADER_SIZE || buffer.getInt() != INDEX_MAGIC || buffer.getInt() != VERSION) {
+			return records;
+		}
+		while (buffer.remaining() >= RECORD_HEADER_SIZE) {
+			int size = buffer.getInt();
+			int crc = buffer.getInt();
+			byte type = buffer.get();
+			if (size < 0 || size > buffer.remaining()) {
+				break;
+			}
+			byte[] payload = new byte[size];
+			buffer.get(payload);
+			if (checksum(type, payload) != crc) {
+				// 之后的部分不可信，load时从日志的对应位置重新扫描
+				break;
+			}
+			DataInputStream in = new DataInputStream(new ByteArrayInputStream(payload));
+			long offset = in.readLong();
+			int recordSize = in.readInt();
+			int recordCrc = in.readInt();
+			IndexRecord record = new IndexRecord(type, offset, recordSize, recordCrc, readString(in, VERSION));
+			if (type == TYPE_SESSION) {
+				record.timestamp = in.readLong();
+				record.description = readNullable(in, VERSION);
+				record.fileCount = in.readInt();
+			}
+			records.add(record);
+		}
+		return records;
+	}
+
+	private void writeIndex(List<IndexRecord> records) throws IOException {
+		Path temp = Files.createTempFile(indexFile.getParentFile().toPath(), indexFile.getName(), ".tmp");
+		try {
+			try (FileChannel channel = FileChannel.open(temp, StandardOpenOption.WRITE)) {
+				writeHeader(channel, INDEX_MAGIC);
+				for (IndexRecord record : records) {
+					writeFully(channel, indexRecord(record));
+				}
+			}
+			move(temp, indexFile.toPath());
+		} finally {
+			Files.deleteIfExists(temp);
+		}
+	}
+
+	private void appendIndex(IndexRecord record) throws IOException {
+		try (FileChannel channel = FileChannel.open(indexFile.toPath(), StandardOpenOption.CREATE,
+				StandardOpenOption.WRITE, StandardOpenOption.APPEND)) {
+			if (channel.size() == 0) {
+				writeHeader(channel, INDEX_MAGIC);
+			}
+			writeFully(channel, indexRecord(record));
+		}
+	}
+
+	private static ByteBuffer indexRecord(IndexRecord record) throws IOException {
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+		try (DataOutputStream out = new DataOutputStream(bytes)) {
+			out.writeLong(record.offset);
+			out.writeInt(record.size);
+			out.writeInt(record.crc);
+			writeString(out, record.sessionId);
+			if (record.type == TYPE_SESSION) {
+				out.writeLong(record.timestamp);
+				writeString(out, record.description);
+				out.writeInt(record.fileCount);
+			}
+		}
+		return record(record.type, bytes.toByteArray());
+	}
+
+	private IndexRecord appendRecord(byte type, byte[] payload, String sessionId) throws IOException {
+		File directory = file.getParentFile();
+		if (!directory.isDirectory() && !directory.mkdirs()) {
+			throw new IOException("无法创建目录: " + directory);
+		}
+		try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.CREATE,
+				StandardOpenOption.WRITE, StandardOpenOption.APPEND)) {
+			if (channel.size() == 0) {
+				writeHeader(channel, MAGIC);
+			}
+			long offset = channel.size();
+			ByteBuffer record = record(type, payload);
+			int crc = record.getInt(4);
+			// 整条记录一次写入，并在返回前同步到磁盘
+			writeFully(channel, record);
+			channel.force(false);
+			return new IndexRecord(type, offset, payload.length, crc, sessionId);
+		}
+	}
+
+	private static void move(Path source, Path target) throws IOException {
+		try {
+			Files.move(source, target, StandardCopyOption.ATOMIC_MOVE);
+		} catch (AtomicMoveNotSupportedException e) {
+			Files.move(source, target, StandardCopyOption.REPLACE_EXISTING);
+		}
+	}
+
+	/**
+	 * @return 日志的格式版本
+	 */
+	private static int readHeader(FileChannel channel, int magic, File source) throws IOException {
+		ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+		if (readFully(channel, header, 0) < HEADER_SIZE || header.getInt(0) != magic) {
+			throw new IOException("不是备份会话日志: " + source);
+		}
+		int fileVersion = header.getInt(4);
+		if (fileVersion != VERSION && fileVersion != LEGACY_VERSION) {
+			throw new IOException("不支持的备份会话日志版本: " + fileVersion);
+		}
+		return fileVersion;
+	}
+
+	private static void writeHeader(FileChannel channel, int magic) throws IOException {
+		ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+		header.putInt(magic).putInt(VERSION).flip();
+		writeFully(channel, header);
+	}
+
+	private static ByteBuffer record(byte type, byte[] payload) {
+		ByteBuffer record = ByteBuffer.allocate(RECORD_HEADER_SIZE + payload.length);
+		record.putInt(payload.length).putInt(checksum(type, payload)).put(type).put(payload).flip();
+		return record;
+	}
+
+	private static int checksum(byte type, byte[] payload) {
+		CRC32 crc = new CRC32();
+		crc.update(type);
+		crc.update(payload, 0, payload.length);
+		return (int) crc.getValue();
+	}
+
+	private static int readFully(FileChannel channel, ByteBuffer buffer, long position) throws IOException {
+		int total = 0;
+		while (buffer.hasRemaining()) {
+			int read = channel.read(buffer, position + total);
+			if (read < 0) {
+				break;
+			}
+			total += read;
+		}
+		return total;
+	}
+
+	private static void writeFully(FileChannel channel, ByteBuffer buffer) throws IOException {
+		while (buffer.hasRemaining()) {
+			channel.write(buffer);
+		}
+	}
+
+	/**
+	 * 会话记录的内容：会话头在前，加载会话头时只需读取这一部分
+	 */
+	private static byte[] writeSession(BackupSession session) throws IOException {
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+		try (DataOutputStream out = new DataOutputStream(bytes)) {
+			writeString(out, session.getSessionId());
+			out.writeLong(session.getTimestamp().getTime());
+			writeString(out, session.getStoredDescription());
+			List<String> files = session.getFiles();
+			out.writeInt(files.size());
+			for (String filePath : files) {
+				writeString(out, filePath);
+			}
+			List<BackupManager.BackupEntry> entries = session.getBackupEntries();
+			out.writeInt(entries.size());
+			for (BackupManager.BackupEntry entry : entries) {
+				writeString(out, entry.getOriginalFilePath());
+				writeString(out, entry.getBackupFilePath());
+				out.writeLong(entry.getTimestamp().getTime());
+				writeString(out, entry.getContentHash());
+				out.writeLong(entry.getSize());
+				out.writeLong(entry.getLastModified());
+				writeString(out, entry.getContentHash() != null ? entry.getCodec().name() : null);
+			}
+		}
+		return bytes.toByteArray();
+	}
+
+	/**
+	 * 跳过会话头，返回文件数
+	 */
+	private static int readSessionHeader(DataInputStream in, int version) throws IOException {
+		readString(in, version);
+		in.readLong();
+		readNullable(in, version);
+		return in.readInt();
+	}
+
+	/**
+	 * 读取会话头之后的文件列表和备份记录
+	 */
+	private static void readSessionBody(DataInputStream in, int fileCount, BackupSession session, int version)
+			throws IOException {
+		for (int i = 0; i < fileCount; i++) {
+			session.addFile(readString(in, version));
+		}
+		int entryCount = in.readInt();
+		for (int i = 0; i < entryCount; i++) {
+			String originalFilePath = readString(in, version);
+			String backupFilePath = readString(in, version);
+			Date entryTimestamp = new Date(in.readLong());
+			String contentHash = readNullable(in, version);
+			long size = in.readLong();
+			long lastModified = in.readLong();
+			String codec = readNullable(in, version);
+			if (contentHash == null) {
+				session.addBackupEntry(new BackupManager.BackupEntry(originalFilePath, backupFilePath, entryTimestamp));
+			} else {
+				session.addBackupEntry(new BackupManager.BackupEntry(originalFilePath, backupFilePath, entryTimestamp,
+						contentHash, size, lastModified, codec != null ? BackupCodec.valueOf(codec) : null));
+			}
+		}
+	}
+
+	/**
+	 * 写入UTF-8字节数和字节，value为null时字节数为-1
+	 */
+	private static void writeString(DataOutputStream out, String value) throws IOException {
+		if (value == null) {
+			out.writeInt(-1);
+			return;
+		}
+		byte[] bytes = value.getBytes(StandardCharsets.UTF_8);
+		out.writeInt(bytes.length);
+		out.write(bytes);
+	}
+
+	private static String readString(DataInputStream in, int version) throws IOException {
+		if (version == LEGACY_VERSION) {
+			return in.readUTF();
+		}
+		int length = in.readInt();
+		if (length == -1) {
+			return null;
+		}
+		if (length < 0 || length > in.available()) {
+			throw new IOException("备份会话记录中的字符串长度无效: " + length);
+		}
+		byte[] bytes = new byte[length];
+		in.readFully(bytes);
+		return new String(bytes, StandardCharsets.UTF_8);
+	}
+
+	private static String readNullable(DataInputStream in, int version) throws IOException {
+		if (version == LEGACY_VERSION) {
+			return in.readBoolean() ? in.readUTF() : null;
+		}
+		return readString(in, version);
+	}
+}
@@ -0,0 +1,72 @@
+package com.filegenerator.core;
+
+/**
+ * 内容为共享输入缓冲区中一段区间的FileModel。
+ * 所有文件共用同一份不可变的输入文本，只记录偏移量和长度，需要String时才复制对应的片段。
+ */
+public class SliceFileModel extends FileModel {
+	private final ContentSlice slice;
+
+	public SliceFileModel(String filePath, CharSequence buffer, int start, int end) {
+		super(filePath);
+		this.slice = new ContentSlice(buffer, start, end);
+	}
+
+	public int getOffset() {
+		return slice.start;
+	}
+
+	@Override
+	public String getContent() {
+		return slice.toString();
+	}
+
+	@Override
+	public CharSequence getContentSequence() {
+		return slice;
+	}
+
+	/**
+	 * 输入缓冲区上的只读视图，subSequence同样不复制数据
+	 */
+	static class ContentSlice implements CharSequence {
+		private final CharSequence buffer;
+		private final int start;
+		private final int end;
+
+		ContentSlice(CharSequence buffer, int start, int end) {
+			if (start < 0 || end < start || end > buffer.length()) {
+				throw new IndexOutOfBoundsException("start=" + start + ", end=" + end + ", length=" + buffer.length());
+			}
+			this.buffer = buffer;
+			this.start = start;
+			this.end = end;
+		}
+
+		@Override
+		public int length() {
+			return end - start;
+		}
+
+		@Override
+		public char charAt(int index) {
+			if (index < 0 || index >= length()) {
+				throw new IndexOutOfBoundsException(String.valueOf(index));
+			}
+			return buffer.charAt(start + index);
+		}
+
+		@Override
+		public CharSequence subSequence(int from, int to) {
+			if (from < 0 || to < from || to > length()) {
+				throw new IndexOutOfBoundsException("from=" + from + ", to=" + to);
+			}
+			return new ContentSlice(buffer, start + from, start + to);
+		}
+
+		@Override
+		public String toString() {
+			return buffer.subSequence(start, end).toString();
+		}
+	}
+}
@@ -0,0 +1,32 @@
+package com.filegenerator.core;
+
+import java.io.File;
+
+import org.eclipse.core.runtime.Platform;
+
+/**
+ * 插件保存状态数据（备份会话、内容清单等）的目录。
+ * 在Eclipse中使用插件状态位置，命令行等环境下退回到临时目录。
+ */
+class StateLocation {
+	private static final String FALLBACK_DIR = "filegenerator";
+
+	private StateLocation() {
+	}
+
+	static File getDirectory() {
+		try {
+			// 首先尝试插件状态位置
+			if (Platform.getBundle("com.filegenerator") != null) {
+				return Platform.getStateLocation(Platform.getBundle("com.filegenerator")).toFile();
+			}
+		} catch (Exception e) {
+			// 如果插件状态位置不可用，忽略错误
+		}
+		return new File(System.getProperty("java.io.tmpdir"), FALLBACK_DIR);
+	}
+
+	static File getFile(String name) {
+		return new File(getDirectory(), name);
+	}
+}
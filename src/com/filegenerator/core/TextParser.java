@@ -2,21 +2,43 @@
 package com.filegenerator.core;
 
 import java.io.File;
+import java.io.IOException;
+import java.io.Reader;
+import java.io.UncheckedIOException;
 import java.util.ArrayList;
+import java.util.Iterator;
 import java.util.List;
-import java.util.regex.Matcher;
-import java.util.regex.Pattern;
+import java.util.Objects;
+import java.util.Spliterator;
+import java.util.Spliterators;
+import java.util.stream.Collectors;
+import java.util.stream.IntStream;
+import java.util.stream.Stream;
+import java.util.stream.StreamSupport;
 
 import org.eclipse.core.runtime.ILog;
 import org.eclipse.core.runtime.Platform;
 import org.eclipse.core.runtime.Status;
 
 public class TextParser {
-    private static final Pattern PACKAGE_PATTERN = Pattern.compile("package\\s+([\\w.]+)\\s*;");
-    private static final Pattern CLASS_PATTERN = Pattern.compile("public\\s+(?:class|interface|enum)\\s+(\\w+)");
     
+	// 文件段数达到该阈值时并行构建FileModel
+	private static final int DEFAULT_PARALLEL_THRESHOLD = 512;
+
     private ProjectTypeDetector projectTypeDetector;
 	private final ILog log;
+	private int parallelThreshold = DEFAULT_PARALLEL_THRESHOLD;
+	private FileMarkerMatcher markerMatcher = FileMarkerMatcher.defaultMatcher();
+	private ParseMode parseMode = ParseMode.AUTO;
+
+	/**
+	 * 解析模式
+	 */
+	public enum ParseMode {
+		PLAIN,    // 只按文件标记切分，整个输入最多被一个代码块包裹
+		MARKDOWN, // 完整的聊天回复：说明文字 + 多个代码块，文件名写在代码块之前
+		AUTO      // 根据输入开头自动选择
+	}
     
     /**
      * 默认构造函数，使用当前工作目录作为项目根目录
@@ -36,125 +58,307 @@ public class TextParser {
     }
 
     public List<FileModel> parseText(String text) {
-        List<FileModel> fileModels = new ArrayList<>();
-        
-		// 预处理：移除可能的Markdown格式标记、规范化换行符
-		text = cleanInputText(text);
-
 		// 记录原始输入的前100个字符，帮助调试
 		String preview = text.length() > 100 ? text.substring(0, 100) + "..." : text;
 		log.log(new Status(Status.OK, "com.filegenerator", "输入文本预览: " + preview.replace("\n", "\\n")));
 
-		// 使用简单的行分割方法查找文件标记
-		String[] lines = text.split("\n");
-		log.log(new Status(Status.OK, "com.filegenerator", "输入文本共 " + lines.length + " 行"));
+		List<FileModel> fileModels = parseSlices(text);
+
+		log.log(new Status(Status.INFO, "com.filegenerator", "找到 " + fileModels.size() + " 个文件"));
+        return fileModels;
+    }
+
+	/**
+	 * 零复制解析：所有文件的内容都是同一份输入缓冲区上的区间视图（{@link SliceFileModel}）。
+	 * 只有输入含有\r时才会为规范化换行符复制一次整个输入。
+	 */
+	public List<FileModel> parseSlices(CharSequence text) {
+		String buffer = normalizeLineEndings(text);
+
+		if (!isPlainLayout(buffer)) {
+			List<FileModel> fileModels = new MarkdownScanner(this, markerMatcher, buffer, 0, buffer.length(),
+					parseMode == ParseMode.AUTO).scan();
+			if (fileModels != null) {
+				return fileModels;
+			}
+		}
+
+		// 去掉包裹整个输入的Markdown代码块标记，只需调整区间，无需复制
+		int[] range = contentRange(buffer, true);
+		int begin = range[0];
+		int end = range[1];
+
+		// 第一阶段：顺序扫描，只记录标记行的位置
+		MarkerIndex markers = MarkerIndex.scan(buffer, begin, end, markerMatcher);
+		int count = markers.size();
 
-		List<Integer> fileMarkerLines = new ArrayList<>();
-		for (int i = 0; i < lines.length; i++) {
-			String line = lines[i].trim();
-			if (line.startsWith("// File:")) {
-				fileMarkerLines.add(i);
-				log.log(new Status(Status.INFO, "com.filegenerator", "找到文件标记(第" + (i + 1) + "行): " + line));
+		if (count == 0) {
+			List<FileModel> fileModels = new ArrayList<>();
+			if (!isBlank(buffer, begin, end)) {
+				// 如果没有找到任何文件，尝试从整个文本推断
+				String inferredPath = inferPathFromJavaCode(new SliceFileModel.ContentSlice(buffer, begin, end));
+				if (inferredPath != null) {
+					log.log(new Status(Status.INFO, "com.filegenerator", "从整个内容推断文件路径: " + inferredPath));
+					fileModels.add(new SliceFileModel(inferredPath, buffer, begin, end));
+				}
 			}
+			return fileModels;
 		}
 
-		log.log(new Status(Status.INFO, "com.filegenerator", "找到 " + fileMarkerLines.size() + " 个文件标记行"));
-        
-		// 处理每个文件段落
-		for (int i = 0; i < fileMarkerLines.size(); i++) {
-			int markerLineIndex = fileMarkerLines.get(i);
-			String markerLine = lines[markerLineIndex].trim();
-
-			// 提取文件路径
-			String filePath = markerLine.substring("// File:".length()).trim();
-			// 如果路径包含注释部分，只取前面的部分
-			if (filePath.contains("(")) {
-				filePath = filePath.substring(0, filePath.indexOf("(")).trim();
+		// 第二阶段：各段之间互不依赖，段数较多时并行构建，结果仍按输入顺序排列
+		final int rangeEnd = end;
+		if (count < parallelThreshold) {
+			List<FileModel> fileModels = new ArrayList<>(count);
+			for (int i = 0; i < count; i++) {
+				FileModel model = createSegment(buffer, markers, i, rangeEnd, true);
+				if (model != null) {
+					fileModels.add(model);
+				}
 			}
+			return fileModels;
+		}
 
-			// 计算内容的开始和结束行
-			int contentStartLine = markerLineIndex + 1;
-			int contentEndLine = (i < fileMarkerLines.size() - 1) ? fileMarkerLines.get(i + 1) - 1 : lines.length - 1;
+		// 提前完成项目类型检测，避免并行任务重复探测文件系统
+		projectTypeDetector.detectProjectType();
+		List<FileModel> fileModels = IntStream.range(0, count).parallel()
+				.mapToObj(i -> createSegment(buffer, markers, i, rangeEnd, false))
+				.filter(Objects::nonNull)
+				.collect(Collectors.toList());
+		log.log(new Status(Status.INFO, "com.filegenerator", "并行解析了 " + count + " 个文件段"));
+		return fileModels;
+	}
+
+	/**
+	 * 构建第i个文件段：提取并调整路径、计算内容区间。并行模式下不逐个记录日志。
+	 * 
+	 * @return 文件段，标记缺少路径且无法推断时返回null
+	 */
+	FileModel createSegment(String buffer, MarkerIndex markers, int i, int end, boolean logEach) {
+		int contentStart = segmentContentStart(markers, i, end);
+		int contentEnd = segmentContentEnd(buffer, markers, i, end);
+		String adjustedPath = segmentPath(buffer, markers, i, contentStart, contentEnd, logEach);
+		return adjustedPath != null ? new SliceFileModel(adjustedPath, buffer, contentStart, contentEnd) : null;
+	}
 
-			// 构建内容
-			StringBuilder content = new StringBuilder();
-			for (int j = contentStartLine; j <= contentEndLine; j++) {
-				content.append(lines[j]).append("\n");
+	static int segmentContentStart(MarkerIndex markers, int i, int end) {
+		return Math.min(markers.lineEnd(i) + 1, end);
+	}
+
+	static int segmentContentEnd(String buffer, MarkerIndex markers, int i, int end) {
+		if (i + 1 < markers.size()) {
+			return markers.lineStart(i + 1);
+		}
+		// 最后一个文件去掉结尾多余的空行
+		int contentStart = segmentContentStart(markers, i, end);
+		int contentEnd = end;
+		while (contentEnd - contentStart >= 2 && buffer.charAt(contentEnd - 1) == '\n'
+				&& buffer.charAt(contentEnd - 2) == '\n') {
+			contentEnd--;
+		}
+		return contentEnd;
+	}
+
+	/**
+	 * 第i个文件段调整后的路径
+	 * 
+	 * @return 标记缺少路径且无法从内容推断时返回null
+	 */
+	String segmentPath(String buffer, MarkerIndex markers, int i, int contentStart, int contentEnd, boolean logEach) {
+		String markerPath = markerMatcher.extractPath(buffer, markers.match(i), markers.lineEnd(i));
+		String adjustedPath;
+		if (markerPath.isEmpty()) {
+			// 标记中没有写路径时，从该段的Java代码推断
+			adjustedPath = inferPathFromJavaCode(new SliceFileModel.ContentSlice(buffer, contentStart, contentEnd));
+			if (adjustedPath == null) {
+				log.log(new Status(Status.WARNING, "com.filegenerator", "文件标记缺少路径且无法推断，已跳过: 第" + (i + 1) + "个文件段"));
+				return null;
 			}
+		} else {
+			adjustedPath = adjustFilePath(markerPath);
+		}
+		if (logEach) {
+			log.log(new Status(Status.INFO, "com.filegenerator", "添加文件: " + markerPath + " -> " + adjustedPath
+					+ " (内容长度: " + (contentEnd - contentStart) + ")"));
+		}
+		return adjustedPath;
+	}
 
-			// 调整文件路径
-			String adjustedPath = adjustFilePath(filePath);
+	/**
+	 * 为paths中尚为null的文件段计算路径，无法得到路径的段记为空字符串。待计算的段较多时并行进行。
+	 */
+	void resolveSegmentPaths(String buffer, MarkerIndex markers, int end, String[] paths) {
+		int pending = 0;
+		for (String path : paths) {
+			if (path == null) {
+				pending++;
+			}
+		}
+		if (pending == 0) {
+			return;
+		}
+		boolean parallel = pending >= parallelThreshold;
+		if (parallel) {
+			projectTypeDetector.detectProjectType();
+		}
+		IntStream indexes = IntStream.range(0, paths.length).filter(i -> paths[i] == null);
+		(parallel ? indexes.parallel() : indexes).forEach(i -> {
+			String path = segmentPath(buffer, markers, i, segmentContentStart(markers, i, end),
+					segmentContentEnd(buffer, markers, i, end), false);
+			paths[i] = path != null ? path : "";
+		});
+	}
 
-			log.log(new Status(Status.INFO, "com.filegenerator",
-					"添加文件: " + filePath + " -> " + adjustedPath + " (内容行数: " + (contentEndLine - contentStartLine + 1) + ")"));
-            
-			fileModels.add(new FileModel(adjustedPath, content.toString()));
-        }
-        
-		// 如果没有找到任何文件，尝试从整个文本推断
-        if (fileModels.isEmpty() && text.trim().length() > 0) {
-            String inferredPath = inferPathFromJavaCode(text);
-            if (inferredPath != null) {
-				log.log(new Status(Status.INFO, "com.filegenerator", "从整个内容推断文件路径: " + inferredPath));
-                fileModels.add(new FileModel(inferredPath, text));
-            }
-        }
-        
-        return fileModels;
-    }
-    
 	/**
-	 * 清理输入文本
+	 * 输入是否按普通文本（文件标记）方式解析，而不是按Markdown聊天回复解析
 	 */
-	private String cleanInputText(String text) {
-		// 规范化换行符
-		text = text.replace("\r\n", "\n").replace("\r", "\n");
-
-		// 尝试识别并移除Markdown代码块标记
-		if (text.startsWith("```")) {
-			log.log(new Status(Status.INFO, "com.filegenerator", "检测到Markdown代码块标记"));
-
-			// 查找结束标记
-			int endMarkIndex = text.lastIndexOf("```");
-			if (endMarkIndex > 3) { // 确保不是同一个标记
-				// 找到第一行结束
-				int firstLineEnd = text.indexOf('\n', 3);
-				if (firstLineEnd != -1 && firstLineEnd < endMarkIndex) {
-					// 移除开始和结束标记
-					text = text.substring(firstLineEnd + 1, endMarkIndex);
-					log.log(new Status(Status.INFO, "com.filegenerator", "移除了Markdown代码块标记，处理后长度: " + text.length()));
+	boolean isPlainLayout(String buffer) {
+		return parseMode == ParseMode.PLAIN || (parseMode == ParseMode.AUTO && !looksLikeChatResponse(buffer));
+	}
+
+	/**
+	 * 去掉包裹整个输入的Markdown代码块标记后的内容区间
+	 * 
+	 * @return {begin, end}
+	 */
+	int[] contentRange(String buffer, boolean logFence) {
+		int begin = 0;
+		int end = buffer.length();
+		if (buffer.startsWith("```")) {
+			int endMarkIndex = buffer.lastIndexOf("```");
+			int firstLineEnd = buffer.indexOf('\n', 3);
+			if (endMarkIndex > 3 && firstLineEnd != -1 && firstLineEnd < endMarkIndex) {
+				if (logFence) {
+					log.log(new Status(Status.INFO, "com.filegenerator", "检测到Markdown代码块标记"));
 				}
+				begin = firstLineEnd + 1;
+				end = endMarkIndex;
+			}
+		}
+		return new int[] { begin, end };
+	}
+
+	/**
+	 * 自动模式的判断：第一行非空内容既不是代码块标记也不是文件标记时，按聊天回复处理。
+	 * 以代码块开头的输入保持原来"去掉首尾代码块标记"的行为。
+	 */
+	private boolean looksLikeChatResponse(String buffer) {
+		int lineStart = 0;
+		while (lineStart < buffer.length()) {
+			int lineEnd = MarkerIndex.indexOfNewline(buffer, lineStart, buffer.length());
+			if (!isBlank(buffer, lineStart, lineEnd)) {
+				return !buffer.startsWith("```", lineStart)
+						&& markerMatcher.match(buffer, lineStart, lineEnd) == FileMarkerMatcher.NO_MATCH;
 			}
+			lineStart = lineEnd + 1;
 		}
+		return false;
+	}
+
+	static String normalizeLineEndings(CharSequence text) {
+		String string = text.toString();
+		if (string.indexOf('\r') == -1) {
+			return string;
+		}
+		return string.replace("\r\n", "\n").replace('\r', '\n');
+	}
+
+	private static boolean isBlank(CharSequence text, int start, int end) {
+		for (int i = start; i < end; i++) {
+			if (text.charAt(i) > ' ') {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	/**
+	 * 流式解析：单遍扫描输入，边读边规范化换行符、识别文件标记，每个文件在读完后立即产出。
+	 * 内存占用只取决于最大的单个文件，而不是整个输入。
+	 * 
+	 * @param reader 输入，读取完毕后会被关闭
+	 */
+	public Iterator<FileModel> parseIterator(Reader reader) {
+		return new FileModelIterator(this, reader);
+	}
+
+	public Iterator<FileModel> parseIterator(CharSequence text) {
+		return parseIterator(new FileModelIterator.CharSequenceReader(text));
+	}
+
+	/**
+	 * 以Stream形式返回流式解析的结果，读取中出现的IOException会以UncheckedIOException抛出
+	 */
+	public Stream<FileModel> parseStream(Reader reader) {
+		Spliterator<FileModel> spliterator = Spliterators.spliteratorUnknownSize(parseIterator(reader),
+				Spliterator.ORDERED | Spliterator.NONNULL);
+		return StreamSupport.stream(spliterator, false).onClose(() -> {
+			try {
+				reader.close();
+			} catch (IOException e) {
+				throw new UncheckedIOException(e);
+			}
+		});
+	}
 
-		return text;
+	public Stream<FileModel> parseStream(CharSequence text) {
+		return parseStream(new FileModelIterator.CharSequenceReader(text));
 	}
 
-    private String adjustFilePath(String filePath) {
+	/**
+	 * 如果该行（去掉首尾空白后）是文件标记，返回标记中的文件路径，否则返回null
+	 */
+	String extractMarkerPath(CharSequence line) {
+		long match = markerMatcher.match(line, 0, line.length());
+		return match == FileMarkerMatcher.NO_MATCH ? null : markerMatcher.extractPath(line, match, line.length());
+	}
+
+	/**
+	 * 设置可识别的文件标记语法，默认识别 //、#、--、&lt;!-- --&gt; 和 /* *&#47; 形式的 "File:" 标记
+	 */
+	public void setMarkerMatcher(FileMarkerMatcher markerMatcher) {
+		this.markerMatcher = markerMatcher;
+	}
+
+	public FileMarkerMatcher getMarkerMatcher() {
+		return markerMatcher;
+	}
+
+	/**
+	 * 设置解析模式，默认为{@link ParseMode#AUTO}
+	 */
+	public void setParseMode(ParseMode parseMode) {
+		this.parseMode = parseMode;
+	}
+
+	public ParseMode getParseMode() {
+		return parseMode;
+	}
+
+	/**
+	 * 设置并行解析的阈值：文件段数小于该值时顺序解析。传入Integer.MAX_VALUE可完全禁用并行。
+	 */
+	public void setParallelThreshold(int parallelThreshold) {
+		this.parallelThreshold = Math.max(1, parallelThreshold);
+	}
+
+	void logInfo(String message) {
+		log.log(new Status(Status.INFO, "com.filegenerator", message));
+	}
+
+    String adjustFilePath(String filePath) {
         boolean isJavaFile = ProjectTypeDetector.isJavaFile(filePath);
         return projectTypeDetector.adjustFilePath(filePath, isJavaFile);
     }
     
-    private String inferPathFromJavaCode(String code) {
-        // 查找包名
-        Matcher packageMatcher = PACKAGE_PATTERN.matcher(code);
-        if (packageMatcher.find()) {
-            String packageName = packageMatcher.group(1);
-            
-            // 查找类名
-            Matcher classMatcher = CLASS_PATTERN.matcher(code);
-            
-            if (classMatcher.find()) {
-                String className = classMatcher.group(1);
-                // 转换包名为路径
-                String packagePath = packageName.replace('.', '/');
-                String relativePath = packagePath + "/" + className + ".java";
-                
-                // 根据项目类型调整路径
-                return projectTypeDetector.adjustFilePath(relativePath, true);
-            }
+    /**
+     * 从Java代码头部推断文件路径，只扫描到第一个顶层类型声明为止
+     */
+    String inferPathFromJavaCode(CharSequence code) {
+        String relativePath = JavaHeaderScanner.inferRelativePath(code, 0, code.length());
+        if (relativePath == null) {
+            return null;
         }
-        
-        return null;
+        // 根据项目类型调整路径
+        return projectTypeDetector.adjustFilePath(relativePath, true);
     }
 }
\ No newline at end of file
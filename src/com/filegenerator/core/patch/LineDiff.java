@@ -0,0 +1,161 @@
+// ============================================================================
+
+package com.filegenerator.core.patch;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * 按行比较两段内容，生成可由 PatchApplier 应用的 hunks（Myers 差分算法）。
+ * 生成的 hunk 不含上下文行；oldStart 与 PatchApplier 的约定一致，表示从旧内容的第几行开始删除/插入。
+ */
+public class LineDiff {
+
+    private LineDiff() {
+    }
+
+    /**
+     * 比较 oldLines 与 newLines。
+     *
+     * @param maxEdits 允许的最大增删行数，超过时返回 null（此时差异已经大到不值得按差异保存）
+     * @return 把 oldLines 变为 newLines 的 hunks，内容相同时为空列表
+     */
+    public static List<PatchHunk> diff(List<String> oldLines, List<String> newLines, int maxEdits) {
+        // 先去掉相同的开头和结尾，通常只剩很小的一段需要比较
+        int prefix = 0;
+        int oldEnd = oldLines.size();
+        int newEnd = newLines.size();
+        while (prefix < oldEnd && prefix < newEnd && oldLines.get(prefix).equals(newLines.get(prefix))) {
+            prefix++;
+        }
+        while (oldEnd > prefix && newEnd > prefix && oldLines.get(oldEnd - 1).equals(newLines.get(newEnd - 1))) {
+            oldEnd--;
+            newEnd--;
+        }
+        List<String> a = oldLines.subList(prefix, oldEnd);
+        List<String> b = newLines.subList(prefix, newEnd);
+
+        boolean[] removed = new boolean[a.size()];
+        boolean[] added = new boolean[b.size()];
+        if (!shortestEdit(a, b, maxEdits, removed, added)) {
+            return null;
+        }
+
+        // 把连续的增删合并为一个 hunk
+        List<PatchHunk> hunks = new ArrayList<>();
+        int x = 0;
+        int y = 0;
+        while (x < a.size() || y < b.size()) {
+            if (x < a.size() && y < b.size() && !removed[x] && !added[y]) {
+                x++;
+                y++;
+                continue;
+            }
+            PatchHunk hunk = new PatchHunk();
+            hunk.setOldStart(prefix + x + 1);
+            hunk.setNewStart(prefix + y + 1);
+            int oldCount = 0;
+            int newCount = 0;
+            while (x < a.size() && removed[x]) {
+                hunk.addLine(new PatchLine(PatchLine.Type.REMOVE, a.get(x++)));
+                oldCount++;
+            }
+            while (y < b.size() && added[y]) {
+                hunk.addLine(new PatchLine(PatchLine.Type.ADD, b.get(y++)));
+                newCount++;
+            }
+            hunk.setOldCount(oldCount);
+            hunk.setNewCount(newCount);
+            hunks.add(hunk);
+        }
+        return hunks;
+    }
+
+    /**
+     * Myers 算法求最短编辑序列，结果标记在 removed/added 中
+     */
+    private static boolean shortestEdit(List<String> a, List<String> b, int maxEdits, boolean[] removed,
+            boolean[] added) {
+        int n = a.size();
+        int m = b.size();
+        int limit = Math.min(n + m, maxEdits);
+        int offset = limit + 1;
+        int[] v = new int[2 * limit + 3];
+        // trace.get(d) 保存第 d 步开始前 k ∈ [-d, d] 的 v 值，用于回溯
+        List<int[]> trace = new ArrayList<>();
+        for (int d = 0; d <= limit; d++) {
+            int[] snapshot = new int[2 * d + 1];
+            System.arraycopy(v, offset - d, snapshot, 0, snapshot.length);
+            trace.add(snapshot);
+            for (int k = -d; k <= d; k += 2) {
+                int x;
+                if (k == -d || (k != d && v[offset + k - 1] < v[offset + k + 1])) {
+                    x = v[offset + k + 1];
+                } else {
+                    x = v[offset + k - 1] + 1;
+                }
+                int y = x - k;
+                while (x < n && y < m && a.get(x).equals(b.get(y))) {
+                    x++;
+                    y++;
+                }
+                v[offset + k] = x;
+                if (x >= n && y >= m) {
+                    backtrack(trace, d, n, m, removed, added);
+                    return true;
+                }
+            }
+        }
+        return false;
+    }
+
+    private static void backtrack(List<int[]> trace, int depth, int n, int m, boolean[] removed, boolean[] added) {
+        int x = n;
+        int y = m;
+        for (int d = depth; d > 0; d--) {
+            int[] v = trace.get(d);
+            int k = x - y;
+            int prevK;
+            if (k == -d || (k != d && v[k - 1 + d] < v[k + 1 + d])) {
+                prevK = k + 1;
+            } else {
+                prevK = k - 1;
+            }
+            int prevX = v[prevK + d];
+            int prevY = prevX - prevK;
+            while (x > prevX && y > prevY) {
+                x--;
+                y--;
+            }
+            if (prevK == k + 1) {
+                added[prevY] = true;
+            } else {
+                removed[prevX] = true;
+            }
+            x = prevX;
+            y = prevY;
+        }
+    }
+
+    /**
+     * 把 hunks 写成 PatchParser 能解析的 unified diff 文本
+     */
+    public static String format(String oldPath, String newPath, List<PatchHunk> hunks) {
+        StringBuilder sb = new StringBuilder();
+        sb.append("--- a/").append(oldPath).append('\n');
+        sb.append("+++ b/").append(newPath).append('\n');
+        for (PatchHunk hunk : hunks) {
+            sb.append("@@ -").append(hunk.getOldStart()).append(',').append(hunk.getOldCount())
+                    .append(" +").append(hunk.getNewStart()).append(',').append(hunk.getNewCount()).append(" @@\n");
+            for (PatchLine line : hunk.getLines()) {
+                char prefix = line.getType() == PatchLine.Type.ADD ? '+'
+                        : line.getType() == PatchLine.Type.REMOVE ? '-' : ' ';
+                sb.append(prefix).append(line.getText()).append('\n');
+            }
+        }
+        return sb.toString();
+    }
+}
+
+
+// ============================================================================
@@ -3,6 +3,7 @@
 package com.filegenerator.core.patch;
 
 import java.io.ByteArrayInputStream;
+import java.io.InputStream;
 import java.nio.charset.StandardCharsets;
 import java.util.ArrayList;
 import java.util.List;
@@ -10,7 +11,7 @@ import java.util.List;
 import org.eclipse.core.resources.IFile;
 import org.eclipse.core.runtime.CoreException;
 
-import com.filegenerator.core.BackupManager;
+import com.filegenerator.core.BackupSessionHandle;
 
 public class PatchApplier {
 
@@ -146,9 +147,9 @@ public class PatchApplier {
 
     /**
      * 真正应用到 IFile，包含 ADD / MODIFY / DELETE。
-     * 所有写入前会调用 BackupManager.backupFile。
+     * backupSession 不为 null 时，所有写入前会通过它备份原文件。
      */
-    public boolean applyToFile(IFile file, PatchFile patchFile, BackupManager backupManager, StringBuilder errorOut) {
+    public boolean applyToFile(IFile file, PatchFile patchFile, BackupSessionHandle backupSession, StringBuilder errorOut) {
         try {
             if (patchFile.getType() == PatchFileType.ADD) {
                 if (file.exists()) {
@@ -166,14 +167,17 @@ public class PatchApplier {
                     // 文件本来就不存在，可视为已删除
                     return true;
                 }
-                String originalContent = readFileContent(file);
+                byte[] originalBytes = readFileBytes(file);
+                String originalContent = new String(originalBytes, StandardCharsets.UTF_8);
                 ApplyContentResult check = applyToExistingContent(originalContent, patchFile);
                 if (!check.isSuccess()) {
                     errorOut.append("DELETE patch does not match original content: ").append(check.getError());
                     return false;
                 }
-                // 备份
-                backupManager.backupFile(file.getLocation().toOSString());
+                // 备份：直接使用已读入的内容，不再读取一次文件
+                if (backupSession != null) {
+                    backupSession.backupContent(file.getLocation().toOSString(), originalBytes);
+                }
                 // 删除
                 file.delete(true, null);
                 return true;
@@ -183,15 +187,18 @@ public class PatchApplier {
                     errorOut.append("Target file does not exist for MODIFY patch: " + file.getFullPath());
                     return false;
                 }
-                String originalContent = readFileContent(file);
+                byte[] originalBytes = readFileBytes(file);
+                String originalContent = new String(originalBytes, StandardCharsets.UTF_8);
                 ApplyContentResult result = applyModify(originalContent, patchFile);
                 if (!result.isSuccess()) {
                     errorOut.append(result.getError());
                     return false;
                 }
                 String newContent = result.getNewContent();
-                // 备份
-                backupManager.backupFile(file.getLocation().toOSString());
+                // 备份：直接使用已读入的内容，不再读取一次文件
+                if (backupSession != null) {
+                    backupSession.backupContent(file.getLocation().toOSString(), originalBytes);
+                }
                 // 写回
                 ByteArrayInputStream in = new ByteArrayInputStream(newContent.getBytes(StandardCharsets.UTF_8));
                 if (file.isReadOnly()) {
@@ -206,10 +213,9 @@ public class PatchApplier {
         }
     }
 
-    private String readFileContent(IFile file) throws CoreException {
-        try {
-            byte[] bytes = file.getContents().readAllBytes();
-            return new String(bytes, StandardCharsets.UTF_8);
+    private byte[] readFileBytes(IFile file) throws CoreException {
+        try (InputStream in = file.getContents()) {
+            return in.readAllBytes();
         } catch (Exception e) {
             throw new CoreException(org.eclipse.core.runtime.Status.error("Error reading file: " + e.getMessage(), e));
         }
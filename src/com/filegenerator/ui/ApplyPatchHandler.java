@@ -20,7 +20,7 @@ import org.eclipse.swt.widgets.Shell;
 import org.eclipse.ui.handlers.HandlerUtil;
 
 import com.filegenerator.Activator;
-import com.filegenerator.core.BackupManager;
+import com.filegenerator.core.BackupSessionHandle;
 import com.filegenerator.core.patch.PatchApplier;
 import com.filegenerator.core.patch.PatchFile;
 import com.filegenerator.core.patch.PatchFileType;
@@ -57,37 +57,36 @@ public class ApplyPatchHandler extends AbstractHandler {
             }
         }
 
-        BackupManager backupManager = dialog.getBackupManager();
-        if (dialog.isBackupEnabled()) {
-            backupManager.startBackupSession();
-        }
+        // 不启用备份时不打开会话，PatchApplier 跳过备份
+        BackupSessionHandle backupSession = dialog.isBackupEnabled()
+                ? dialog.getBackupManager().openSession() : null;
 
         PatchApplier applier = new PatchApplier();
         int successCount = 0;
         int failCount = 0;
         StringBuilder errorMessages = new StringBuilder();
 
-        for (PatchFile pf : filesToApply) {
-            String relPath = normalizeEffectivePath(pf);
-            if (relPath == null) {
-                failCount++;
-                errorMessages.append("Invalid path in patch: ").append(pf.getEffectivePath()).append("\n");
-                continue;
-            }
-            IFile file = project.getFile(relPath);
-            StringBuilder err = new StringBuilder();
-            boolean ok = applier.applyToFile(file, pf, dialog.isBackupEnabled() ? backupManager : new BackupManager() {
-                @Override
-				public String backupFile(String path) {
-                    // 如果不启用备份，这里就是空实现
-					return "";
+        try {
+            for (PatchFile pf : filesToApply) {
+                String relPath = normalizeEffectivePath(pf);
+                if (relPath == null) {
+                    failCount++;
+                    errorMessages.append("Invalid path in patch: ").append(pf.getEffectivePath()).append("\n");
+                    continue;
+                }
+                IFile file = project.getFile(relPath);
+                StringBuilder err = new StringBuilder();
+                boolean ok = applier.applyToFile(file, pf, backupSession, err);
+                if (ok) {
+                    successCount++;
+                } else {
+                    failCount++;
+                    errorMessages.append("File: ").append(relPath).append(" -> ").append(err.toString()).append("\n");
                 }
-            }, err);
-            if (ok) {
-                successCount++;
-            } else {
-                failCount++;
-                errorMessages.append("File: ").append(relPath).append(" -> ").append(err.toString()).append("\n");
+            }
+        } finally {
+            if (backupSession != null) {
+                backupSession.close();
             }
         }
 
@@ -98,10 +97,6 @@ public class ApplyPatchHandler extends AbstractHandler {
                     "Error refreshing project after applying patch.", e));
         }
 
-        if (dialog.isBackupEnabled()) {
-            backupManager.endBackupSession();
-        }
-
         StringBuilder msg = new StringBuilder();
         msg.append("Patch application finished.\n\n");
         msg.append("Succeeded: ").append(successCount).append("\n");
@@ -1,28 +1,53 @@
 package com.filegenerator.ui;
 
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.LinkedHashSet;
 import java.util.List;
+import java.util.Set;
 import org.eclipse.core.commands.AbstractHandler;
 import org.eclipse.core.commands.ExecutionEvent;
 import org.eclipse.core.commands.ExecutionException;
+import org.eclipse.core.resources.IContainer;
+import org.eclipse.core.resources.IFile;
 import org.eclipse.core.resources.IProject;
 import org.eclipse.core.resources.IResource;
+import org.eclipse.core.resources.IWorkspace;
+import org.eclipse.core.resources.WorkspaceJob;
+import org.eclipse.core.runtime.CoreException;
 import org.eclipse.core.runtime.IAdaptable;
 import org.eclipse.core.runtime.ILog;
+import org.eclipse.core.runtime.IProgressMonitor;
+import org.eclipse.core.runtime.IStatus;
+import org.eclipse.core.runtime.NullProgressMonitor;
+import org.eclipse.core.runtime.OperationCanceledException;
+import org.eclipse.core.runtime.Path;
 import org.eclipse.core.runtime.Platform;
 import org.eclipse.core.runtime.Status;
+import org.eclipse.core.runtime.SubMonitor;
+import org.eclipse.core.runtime.jobs.ISchedulingRule;
+import org.eclipse.core.runtime.jobs.MultiRule;
 import org.eclipse.jface.dialogs.MessageDialog;
 import org.eclipse.jface.viewers.ISelection;
 import org.eclipse.jface.viewers.IStructuredSelection;
 import org.eclipse.jface.window.Window;
+import org.eclipse.swt.widgets.Display;
 import org.eclipse.swt.widgets.Shell;
+import org.eclipse.ui.IEditorInput;
 import org.eclipse.ui.IEditorPart;
+import org.eclipse.ui.IEditorReference;
 import org.eclipse.ui.IFileEditorInput;
 import org.eclipse.ui.IWorkbenchPart;
+import org.eclipse.ui.IWorkbenchPage;
 import org.eclipse.ui.IWorkbenchWindow;
+import org.eclipse.ui.PartInitException;
 import org.eclipse.ui.PlatformUI;
 import org.eclipse.ui.handlers.HandlerUtil;
 import com.filegenerator.core.FileGenerator;
 import com.filegenerator.core.FileModel;
+import com.filegenerator.core.GenerationReport;
 
 public class GenerateFilesHandler extends AbstractHandler {
 
@@ -55,15 +80,8 @@ public class GenerateFilesHandler extends AbstractHandler {
                 return null;
             }
             
-            // 生成文件
-            FileGenerator generator = new FileGenerator(modulePath);
-            generator.generateFiles(fileModels);
-            
-            // 刷新项目
-            project.refreshLocal(IProject.DEPTH_INFINITE, null);
-            
-            // 显示成功消息
-            showInfo(event, "成功生成 " + fileModels.size() + " 个文件");
+            // 在后台的工作区作业中生成文件，不阻塞UI
+            scheduleGeneration(shell, project, modulePath, fileModels);
         } catch (Exception e) {
             log.log(new Status(Status.ERROR, "com.filegenerator", "生成文件时出错", e));
             showError(event, "生成文件时出错: " + e.getMessage());
@@ -72,6 +90,137 @@ public class GenerateFilesHandler extends AbstractHandler {
         return null;
     }
     
+    /**
+     * 生成文件并只刷新生成的路径。写入和刷新在同一个IWorkspace.run中完成，
+     * 整个批次只产生一次合并的资源变更通知和一次增量构建；调度规则只覆盖被刷新的目录。
+     */
+    private void scheduleGeneration(Shell shell, IProject project, String modulePath, List<FileModel> fileModels) {
+        IWorkspace workspace = project.getWorkspace();
+        List<IResource> refreshTargets = getRefreshTargets(project, modulePath, fileModels);
+        // 编辑器只能在UI线程中访问，在调度作业之前记下打开的文件
+        List<String> openFiles = getOpenEditorFiles();
+        ISchedulingRule rule = getRefreshRule(workspace, refreshTargets);
+
+        WorkspaceJob job = new WorkspaceJob("Generate files") {
+            @Override
+            public IStatus runInWorkspace(IProgressMonitor monitor) throws CoreException {
+                GenerationReport[] report = new GenerationReport[1];
+                try {
+                    workspace.run(runMonitor -> {
+                        SubMonitor progress = SubMonitor.convert(runMonitor, "生成文件", 10);
+                        try {
+                            FileGenerator generator = new FileGenerator(modulePath);
+                            generator.setDurabilityPolicy(FileGenerator.DurabilityPolicy.PER_BATCH);
+                            // 任何文件失败都不修改工作区，避免留下半套生成结果
+                            generator.setTransactional(true);
+                            generator.setMoveBackups(true);
+                            generator.setOpenFiles(openFiles);
+                            generator.setCharsetResolver(fullPath -> getWorkspaceCharset(workspace, fullPath));
+                            report[0] = generator.generateFiles(fileModels, progress.split(8));
+                        } catch (IOException e) {
+                            throw new CoreException(new Status(Status.ERROR, "com.filegenerator", e.getMessage(), e));
+                        } finally {
+                            // 即使部分文件失败或被取消，也要刷新已经写入的文件。
+                            // 已取消时不再响应取消；刷新失败只记录日志，不掩盖生成的结果或错误
+                            IProgressMonitor refreshMonitor = progress.isCanceled() ? new NullProgressMonitor()
+                                    : progress.newChild(2);
+                            try {
+                                refresh(refreshTargets, refreshMonitor);
+                            } catch (CoreException | OperationCanceledException e) {
+                                log.log(new Status(Status.WARNING, "com.filegenerator", "刷新生成的文件失败", e));
+                            }
+                        }
+                    }, rule, IWorkspace.AVOID_UPDATE, monitor);
+                } catch (OperationCanceledException e) {
+                    return Status.CANCEL_STATUS;
+                } catch (CoreException e) {
+                    log.log(new Status(Status.ERROR, "com.filegenerator", "生成文件时出错", e));
+                    Throwable cause = e.getStatus().getException() != null ? e.getStatus().getException() : e;
+                    showMessage(shell, true, "生成文件时出错: " + cause.getMessage());
+                    return Status.OK_STATUS;
+                }
+
+                int unchanged = report[0].getCount(GenerationReport.FileStatus.UNCHANGED);
+                showMessage(shell, false, "成功生成 " + report[0].getCount(GenerationReport.FileStatus.GENERATED) + " 个文件"
+                        + (unchanged > 0 ? "，" + unchanged + " 个文件内容未变化" : ""));
+                return Status.OK_STATUS;
+            }
+        };
+        job.setRule(rule);
+        job.setUser(true);
+        job.schedule();
+    }
+
+    /**
+     * 计算需要刷新的资源：父目录已在工作区中的文件单独刷新，
+     * 新建的目录只刷新最上层那一个。无法映射到工作区的路径退回到刷新整个项目。
+     */
+    private List<IResource> getRefreshTargets(IProject project, String modulePath, List<FileModel> fileModels) {
+        Set<IResource> targets = new LinkedHashSet<>();
+        for (FileModel model : fileModels) {
+            String fullPath = modulePath + File.separator + model.getFilePath();
+            IFile file = project.getWorkspace().getRoot().getFileForLocation(Path.fromOSString(fullPath));
+            if (file == null) {
+                log.log(new Status(Status.INFO, "com.filegenerator", "路径不在工作区中，将刷新整个项目: " + fullPath));
+                List<IResource> projectOnly = new ArrayList<>();
+                projectOnly.add(project);
+                return projectOnly;
+            }
+            IResource target = file;
+            IContainer parent = file.getParent();
+            while (parent != null && parent.getType() == IResource.FOLDER && !parent.exists()) {
+                target = parent;
+                parent = parent.getParent();
+            }
+            targets.add(target);
+        }
+        return new ArrayList<>(targets);
+    }
+
+    /**
+     * 使用Eclipse中为文件配置的编码；新文件使用其所在目录、项目或工作区的默认编码
+     */
+    private Charset getWorkspaceCharset(IWorkspace workspace, String fullPath) {
+        IFile file = workspace.getRoot().getFileForLocation(Path.fromOSString(fullPath));
+        if (file == null) {
+            return null;
+        }
+        try {
+            return Charset.forName(file.getCharset(true));
+        } catch (CoreException | IllegalArgumentException e) {
+            log.log(new Status(Status.WARNING, "com.filegenerator", "无法确定文件编码，将使用默认编码: " + fullPath, e));
+            return null;
+        }
+    }
+
+    private ISchedulingRule getRefreshRule(IWorkspace workspace, List<IResource> targets) {
+        ISchedulingRule[] rules = new ISchedulingRule[targets.size()];
+        for (int i = 0; i < rules.length; i++) {
+            rules[i] = workspace.getRuleFactory().refreshRule(targets.get(i));
+        }
+        return MultiRule.combine(rules);
+    }
+
+    private void refresh(List<IResource> targets, IProgressMonitor monitor) throws CoreException {
+        SubMonitor progress = SubMonitor.convert(monitor, "刷新生成的文件", targets.size());
+        for (IResource target : targets) {
+            int depth = target.getType() == IResource.FILE ? IResource.DEPTH_ZERO : IResource.DEPTH_INFINITE;
+            target.refreshLocal(depth, progress.newChild(1));
+        }
+    }
+
+    private void showMessage(Shell shell, boolean error, String message) {
+        Display display = shell != null && !shell.isDisposed() ? shell.getDisplay() : Display.getDefault();
+        display.asyncExec(() -> {
+            Shell parent = shell != null && !shell.isDisposed() ? shell : display.getActiveShell();
+            if (error) {
+                MessageDialog.openError(parent, "错误", message);
+            } else {
+                MessageDialog.openInformation(parent, "信息", message);
+            }
+        });
+    }
+
     private IProject getSelectedProject(ExecutionEvent event) {
         try {
             // 从当前选择获取项目
@@ -106,6 +255,29 @@ public class GenerateFilesHandler extends AbstractHandler {
         }
     }
     
+    /**
+     * 所有编辑器中打开的文件的本地路径
+     */
+    private List<String> getOpenEditorFiles() {
+        List<String> files = new ArrayList<>();
+        for (IWorkbenchWindow window : PlatformUI.getWorkbench().getWorkbenchWindows()) {
+            for (IWorkbenchPage page : window.getPages()) {
+                for (IEditorReference reference : page.getEditorReferences()) {
+                    try {
+                        IEditorInput input = reference.getEditorInput();
+                        IFile file = input != null ? input.getAdapter(IFile.class) : null;
+                        if (file != null && file.getLocation() != null) {
+                            files.add(file.getLocation().toOSString());
+                        }
+                    } catch (PartInitException e) {
+                        log.log(new Status(Status.WARNING, "com.filegenerator", "无法获取编辑器输入: " + reference.getName(), e));
+                    }
+                }
+            }
+        }
+        return files;
+    }
+    
     private IProject getProjectFromActiveEditor() {
         try {
             IWorkbenchWindow window = PlatformUI.getWorkbench().getActiveWorkbenchWindow();
@@ -128,9 +300,4 @@ public class GenerateFilesHandler extends AbstractHandler {
         Shell shell = HandlerUtil.getActiveShell(event);
         MessageDialog.openError(shell, "错误", message);
     }
-    
-    private void showInfo(ExecutionEvent event, String message) {
-        Shell shell = HandlerUtil.getActiveShell(event);
-        MessageDialog.openInformation(shell, "信息", message);
-    }
 }
@@ -8,8 +8,11 @@ import org.eclipse.core.resources.IFile;
 import org.eclipse.core.resources.IFolder;
 import org.eclipse.core.resources.IProject;
 import org.eclipse.core.runtime.ILog;
+import org.eclipse.core.runtime.IProgressMonitor;
+import org.eclipse.core.runtime.IStatus;
 import org.eclipse.core.runtime.Platform;
 import org.eclipse.core.runtime.Status;
+import org.eclipse.core.runtime.jobs.Job;
 import org.eclipse.jdt.core.IJavaProject;
 import org.eclipse.jdt.core.JavaCore;
 import org.eclipse.jface.dialogs.Dialog;
@@ -24,8 +27,12 @@ import org.eclipse.swt.SWT;
 import org.eclipse.swt.custom.SashForm;
 import org.eclipse.swt.dnd.Clipboard;
 import org.eclipse.swt.dnd.TextTransfer;
+import org.eclipse.swt.events.ModifyEvent;
+import org.eclipse.swt.events.ModifyListener;
 import org.eclipse.swt.events.SelectionAdapter;
 import org.eclipse.swt.events.SelectionEvent;
+import org.eclipse.swt.events.VerifyEvent;
+import org.eclipse.swt.events.VerifyListener;
 import org.eclipse.swt.graphics.Point;
 import org.eclipse.swt.layout.GridData;
 import org.eclipse.swt.layout.GridLayout;
@@ -39,9 +46,14 @@ import org.eclipse.swt.widgets.Shell;
 import org.eclipse.swt.widgets.Text;
 
 import com.filegenerator.core.FileModel;
+import com.filegenerator.core.IncrementalParser;
 import com.filegenerator.core.TextParser;
 
 public class InputDialog extends Dialog {
+    // 预览区只显示文件开头部分，避免为超大文件复制整个内容
+    private static final int PREVIEW_LIMIT = 100000;
+    // 停止输入多久之后才重新解析（毫秒）
+    private static final long PREVIEW_DELAY = 300;
 
     private Text textInput;
     private Combo moduleCombo;
@@ -58,6 +70,16 @@ public class InputDialog extends Dialog {
     private final ILog log = Platform.getLog(Platform.getBundle("com.filegenerator"));
 	private boolean buttonsCreated = false; // 标记按钮是否已创建
 
+    // 预览在后台Job中解析，只有Job线程访问incrementalParser
+    private final Job previewJob = new PreviewJob();
+    private Display display;
+    private IncrementalParser incrementalParser;
+    private String parsedModulePath;
+    // 自上次解析以来被修改的区间（只在UI线程访问）：原文本中的[editStart, editOldEnd)变成了当前文本中的[editStart, editNewEnd)
+    private int editStart = -1;
+    private int editOldEnd;
+    private int editNewEnd;
+
     public InputDialog(Shell parentShell, IProject project) {
         super(parentShell);
         this.project = project;
@@ -101,6 +123,7 @@ public class InputDialog extends Dialog {
     @Override
     protected Control createDialogArea(Composite parent) {
         Composite container = (Composite) super.createDialogArea(parent);
+        display = parent.getDisplay();
         GridLayout layout = new GridLayout(1, false);
         layout.marginHeight = 10;
         layout.marginWidth = 10;
@@ -202,7 +225,7 @@ public class InputDialog extends Dialog {
             @Override
             public void widgetSelected(SelectionEvent e) {
                 pasteFromClipboard();
-                updatePreview();
+                schedulePreview(0);
             }
         });
         
@@ -210,6 +233,7 @@ public class InputDialog extends Dialog {
             @Override
             public void widgetSelected(SelectionEvent e) {
                 textInput.setText("");
+                previewJob.cancel();
                 clearPreview();
             }
         });
@@ -217,14 +241,30 @@ public class InputDialog extends Dialog {
         previewButton.addSelectionListener(new SelectionAdapter() {
             @Override
             public void widgetSelected(SelectionEvent e) {
-                updatePreview();
+                schedulePreview(0);
             }
         });
         
         moduleCombo.addSelectionListener(new SelectionAdapter() {
             @Override
             public void widgetSelected(SelectionEvent e) {
-                updatePreview();
+                schedulePreview(0);
+            }
+        });
+        
+        // 记录每次修改的区间，供增量解析使用
+        textInput.addVerifyListener(new VerifyListener() {
+            @Override
+            public void verifyText(VerifyEvent e) {
+                recordEdit(e.start, e.end, e.text != null ? e.text.length() : 0);
+            }
+        });
+        
+        // 输入时延迟解析，连续输入只会触发一次解析
+        textInput.addModifyListener(new ModifyListener() {
+            @Override
+            public void modifyText(ModifyEvent e) {
+                schedulePreview(PREVIEW_DELAY);
             }
         });
         
@@ -234,7 +274,7 @@ public class InputDialog extends Dialog {
                 IStructuredSelection selection = (IStructuredSelection) event.getSelection();
                 if (!selection.isEmpty()) {
                     FileModel model = (FileModel) selection.getFirstElement();
-                    contentText.setText(model.getContent());
+                    contentText.setText(model.getContentPreview(PREVIEW_LIMIT));
                 } else {
                     contentText.setText("");
                 }
@@ -245,7 +285,7 @@ public class InputDialog extends Dialog {
 		Display.getCurrent().asyncExec(() -> {
 			// 尝试从剪贴板自动粘贴并预览
 			pasteFromClipboard();
-			updatePreview();
+			schedulePreview(0);
 		});
         
         return container;
@@ -264,41 +304,151 @@ public class InputDialog extends Dialog {
         }
     }
     
-    private void updatePreview() {
-        String text = textInput.getText();
+    /**
+     * 合并一次修改：当前文本中的[start, end)被替换成了insertedLength个字符
+     */
+    private void recordEdit(int start, int end, int insertedLength) {
+        if (editStart < 0) {
+            editStart = start;
+            editOldEnd = end;
+            editNewEnd = end;
+        }
+        // 当前修改区间之后的字符与原文本一一对应
+        int unionEnd = Math.max(editNewEnd, end);
+        editOldEnd += unionEnd - editNewEnd;
+        editNewEnd = unionEnd + insertedLength - (end - start);
+        editStart = Math.min(editStart, start);
+    }
+
+    private void schedulePreview(long delay) {
+        previewJob.cancel();
+        previewJob.schedule(delay);
+    }
+
+    private String getModulePath() {
+        int index = moduleCombo.getSelectionIndex();
+        return index >= 0 && index < modulePaths.size() ? modulePaths.get(index) : project.getLocation().toOSString();
+    }
+
+    /**
+     * 预览请求：在UI线程中取得的文本快照、模块和修改区间
+     */
+    private static class PreviewRequest {
+        String text;
+        String modulePath;
+        int editStart = -1;
+        int removedLength;
+        int insertedLength;
+    }
+
+    /**
+     * 在后台解析预览，完成后一次性把结果交给UI线程
+     */
+    private class PreviewJob extends Job {
+        PreviewJob() {
+            super("Preview files");
+            setSystem(true);
+            setPriority(Job.SHORT);
+        }
+
+        @Override
+        protected IStatus run(IProgressMonitor monitor) {
+            if (monitor.isCanceled()) {
+                return Status.CANCEL_STATUS;
+            }
+            PreviewRequest request = takePreviewRequest();
+            if (request == null) {
+                return Status.OK_STATUS;
+            }
+            // 修改区间已被取走，解析器必须处理完这次请求，否则下一次增量解析的基准会不一致
+            List<FileModel> models;
+            try {
+                models = parsePreview(request);
+            } catch (Exception e) {
+                log.log(new Status(Status.ERROR, "com.filegenerator", "更新预览时出错", e));
+                incrementalParser = null;
+                models = new ArrayList<>();
+            }
+            if (monitor.isCanceled()) {
+                // 已有更新的请求排队，由它发布结果
+                return Status.CANCEL_STATUS;
+            }
+            if (!display.isDisposed()) {
+                final List<FileModel> result = models;
+                display.asyncExec(() -> publishPreview(result));
+            }
+            return Status.OK_STATUS;
+        }
+    }
+
+    private PreviewRequest takePreviewRequest() {
+        if (display == null || display.isDisposed()) {
+            return null;
+        }
+        final PreviewRequest[] request = new PreviewRequest[1];
+        display.syncExec(() -> {
+            if (textInput == null || textInput.isDisposed()) {
+                return;
+            }
+            PreviewRequest current = new PreviewRequest();
+            current.text = textInput.getText();
+            current.modulePath = getModulePath();
+            if (editStart >= 0) {
+                current.editStart = editStart;
+                current.removedLength = editOldEnd - editStart;
+                current.insertedLength = editNewEnd - editStart;
+                editStart = -1;
+            }
+            request[0] = current;
+        });
+        return request[0];
+    }
+
+    /**
+     * 在Job线程中执行：模块没有变化且有修改区间时增量解析，否则完整解析
+     */
+    private List<FileModel> parsePreview(PreviewRequest request) {
+        String text = request.text;
         if (text == null || text.trim().isEmpty()) {
-            clearPreview();
+            incrementalParser = null;
+            return new ArrayList<>();
+        }
+        if (incrementalParser == null || !request.modulePath.equals(parsedModulePath)) {
+            incrementalParser = new IncrementalParser(new TextParser(request.modulePath));
+            parsedModulePath = request.modulePath;
+            return incrementalParser.parse(text);
+        }
+        if (request.editStart < 0) {
+            return incrementalParser.parse(text);
+        }
+        return incrementalParser.update(text, request.editStart, request.removedLength, request.insertedLength);
+    }
+
+    private void publishPreview(List<FileModel> models) {
+        if (fileListViewer.getList().isDisposed()) {
             return;
         }
-        
-        try {
-            int index = moduleCombo.getSelectionIndex();
-            String modulePath = index >= 0 ? modulePaths.get(index) : project.getLocation().toOSString();
-            
-            TextParser parser = new TextParser(modulePath);
-            fileModels = parser.parseText(text);
-            
-            fileListViewer.setInput(fileModels);
-            
-            if (!fileModels.isEmpty()) {
-                fileListViewer.getList().select(0);
-                contentText.setText(fileModels.get(0).getContent());
-
-				// 安全地设置按钮状态
-				updateButtonState(true);
-            } else {
-                contentText.setText("");
-
-				// 安全地设置按钮状态
-				updateButtonState(false);
-            }
-            
-            log.log(new Status(Status.INFO, "com.filegenerator", 
-                  "预览更新，检测到 " + fileModels.size() + " 个文件"));
-        } catch (Exception e) {
-            log.log(new Status(Status.ERROR, "com.filegenerator", "更新预览时出错", e));
-            clearPreview();
+        int selection = fileListViewer.getList().getSelectionIndex();
+        fileModels = models;
+        fileListViewer.setInput(fileModels);
+
+        if (!fileModels.isEmpty()) {
+            // 输入过程中尽量保持之前选中的文件
+            int index = selection >= 0 && selection < fileModels.size() ? selection : 0;
+            fileListViewer.getList().select(index);
+            contentText.setText(fileModels.get(index).getContentPreview(PREVIEW_LIMIT));
+
+			// 安全地设置按钮状态
+			updateButtonState(true);
+        } else {
+            contentText.setText("");
+
+			// 安全地设置按钮状态
+			updateButtonState(false);
         }
+
+        log.log(new Status(Status.INFO, "com.filegenerator", 
+              "预览更新，检测到 " + fileModels.size() + " 个文件"));
     }
     
     private void clearPreview() {
@@ -338,15 +488,21 @@ public class InputDialog extends Dialog {
     @Override
     protected void okPressed() {
         inputText = textInput.getText();
-        int index = moduleCombo.getSelectionIndex();
-        if (index >= 0 && index < modulePaths.size()) {
-            selectedModule = modulePaths.get(index);
-        } else {
-            selectedModule = project.getLocation().toOSString();
+        selectedModule = getModulePath();
+        if (editStart >= 0 || previewJob.getState() != Job.NONE) {
+            // 预览还没有反映最新的输入，直接解析一次，保证生成的文件与输入一致
+            previewJob.cancel();
+            fileModels = new TextParser(selectedModule).parseText(inputText);
         }
         super.okPressed();
     }
 
+    @Override
+    public boolean close() {
+        previewJob.cancel();
+        return super.close();
+    }
+
     public String getInputText() {
         return inputText;
     }
@@ -58,7 +58,7 @@ public class PatchInputDialog extends TitleAreaDialog {
     public PatchInputDialog(Shell parentShell, IProject project) {
         super(parentShell);
         this.project = project;
-        this.backupManager = new BackupManager();
+        this.backupManager = BackupManager.getInstance();
     }
 
     @Override
@@ -23,6 +23,9 @@ import org.eclipse.swt.widgets.Text;
 import com.filegenerator.core.FileModel;
 
 public class PreviewDialog extends Dialog {
+	// 预览区只显示文件开头部分，避免为超大文件复制整个内容
+	private static final int PREVIEW_LIMIT = 100000;
+
 	private List<FileModel> fileModels;
 	private String basePath;
 	private ListViewer fileListViewer;
@@ -86,7 +89,7 @@ public class PreviewDialog extends Dialog {
 				IStructuredSelection selection = (IStructuredSelection) event.getSelection();
 				if (!selection.isEmpty()) {
 					FileModel model = (FileModel) selection.getFirstElement();
-					contentText.setText(model.getContent());
+					contentText.setText(model.getContentPreview(PREVIEW_LIMIT));
 				} else {
 					contentText.setText("");
 				}
@@ -109,7 +112,7 @@ public class PreviewDialog extends Dialog {
 		// 默认选择第一个文件
 		if (!fileModels.isEmpty()) {
 			fileListViewer.getList().select(0);
-			contentText.setText(fileModels.get(0).getContent());
+			contentText.setText(fileModels.get(0).getContentPreview(PREVIEW_LIMIT));
 		}
 
 		return container;
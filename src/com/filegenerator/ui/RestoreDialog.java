@@ -79,14 +79,19 @@ public class RestoreDialog extends Dialog {
             }
         });
         
-        TableViewerColumn pathColumn = new TableViewerColumn(tableViewer, SWT.NONE);
-        pathColumn.getColumn().setText("备份文件路径");
-        pathColumn.getColumn().setWidth(350);
-        pathColumn.setLabelProvider(new ColumnLabelProvider() {
+        TableViewerColumn contentColumn = new TableViewerColumn(tableViewer, SWT.NONE);
+        contentColumn.getColumn().setText("备份内容");
+        contentColumn.getColumn().setWidth(350);
+        contentColumn.setLabelProvider(new ColumnLabelProvider() {
             @Override
             public String getText(Object element) {
                 BackupEntry entry = (BackupEntry) element;
-                return entry.getBackupFilePath();
+                // 存储中的内容可能被改写为差异，文件位置会变化，只显示内容的哈希和大小
+                if (entry.getContentHash() == null) {
+                    // 旧版本的完整副本
+                    return entry.getBackupFilePath();
+                }
+                return entry.getContentHash().substring(0, 12) + "（" + entry.getSize() + " 字节）";
             }
         });
         
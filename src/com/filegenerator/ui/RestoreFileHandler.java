@@ -86,9 +86,7 @@ public class RestoreFileHandler extends AbstractHandler {
                 BackupEntry selectedBackup = dialog.getSelectedBackup();
                 if (selectedBackup != null) {
                     BackupManager backupManager = BackupManager.getInstance();
-                    boolean success = backupManager.restoreFromBackup(
-                            selectedBackup.getBackupFilePath(), 
-                            selectedBackup.getOriginalFilePath());
+                    boolean success = backupManager.restoreFromBackup(selectedBackup);
                     
                     if (success) {
                         // 刷新文件
@@ -68,7 +68,9 @@ public class RestoreSessionDialog extends Dialog {
     }
     
     private void createSessionTable(Composite parent) {
-        sessionTableViewer = new TableViewer(parent, SWT.BORDER | SWT.FULL_SELECTION);
+        // 会话可能很多，只为可见的行创建表格项；选中会话时才读取它的备份记录
+        sessionTableViewer = new TableViewer(parent, SWT.BORDER | SWT.FULL_SELECTION | SWT.VIRTUAL);
+        sessionTableViewer.setUseHashlookup(true);
         Table table = sessionTableViewer.getTable();
         table.setHeaderVisible(true);
         table.setLinesVisible(true);
@@ -65,9 +65,7 @@ public class RestoreSessionHandler extends AbstractHandler {
             int failCount = 0;
             
             for (BackupEntry entry : session.getBackupEntries()) {
-                boolean success = backupManager.restoreFromBackup(
-                        entry.getBackupFilePath(), 
-                        entry.getOriginalFilePath());
+                boolean success = backupManager.restoreFromBackup(entry);
                 
                 if (success) {
                     successCount++;